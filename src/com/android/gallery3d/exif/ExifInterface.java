@@ -651,6 +651,51 @@ public class ExifInterface {
 		is.close();
 	}
 
+	/**
+	 * Reads only the orientation tag from an InputStream. This stops parsing
+	 * as soon as the tag is found in IFD0, and leaves this ExifInterface
+	 * object's existing exif tags alone.
+	 * 
+	 * @param inStream
+	 *            an InputStream containing a jpeg compressed image.
+	 * @return the orientation value, or null if the image has none.
+	 * @throws IOException
+	 */
+	public Integer readOrientation(InputStream inStream) throws IOException {
+		if (inStream == null) {
+			throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+		}
+		try {
+			return new ExifReader(this).readOrientation(inStream);
+		} catch (ExifInvalidFormatException e) {
+			throw new IOException("Invalid exif format : " + e);
+		}
+	}
+
+	/**
+	 * Reads only the orientation tag from a file, see
+	 * {@link #readOrientation(InputStream)}. The file is read with random
+	 * access, so segments before the exif data are seeked over instead of
+	 * read.
+	 * 
+	 * @param inFileName
+	 *            a string representing the filepath to jpeg file.
+	 * @return the orientation value, or null if the image has none.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public Integer readOrientation(String inFileName) throws FileNotFoundException, IOException {
+		if (inFileName == null) {
+			throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+		}
+		InputStream is = new RandomAccessFileInputStream(new RandomAccessFile(inFileName, "r"));
+		try {
+			return readOrientation(is);
+		} finally {
+			closeSilently(is);
+		}
+	}
+
 	/**
 	 * Sets the exif tags, clearing this ExifInterface object's existing exif
 	 * tags.
@@ -28,6 +28,8 @@ import java.io.InputStream;
 class ExifReader {
 	private static final String TAG = "ExifReader";
 
+	private static final short TAG_ORIENTATION = ExifInterface.getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+
 	private final ExifInterface mInterface;
 
 	ExifReader(ExifInterface iRef) {
@@ -88,4 +90,31 @@ class ExifReader {
 		}
 		return exifData;
 	}
+
+	/**
+	 * Parses only IFD0 of the inputStream until the orientation tag is found,
+	 * without reading the other IFDs or the thumbnail.
+	 * 
+	 * @return the orientation value, or null if IFD0 has none.
+	 * @throws ExifInvalidFormatException
+	 * @throws IOException
+	 */
+	protected Integer readOrientation(InputStream inputStream) throws ExifInvalidFormatException,
+			IOException {
+		ExifParser parser = ExifParser.parse(inputStream, ExifParser.OPTION_IFD_0, mInterface);
+		int event = parser.next();
+		while (event != ExifParser.EVENT_END) {
+			if (event == ExifParser.EVENT_NEW_TAG) {
+				ExifTag tag = parser.getTag();
+				// The orientation is a single short, so its value is always
+				// stored inline in the tag
+				if (tag.getTagId() == TAG_ORIENTATION && tag.getIfd() == IfdId.TYPE_IFD_0) {
+					int[] value = tag.getValueAsInts();
+					return value != null && value.length > 0 ? value[0] : null;
+				}
+			}
+			event = parser.next();
+		}
+		return null;
+	}
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Buffered InputStream over a RandomAccessFile. Skips past the end of the
+ * buffer seek the file instead of reading it, and reads are only as large as
+ * the buffer, so reading just the header of a large file stays cheap.
+ */
+class RandomAccessFileInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 4096;
+
+	private final RandomAccessFile mFile;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mPos;
+	private int mLimit;
+
+	public RandomAccessFileInputStream(RandomAccessFile file) {
+		mFile = file;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mPos == mLimit && !fill()) {
+			return -1;
+		}
+		return mBuffer[mPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		// Fill the whole request if the file has the bytes, callers expect
+		// short reads to mean the end of the file
+		int read = 0;
+		while (read < len) {
+			if (mPos == mLimit && !fill()) {
+				break;
+			}
+			int count = Math.min(len - read, mLimit - mPos);
+			System.arraycopy(mBuffer, mPos, bytes, off + read, count);
+			mPos += count;
+			read += count;
+		}
+		return read > 0 ? read : -1;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (n <= mLimit - mPos) {
+			mPos += n;
+			return n;
+		}
+		final long buffered = mLimit - mPos;
+		final long position = mFile.getFilePointer();
+		final long skipped = buffered + Math.min(n - buffered, mFile.length() - position);
+		mFile.seek(position + skipped - buffered);
+		mPos = mLimit = 0;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		final long available = (mLimit - mPos) + mFile.length() - mFile.getFilePointer();
+		return (int) Math.min(Integer.MAX_VALUE, available);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	private boolean fill() throws IOException {
+		final int read = mFile.read(mBuffer, 0, BUFFER_SIZE);
+		mPos = 0;
+		mLimit = Math.max(read, 0);
+		return read > 0;
+	}
+}
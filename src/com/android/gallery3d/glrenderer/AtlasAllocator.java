@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+import java.util.ArrayList;
+
+// AtlasAllocator hands out the slots of TextureAtlas, without anything of GL.
+//
+// Pages are cut into shelves, rows of equally sized slots. The size of a
+// slot is rounded up to powers of two and the slot goes to a shelf of that
+// size, so slots that come and go, like the tiles of TiledImageRenderer,
+// reuse each other's space without the pages fragmenting. A shelf that
+// empties can take another slot width of the same height. A page is freed
+// when its last slot is.
+//
+// Subclasses create the pages and hear when they are freed, that is where
+// TextureAtlas keeps the textures.
+class AtlasAllocator {
+	// Smaller slots are still this big, so pages don't fill up with shelves
+	// of tiny slots
+	static final int MIN_SLOT_SIZE = 16;
+
+	private final int mPageSize;
+	private final ArrayList<Page> mPages = new ArrayList<Page>();
+
+	static class Page {
+		private final ArrayList<Shelf> mShelves = new ArrayList<Shelf>();
+		// The top of the space not cut into shelves yet
+		private int mShelvesBottom;
+		private int mUsedCount;
+
+		public int getUsedCount() {
+			return mUsedCount;
+		}
+	}
+
+	static class Slot {
+		public final Page mPage;
+		public final int mX;
+		public final int mY;
+		private final Shelf mShelf;
+		private final int mIndex;
+		private boolean mFreed;
+
+		private Slot(Page page, Shelf shelf, int index) {
+			mPage = page;
+			mShelf = shelf;
+			mIndex = index;
+			mX = index * shelf.mSlotWidth;
+			mY = shelf.mY;
+		}
+
+		public int getWidth() {
+			return mShelf.mSlotWidth;
+		}
+
+		public int getHeight() {
+			return mShelf.mHeight;
+		}
+	}
+
+	private static class Shelf {
+		public final int mY;
+		public final int mHeight;
+		public int mSlotWidth;
+		public int mSlotCount;
+		public int mUsedCount;
+		private final boolean[] mUsed;
+
+		public Shelf(int y, int height, int pageSize) {
+			mY = y;
+			mHeight = height;
+			mUsed = new boolean[pageSize / MIN_SLOT_SIZE];
+		}
+
+		// Only while the shelf is empty
+		public void setSlotWidth(int slotWidth, int pageSize) {
+			if (mUsedCount != 0) {
+				throw new IllegalStateException("Shelf is in use!");
+			}
+			mSlotWidth = slotWidth;
+			mSlotCount = pageSize / slotWidth;
+		}
+
+		public int takeSlot() {
+			for (int i = 0; i < mSlotCount; i++) {
+				if (!mUsed[i]) {
+					mUsed[i] = true;
+					mUsedCount++;
+					return i;
+				}
+			}
+			throw new IllegalStateException("Shelf is full!");
+		}
+
+		public void freeSlot(int slot) {
+			mUsed[slot] = false;
+			mUsedCount--;
+		}
+	}
+
+	// pageSize must be 2^N
+	AtlasAllocator(int pageSize) {
+		if (Integer.bitCount(pageSize) != 1 || pageSize < MIN_SLOT_SIZE) {
+			throw new IllegalArgumentException("page size " + pageSize);
+		}
+		mPageSize = pageSize;
+	}
+
+	protected Page createPage() {
+		return new Page();
+	}
+
+	// Called once the last slot of the page is freed.
+	protected void onPageFreed(Page page) {
+	}
+
+	public int getPageSize() {
+		return mPageSize;
+	}
+
+	public int getPageCount() {
+		return mPages.size();
+	}
+
+	// Returns a slot of at least the given size, or null if that is larger
+	// than a page.
+	public Slot allocate(int width, int height) {
+		if (width <= 0 || height <= 0 || width > mPageSize || height > mPageSize) {
+			return null;
+		}
+		int slotWidth = Math.max(MIN_SLOT_SIZE, nextPowerOf2(width));
+		int slotHeight = Math.max(MIN_SLOT_SIZE, nextPowerOf2(height));
+		for (int i = 0, n = mPages.size(); i < n; i++) {
+			Slot slot = allocate(mPages.get(i), slotWidth, slotHeight);
+			if (slot != null) {
+				return slot;
+			}
+		}
+		Page page = createPage();
+		mPages.add(page);
+		return allocate(page, slotWidth, slotHeight);
+	}
+
+	private Slot allocate(Page page, int slotWidth, int slotHeight) {
+		Shelf empty = null;
+		for (int i = 0, n = page.mShelves.size(); i < n; i++) {
+			Shelf shelf = page.mShelves.get(i);
+			if (shelf.mHeight != slotHeight) {
+				continue;
+			}
+			if (shelf.mSlotWidth == slotWidth && shelf.mUsedCount < shelf.mSlotCount) {
+				return take(page, shelf);
+			}
+			if (shelf.mUsedCount == 0 && empty == null) {
+				empty = shelf;
+			}
+		}
+		if (empty == null) {
+			if (page.mShelvesBottom + slotHeight > mPageSize) {
+				return null;
+			}
+			empty = new Shelf(page.mShelvesBottom, slotHeight, mPageSize);
+			page.mShelves.add(empty);
+			page.mShelvesBottom += slotHeight;
+		}
+		empty.setSlotWidth(slotWidth, mPageSize);
+		return take(page, empty);
+	}
+
+	private static Slot take(Page page, Shelf shelf) {
+		page.mUsedCount++;
+		return new Slot(page, shelf, shelf.takeSlot());
+	}
+
+	// Frees the slot, which must not be used anymore.
+	public void free(Slot slot) {
+		if (slot.mFreed) {
+			throw new IllegalStateException("Slot is already freed!");
+		}
+		slot.mFreed = true;
+		slot.mShelf.freeSlot(slot.mIndex);
+		Page page = slot.mPage;
+		if (--page.mUsedCount == 0) {
+			mPages.remove(page);
+			onPageFreed(page);
+		}
+	}
+
+	private static int nextPowerOf2(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+}
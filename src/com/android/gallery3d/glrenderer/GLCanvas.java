@@ -115,6 +115,15 @@ public interface GLCanvas {
 	// rectangle is specified by parameter "target".
 	public abstract void drawMixed(BasicTexture from, int toColor, float ratio, RectF src, RectF target);
 
+	// Starts collecting the textures drawn until endBatch(). Consecutive
+	// draws of the same texture at the same alpha are sent to GL in a single
+	// draw call, so textures that share an atlas page (see TextureAtlas)
+	// draw together. Anything else drawn in between keeps its order.
+	public abstract void beginBatch();
+
+	// Draws what is left of the batch and ends it.
+	public abstract void endBatch();
+
 	// Unloads the specified texture from the canvas. The resource allocated
 	// to draw the texture will be released. The specified texture will return
 	// to the unloaded state. This function should be called only from
@@ -29,6 +29,7 @@ import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -48,6 +49,11 @@ public class GLES20Canvas implements GLCanvas {
 	private static final int OFFSET_DRAW_LINE = OFFSET_FILL_RECT + COUNT_FILL_VERTEX;
 	private static final int OFFSET_DRAW_RECT = OFFSET_DRAW_LINE + COUNT_LINE_VERTEX;
 
+	// Batched quads are drawn as two triangles
+	private static final int MAX_BATCH_QUADS = 256;
+	private static final int BATCH_VERTEX_STRIDE = QuadBatch.VERTEX_SIZE * FLOAT_SIZE;
+	private static final int BATCH_QUAD_INDICES = 6;
+
 	private static final float[] BOX_COORDINATES = { 0, 0, // Fill rectangle
 			1, 0, 0, 1, 1, 1, 0, 0, // Draw line
 			1, 1, 0, 0, // Draw rectangle outline
@@ -208,6 +214,18 @@ public class GLES20Canvas implements GLCanvas {
 	private int mCountTextureRect = 0;
 	private int mCountFillRect = 0;
 	private int mCountDrawLine = 0;
+	private int mCountBatch = 0;
+	private int mCountBatchQuad = 0;
+	private int mCountBindTexture = 0;
+
+	// Texture draws collected between beginBatch() and endBatch(). They are
+	// drawn from client memory, so there is nothing to recreate when the
+	// context is lost.
+	private boolean mBatching;
+	private final QuadBatch<BasicTexture> mBatch = new QuadBatch<BasicTexture>(MAX_BATCH_QUADS);
+	private final FloatBuffer mBatchVertices = createBuffer(new float[MAX_BATCH_QUADS
+			* QuadBatch.QUAD_SIZE]);
+	private final ShortBuffer mBatchIndices = createQuadIndices(MAX_BATCH_QUADS);
 
 	// Buffer for framebuffer IDs -- we keep track so we can switch the attached
 	// texture.
@@ -259,6 +277,24 @@ public class GLES20Canvas implements GLCanvas {
 		return buffer;
 	}
 
+	private static ShortBuffer createQuadIndices(int quads) {
+		short[] indices = new short[quads * BATCH_QUAD_INDICES];
+		for (int i = 0; i < quads; i++) {
+			int vertex = i * 4;
+			int index = i * BATCH_QUAD_INDICES;
+			indices[index] = (short) vertex;
+			indices[index + 1] = (short) (vertex + 1);
+			indices[index + 2] = (short) (vertex + 2);
+			indices[index + 3] = (short) (vertex + 2);
+			indices[index + 4] = (short) (vertex + 1);
+			indices[index + 5] = (short) (vertex + 3);
+		}
+		ShortBuffer buffer = ByteBuffer.allocateDirect(indices.length * Short.SIZE / Byte.SIZE)
+				.order(ByteOrder.nativeOrder()).asShortBuffer();
+		buffer.put(indices, 0, indices.length).position(0);
+		return buffer;
+	}
+
 	private int assembleProgram(int vertexShader, int fragmentShader, ShaderParameter[] params) {
 		int program = GLES20.glCreateProgram();
 		checkError();
@@ -301,6 +337,7 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void setSize(int width, int height) {
+		flushBatch();
 		mWidth = width;
 		mHeight = height;
 		GLES20.glViewport(0, 0, mWidth, mHeight);
@@ -317,6 +354,7 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void clearBuffer() {
+		flushBatch();
 		GLES20.glClearColor(0f, 0f, 0f, 1f);
 		checkError();
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -325,6 +363,7 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void clearBuffer(float[] argb) {
+		flushBatch();
 		GLES20.glClearColor(argb[1], argb[2], argb[3], argb[0]);
 		checkError();
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -456,6 +495,7 @@ public class GLES20Canvas implements GLCanvas {
 	}
 
 	private void prepareDraw(int offset, int color, float lineWidth) {
+		flushBatch();
 		GLES20.glUseProgram(mDrawProgram);
 		checkError();
 		if (lineWidth > 0) {
@@ -580,6 +620,11 @@ public class GLES20Canvas implements GLCanvas {
 	}
 
 	private void drawTextureRect(BasicTexture texture, RectF source, RectF target) {
+		if (mBatching && texture.getTarget() == GLES20.GL_TEXTURE_2D
+				&& QuadBatch.isAffine2D(mMatrices, mCurrentMatrixIndex)) {
+			batchTextureRect(texture, source, target);
+			return;
+		}
 		setTextureMatrix(source);
 		drawTextureRect(texture, mTempTextureMatrix, target);
 	}
@@ -619,6 +664,7 @@ public class GLES20Canvas implements GLCanvas {
 	}
 
 	private void drawTextureRect(BasicTexture texture, float[] textureMatrix, RectF target) {
+		flushBatch();
 		ShaderParameter[] params = prepareTexture(texture);
 		setPosition(params, OFFSET_FILL_RECT);
 		GLES20.glUniformMatrix4fv(params[INDEX_TEXTURE_MATRIX].handle, 1, false, textureMatrix, 0);
@@ -660,6 +706,7 @@ public class GLES20Canvas implements GLCanvas {
 		texture.onBind(this);
 		GLES20.glBindTexture(texture.getTarget(), texture.getId());
 		checkError();
+		mCountBindTexture++;
 		GLES20.glUniform1i(params[INDEX_TEXTURE_SAMPLER].handle, 0);
 		checkError();
 		GLES20.glUniform1f(params[INDEX_ALPHA].handle, getAlpha());
@@ -669,6 +716,7 @@ public class GLES20Canvas implements GLCanvas {
 	@Override
 	public void drawMesh(BasicTexture texture, int x, int y, int xyBuffer, int uvBuffer, int indexBuffer,
 			int indexCount) {
+		flushBatch();
 		prepareTexture(texture, mMeshProgram, mMeshParameters);
 
 		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
@@ -736,6 +784,103 @@ public class GLES20Canvas implements GLCanvas {
 		restore();
 	}
 
+	@Override
+	public void beginBatch() {
+		mBatching = true;
+	}
+
+	@Override
+	public void endBatch() {
+		flushBatch();
+		mBatching = false;
+	}
+
+	private void batchTextureRect(BasicTexture texture, RectF source, RectF target) {
+		// Binding may upload the texture, which flushes the batch first
+		texture.onBind(this);
+		int textureId = texture.getId();
+		float alpha = getAlpha();
+		if (mBatch.needsFlush(texture, textureId, alpha)) {
+			flushBatch();
+		}
+
+		float top = source.top;
+		float bottom = source.bottom;
+		if (texture.isFlippedVertically()) {
+			top = source.bottom;
+			bottom = source.top;
+		}
+		mBatch.add(texture, textureId, alpha, mMatrices, mCurrentMatrixIndex, target.left,
+				target.top, target.right, target.bottom, source.left, top, source.right, bottom);
+		mCountBatchQuad++;
+	}
+
+	// Draws the collected quads with the mesh program in one call
+	private void flushBatch() {
+		QuadBatch<BasicTexture> batch = mBatch;
+		if (batch.isEmpty()) {
+			return;
+		}
+		int quads = batch.getQuadCount();
+		BasicTexture texture = batch.getTexture();
+		float alpha = batch.getAlpha();
+		batch.clear();
+
+		ShaderParameter[] params = mMeshParameters;
+		GLES20.glUseProgram(mMeshProgram);
+		checkError();
+		enableBlending(!texture.isOpaque() || alpha < OPAQUE_ALPHA);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		checkError();
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, batch.getTextureId());
+		checkError();
+		mCountBindTexture++;
+		GLES20.glUniform1i(params[INDEX_TEXTURE_SAMPLER].handle, 0);
+		checkError();
+		GLES20.glUniform1f(params[INDEX_ALPHA].handle, alpha);
+		checkError();
+		// The vertices are already transformed by the model view matrix
+		GLES20.glUniformMatrix4fv(params[INDEX_MATRIX].handle, 1, false, mProjectionMatrix, 0);
+		checkError();
+
+		// The quads and indices are drawn from client memory, which only
+		// works with no buffer objects bound. uploadBuffer() leaves its buffer
+		// bound, and nothing else may have unbound it since.
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		checkError();
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+		checkError();
+
+		FloatBuffer vertices = mBatchVertices;
+		vertices.clear();
+		vertices.put(batch.getData(), 0, quads * QuadBatch.QUAD_SIZE);
+		int positionHandle = params[INDEX_POSITION].handle;
+		vertices.position(0);
+		GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+				BATCH_VERTEX_STRIDE, vertices);
+		checkError();
+		int texCoordHandle = params[INDEX_TEXTURE_COORD].handle;
+		vertices.position(COORDS_PER_VERTEX);
+		GLES20.glVertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+				BATCH_VERTEX_STRIDE, vertices);
+		checkError();
+		GLES20.glEnableVertexAttribArray(positionHandle);
+		checkError();
+		GLES20.glEnableVertexAttribArray(texCoordHandle);
+		checkError();
+
+		mBatchIndices.position(0);
+		GLES20.glDrawElements(GLES20.GL_TRIANGLES, quads * BATCH_QUAD_INDICES, GLES20.GL_UNSIGNED_SHORT,
+				mBatchIndices);
+		checkError();
+
+		GLES20.glDisableVertexAttribArray(positionHandle);
+		checkError();
+		GLES20.glDisableVertexAttribArray(texCoordHandle);
+		checkError();
+		mCountBatch++;
+	}
+
 	@Override
 	public boolean unloadTexture(BasicTexture texture) {
 		boolean unload = texture.isLoaded();
@@ -756,6 +901,7 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void deleteRecycledResources() {
+		flushBatch();
 		synchronized (mUnboundTextures) {
 			IntArray ids = mUnboundTextures;
 			if (mUnboundTextures.size() > 0) {
@@ -773,12 +919,17 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void dumpStatisticsAndClear() {
-		String line = String.format("MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d", mCountDrawMesh,
-				mCountTextureRect, mCountFillRect, mCountDrawLine);
+		String line = String.format(
+				"MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d, BATCH:%d, BATCH_QUAD:%d, BIND:%d",
+				mCountDrawMesh, mCountTextureRect, mCountFillRect, mCountDrawLine, mCountBatch,
+				mCountBatchQuad, mCountBindTexture);
 		mCountDrawMesh = 0;
 		mCountTextureRect = 0;
 		mCountFillRect = 0;
 		mCountDrawLine = 0;
+		mCountBatch = 0;
+		mCountBatchQuad = 0;
+		mCountBindTexture = 0;
 		Log.d(TAG, line);
 	}
 
@@ -803,6 +954,7 @@ public class GLES20Canvas implements GLCanvas {
 	}
 
 	private void setRenderTarget(BasicTexture oldTexture, RawTexture texture) {
+		flushBatch();
 		if (oldTexture == null && texture != null) {
 			GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
 			checkError();
@@ -877,6 +1029,7 @@ public class GLES20Canvas implements GLCanvas {
 
 	@Override
 	public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
+		flushBatch();
 		int target = texture.getTarget();
 		GLES20.glBindTexture(target, texture.getId());
 		checkError();
@@ -886,6 +1039,7 @@ public class GLES20Canvas implements GLCanvas {
 	@Override
 	public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset, Bitmap bitmap, int format,
 			int type) {
+		flushBatch();
 		int target = texture.getTarget();
 		GLES20.glBindTexture(target, texture.getId());
 		checkError();
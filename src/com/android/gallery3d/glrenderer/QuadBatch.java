@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+// QuadBatch collects the texture draws of GLES20Canvas between beginBatch()
+// and endBatch(), and decides which of them share a draw call: consecutive
+// quads of the same texture, with the same id, at the same alpha. The quads
+// are transformed on the CPU, so they don't depend on the matrix when the
+// batch is drawn. There is nothing of GL here, the canvas draws the quads.
+class QuadBatch<T> {
+	// Quads are x, y, u, v per corner
+	static final int VERTEX_SIZE = 4;
+	static final int QUAD_SIZE = 4 * VERTEX_SIZE;
+
+	private final int mMaxQuads;
+	private final float[] mData;
+	private int mQuads;
+	private T mTexture;
+	// The id at the time of the draws, the texture may be recycled before
+	// the batch is drawn
+	private int mTextureId;
+	private float mAlpha;
+
+	QuadBatch(int maxQuads) {
+		mMaxQuads = maxQuads;
+		mData = new float[maxQuads * QUAD_SIZE];
+	}
+
+	// Quads are transformed by x and y only, which is exact as long as the
+	// matrix keeps them in the z = 0 plane, like 2D translations, scales and
+	// rotations do.
+	static boolean isAffine2D(float[] m, int offset) {
+		return m[offset + 2] == 0 && m[offset + 3] == 0 && m[offset + 6] == 0 && m[offset + 7] == 0
+				&& m[offset + 14] == 0 && m[offset + 15] == 1;
+	}
+
+	// Whether the batch has to be drawn before a quad of the texture can be
+	// added.
+	public boolean needsFlush(T texture, int textureId, float alpha) {
+		return mQuads == mMaxQuads
+				|| (mQuads > 0 && (texture != mTexture || textureId != mTextureId || alpha != mAlpha));
+	}
+
+	// Adds the target rectangle, transformed by the matrix at offset, with
+	// the texture coordinates of its top left and bottom right corners.
+	// needsFlush() must be false.
+	public void add(T texture, int textureId, float alpha, float[] m, int offset, float left,
+			float top, float right, float bottom, float u0, float v0, float u1, float v1) {
+		if (needsFlush(texture, textureId, alpha)) {
+			throw new IllegalStateException("Batch needs a flush!");
+		}
+		mTexture = texture;
+		mTextureId = textureId;
+		mAlpha = alpha;
+		int index = mQuads * QUAD_SIZE;
+		index = putVertex(index, m, offset, left, top, u0, v0);
+		index = putVertex(index, m, offset, right, top, u1, v0);
+		index = putVertex(index, m, offset, left, bottom, u0, v1);
+		putVertex(index, m, offset, right, bottom, u1, v1);
+		mQuads++;
+	}
+
+	private int putVertex(int index, float[] m, int offset, float x, float y, float u, float v) {
+		float[] data = mData;
+		data[index] = m[offset] * x + m[offset + 4] * y + m[offset + 12];
+		data[index + 1] = m[offset + 1] * x + m[offset + 5] * y + m[offset + 13];
+		data[index + 2] = u;
+		data[index + 3] = v;
+		return index + VERTEX_SIZE;
+	}
+
+	public boolean isEmpty() {
+		return mQuads == 0;
+	}
+
+	public int getQuadCount() {
+		return mQuads;
+	}
+
+	public float[] getData() {
+		return mData;
+	}
+
+	public T getTexture() {
+		return mTexture;
+	}
+
+	public int getTextureId() {
+		return mTextureId;
+	}
+
+	public float getAlpha() {
+		return mAlpha;
+	}
+
+	// Empties the batch. The data stays as it is until the next add().
+	public void clear() {
+		mQuads = 0;
+		mTexture = null;
+	}
+}
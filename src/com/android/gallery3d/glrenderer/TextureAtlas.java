@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.opengl.GLUtils;
+
+import com.android.gallery3d.common.Utils;
+
+// TextureAtlas packs small textures into shared pages, so drawing many of
+// them binds one texture instead of one each, and a batch of them (see
+// GLCanvas.beginBatch()) goes to GL in a single draw call.
+//
+// The slots of the regions are handed out by AtlasAllocator, sized to
+// powers of two and reused as regions come and go. A page is freed when its
+// last region is.
+//
+// Regions aren't padded, so drawTexture() keeps its samples half a texel
+// inside the region, or filtering would pick up the neighbours.
+//
+// The content is uploaded from ARGB_8888 bitmaps. Used from the GL thread
+// only.
+public class TextureAtlas {
+	private final boolean mOpaque;
+	private final AtlasAllocator mAllocator;
+
+	private final RectF mTempSource = new RectF();
+	private final RectF mTempTarget = new RectF();
+
+	public static class Region {
+		private final AtlasAllocator.Slot mSlot;
+		private final TexturePage mPage;
+		// The size of the content, at most the size of the slot
+		private int mWidth;
+		private int mHeight;
+		// The generation of the page the content was uploaded to, or -1
+		private int mGeneration = -1;
+
+		private Region(AtlasAllocator.Slot slot) {
+			mSlot = slot;
+			mPage = (TexturePage) slot.mPage;
+		}
+
+		public int getWidth() {
+			return mWidth;
+		}
+
+		public int getHeight() {
+			return mHeight;
+		}
+
+		// Whether content of the given size fits in the region.
+		public boolean fits(int width, int height) {
+			return width <= mSlot.getWidth() && height <= mSlot.getHeight();
+		}
+
+		// Clips the drawing of the region to the given size, for content that
+		// doesn't fill the uploaded bitmap.
+		public void setSize(int width, int height) {
+			mWidth = width;
+			mHeight = height;
+		}
+
+		// Whether the content on GPU is valid. It isn't after the GL context
+		// is lost, even once the page is created again.
+		public boolean isContentValid() {
+			return mGeneration == mPage.mTexture.mGeneration && mPage.mTexture.isLoaded();
+		}
+
+		public void invalidateContent() {
+			mGeneration = -1;
+		}
+	}
+
+	private static class TexturePage extends AtlasAllocator.Page {
+		public final PageTexture mTexture;
+
+		public TexturePage(int size, boolean opaque) {
+			mTexture = new PageTexture(size, opaque);
+		}
+	}
+
+	private static class PageTexture extends RawTexture {
+		// Counts the times the page was created in GL, see
+		// Region.isContentValid()
+		public int mGeneration;
+
+		public PageTexture(int size, boolean opaque) {
+			super(size, size, opaque);
+		}
+
+		@Override
+		protected void prepare(GLCanvas canvas) {
+			super.prepare(canvas);
+			mGeneration++;
+		}
+	}
+
+	// pageSize must be 2^N
+	public TextureAtlas(int pageSize, boolean opaque) {
+		mOpaque = opaque;
+		mAllocator = new AtlasAllocator(pageSize) {
+			@Override
+			protected AtlasAllocator.Page createPage() {
+				return new TexturePage(getPageSize(), mOpaque);
+			}
+
+			@Override
+			protected void onPageFreed(AtlasAllocator.Page page) {
+				((TexturePage) page).mTexture.recycle();
+			}
+		};
+	}
+
+	// Returns a region of at least the given size, or null if that is larger
+	// than a page.
+	public Region allocate(int width, int height) {
+		AtlasAllocator.Slot slot = mAllocator.allocate(width, height);
+		return slot != null ? new Region(slot) : null;
+	}
+
+	// Frees the region, which must not be used anymore.
+	public void free(Region region) {
+		region.mGeneration = -1;
+		mAllocator.free(region.mSlot);
+	}
+
+	// Uploads the bitmap to the top left of the region, and sets the size of
+	// the region to the size of the bitmap. Creates the page in GL if needed.
+	public void upload(GLCanvas canvas, Region region, Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		Utils.assertTrue(region.fits(width, height));
+		Utils.assertTrue(bitmap.getConfig() == Bitmap.Config.ARGB_8888);
+		PageTexture page = region.mPage.mTexture;
+		if (!page.isLoaded()) {
+			page.prepare(canvas);
+		}
+		canvas.texSubImage2D(page, region.mSlot.mX, region.mSlot.mY, bitmap,
+				GLUtils.getInternalFormat(bitmap), GLUtils.getType(bitmap));
+		region.mWidth = width;
+		region.mHeight = height;
+		region.mGeneration = page.mGeneration;
+	}
+
+	// Draws the source rectangle of the region, in the coordinates of the
+	// region, to the target rectangle. Like drawing a texture, the part of
+	// the source beyond the size of the region is clipped off, along with
+	// the matching part of the target.
+	public void drawTexture(GLCanvas canvas, Region region, RectF source, RectF target) {
+		RectF s = mTempSource;
+		RectF t = mTempTarget;
+		s.set(source);
+		t.set(target);
+		if (s.right > region.mWidth) {
+			t.right = t.left + t.width() * (region.mWidth - s.left) / s.width();
+			s.right = region.mWidth;
+		}
+		if (s.bottom > region.mHeight) {
+			t.bottom = t.top + t.height() * (region.mHeight - s.top) / s.height();
+			s.bottom = region.mHeight;
+		}
+		if (t.width() <= 0 || t.height() <= 0) {
+			return;
+		}
+		// Half a texel in from the edges of the region, which stretches its
+		// content by a texel
+		s.left = Math.max(s.left, 0.5f);
+		s.top = Math.max(s.top, 0.5f);
+		s.right = Math.min(s.right, region.mWidth - 0.5f);
+		s.bottom = Math.min(s.bottom, region.mHeight - 0.5f);
+		s.offset(region.mSlot.mX, region.mSlot.mY);
+		canvas.drawTexture(region.mPage.mTexture, s, t);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of mutable ARGB_8888 bitmaps to decode into with inBitmap, so tiles,
+ * previews and crop bands reuse each other's memory instead of allocating a
+ * bitmap per decode.
+ *
+ * Bitmaps are kept in size classes by the power of two of their allocation.
+ * Since KitKat a decoder takes any bitmap that is at least as large as what
+ * it decodes, so a request is served by the smallest class that fits, and the
+ * bitmap is reconfigured to the requested size.
+ *
+ * Thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class BitmapPool {
+	// Room for a screenful of tiles, or a preview and a few crop bands
+	private static final int MAX_SIZE = 16 * 1024 * 1024;
+	// A request doesn't take a bitmap of more than 4x its size, which is
+	// better left for a request of its own size
+	private static final int MAX_CLASS_DISTANCE = 2;
+
+	private static final BitmapPool sInstance = new BitmapPool(MAX_SIZE);
+
+	private final int mMaxSize;
+	// Bitmaps by size class, most recently put last. Guarded by this
+	private final SparseArray<ArrayList<Bitmap>> mClasses = new SparseArray<ArrayList<Bitmap>>();
+	private int mSize;
+
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/** The pool shared by the decoders of the wallpaper picker. */
+	public static BitmapPool getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Returns a pooled bitmap reconfigured to the given size, or null if none
+	 * is large enough.
+	 */
+	public Bitmap get(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		final int bytes = width * height * 4;
+		final int first = sizeClass(bytes);
+		Bitmap bitmap = null;
+		synchronized (this) {
+			for (int c = first; c <= first + MAX_CLASS_DISTANCE && bitmap == null; c++) {
+				ArrayList<Bitmap> bitmaps = mClasses.get(c);
+				if (bitmaps == null) {
+					continue;
+				}
+				// Only the smallest class may hold bitmaps too small
+				for (int i = bitmaps.size() - 1; i >= 0; i--) {
+					if (bitmaps.get(i).getAllocationByteCount() >= bytes) {
+						bitmap = bitmaps.remove(i);
+						mSize -= bitmap.getAllocationByteCount();
+						break;
+					}
+				}
+			}
+		}
+		if (bitmap != null) {
+			bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Gives a bitmap to the pool for reuse, if it can be decoded into. The
+	 * caller must not use it anymore.
+	 */
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+				|| bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			return;
+		}
+		final int bytes = bitmap.getAllocationByteCount();
+		if (bytes > mMaxSize / 2) {
+			return;
+		}
+		final int c = sizeClass(bytes);
+		synchronized (this) {
+			ArrayList<Bitmap> bitmaps = mClasses.get(c);
+			if (bitmaps == null) {
+				bitmaps = new ArrayList<Bitmap>();
+				mClasses.put(c, bitmaps);
+			} else if (bitmaps.contains(bitmap)) {
+				throw new IllegalStateException("Already in the pool!");
+			}
+			bitmaps.add(bitmap);
+			mSize += bytes;
+			trim();
+		}
+	}
+
+	/** Drops all pooled bitmaps. */
+	public synchronized void clear() {
+		mClasses.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Drops the oldest bitmaps of the largest classes until the pool fits,
+	 * which frees the most memory for the fewest bitmaps.
+	 */
+	private void trim() {
+		for (int i = mClasses.size() - 1; i >= 0 && mSize > mMaxSize; i--) {
+			ArrayList<Bitmap> bitmaps = mClasses.valueAt(i);
+			while (!bitmaps.isEmpty() && mSize > mMaxSize) {
+				mSize -= bitmaps.remove(0).getAllocationByteCount();
+			}
+		}
+	}
+
+	private static int sizeClass(int bytes) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(1, bytes));
+	}
+}
@@ -17,8 +17,11 @@
 package com.android.photos;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
@@ -28,23 +31,32 @@ import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.BitmapTexture;
 import com.android.photos.views.TiledImageRenderer;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 
 /**
  * A {@link com.android.photos.views.TiledImageRenderer.TileSource} using
- * {@link BitmapRegionDecoder} to wrap a local file
+ * {@link BitmapRegionDecoder} to wrap a local file. Tiles can be decoded on
+ * several threads, each decode uses a decoder of its own from a small pool.
+ * Decoded tiles are kept in a {@link DiskTileCache}, so opening the same
+ * image again doesn't decode it again.
  */
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
-public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
+public class BitmapRegionTileSource implements TiledImageRenderer.ConcurrentTileSource {
 
 	private static final String TAG = "BitmapRegionTileSource";
 
@@ -53,6 +65,8 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 	// This must be no larger than half the size of the GL_SIZE_LIMIT
 	// due to decodePreview being allowed to be up to 2x the size of the target
 	private static final int MAX_PREVIEW_SIZE = 1024;
+	// Decoders of a stream hold a copy of the whole file, so keep this small
+	private static final int MAX_DECODERS = 3;
 
 	BitmapRegionDecoder mDecoder;
 	int mWidth;
@@ -61,11 +75,23 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 	private BasicTexture mPreview;
 	private final int mRotation;
 
-	// For use only by getTile
-	private Rect mWantRegion = new Rect();
-	private Rect mOverlapRegion = new Rect();
+	// For use only by the constructor
 	private BitmapFactory.Options mOptions;
-	private Canvas mCanvas;
+
+	// To open more decoders of the same image
+	private final Resources mRes;
+	private final Context mContext;
+	private final String mPath;
+	private final Uri mUri;
+	private final int mResId;
+
+	// Decoders not in use by getTile, and the number opened so far. Guarded
+	// by mIdleDecoders
+	private final ArrayList<RegionDecoder> mIdleDecoders = new ArrayList<RegionDecoder>();
+	private int mDecoderCount;
+
+	// Decoded tiles of this image kept on disk, or null
+	private final DiskTileCache mCache;
 
 	public BitmapRegionTileSource(Context context, String path, int previewSize, int rotation) {
 		this(null, context, path, null, 0, previewSize, rotation);
@@ -83,23 +109,22 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 			int previewSize, int rotation) {
 		mTileSize = TiledImageRenderer.suggestedTileSize(context);
 		mRotation = rotation;
+		mRes = res;
+		mContext = context.getApplicationContext();
+		mPath = path;
+		mUri = uri;
+		mResId = resId;
 		try {
-			if (path != null) {
-				mDecoder = BitmapRegionDecoder.newInstance(path, true);
-			} else if (uri != null) {
-				InputStream is = context.getContentResolver().openInputStream(uri);
-				BufferedInputStream bis = new BufferedInputStream(is);
-				mDecoder = BitmapRegionDecoder.newInstance(bis, true);
-			} else {
-				InputStream is = res.openRawResource(resId);
-				BufferedInputStream bis = new BufferedInputStream(is);
-				mDecoder = BitmapRegionDecoder.newInstance(bis, true);
-			}
+			mDecoder = openDecoder();
 			mWidth = mDecoder.getWidth();
 			mHeight = mDecoder.getHeight();
+			mIdleDecoders.add(new RegionDecoder(mDecoder));
+			mDecoderCount = 1;
 		} catch (IOException e) {
 			Log.w("BitmapRegionTileSource", "ctor failed", e);
 		}
+		String cacheKey = mDecoderCount > 0 ? getCacheKey() : null;
+		mCache = cacheKey != null ? DiskTileCache.open(mContext, cacheKey, mTileSize) : null;
 		mOptions = new BitmapFactory.Options();
 		mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
 		mOptions.inPreferQualityOverSpeed = true;
@@ -146,64 +171,155 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 		return mRotation;
 	}
 
+	@Override
+	public int getMaxConcurrentDecodes() {
+		return MAX_DECODERS;
+	}
+
 	@Override
 	public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
-		int tileSize = getTileSize();
-		if (!REUSE_BITMAP) {
-			return getTileWithoutReusingBitmap(level, x, y, tileSize);
+		if (mCache != null) {
+			Bitmap cached = mCache.get(level, x, y, bitmap);
+			if (cached != null) {
+				return cached;
+			}
 		}
-
-		int t = tileSize << level;
-		mWantRegion.set(x, y, x + t, y + t);
-
-		if (bitmap == null) {
-			bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+		RegionDecoder decoder = acquireDecoder();
+		if (decoder == null) {
+			return null;
 		}
-
-		mOptions.inSampleSize = (1 << level);
-		mOptions.inBitmap = bitmap;
-
 		try {
-			bitmap = mDecoder.decodeRegion(mWantRegion, mOptions);
+			bitmap = decoder.getTile(level, x, y, bitmap);
 		} finally {
-			if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
-				mOptions.inBitmap = null;
+			synchronized (mIdleDecoders) {
+				mIdleDecoders.add(decoder);
+				mIdleDecoders.notify();
 			}
 		}
-
-		if (bitmap == null) {
-			Log.w("BitmapRegionTileSource", "fail in decoding region");
+		if (bitmap != null && mCache != null) {
+			mCache.put(level, x, y, bitmap);
 		}
 		return bitmap;
 	}
 
-	private Bitmap getTileWithoutReusingBitmap(int level, int x, int y, int tileSize) {
-
-		int t = tileSize << level;
-		mWantRegion.set(x, y, x + t, y + t);
-
-		mOverlapRegion.set(0, 0, mWidth, mHeight);
-
-		mOptions.inSampleSize = (1 << level);
-		Bitmap bitmap = mDecoder.decodeRegion(mOverlapRegion, mOptions);
+	/**
+	 * Identity of the image for the tile cache, including its size and
+	 * modification time so an edited image isn't drawn from stale tiles.
+	 * Returns null if the image can't be told apart from a changed one.
+	 */
+	private String getCacheKey() {
+		if (mPath != null) {
+			return getFileCacheKey(new File(mPath));
+		} else if (mUri != null) {
+			if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+				return getFileCacheKey(new File(mUri.getPath()));
+			}
+			Cursor cursor = null;
+			try {
+				cursor = mContext.getContentResolver().query(mUri, null, null, null, null);
+				if (cursor == null || !cursor.moveToFirst()) {
+					return null;
+				}
+				int dateIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+				if (dateIndex < 0) {
+					dateIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+				}
+				if (dateIndex < 0 || cursor.isNull(dateIndex)) {
+					return null;
+				}
+				int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+				long size = sizeIndex >= 0 ? cursor.getLong(sizeIndex) : -1;
+				return "uri:" + mUri + ":" + size + ":" + cursor.getLong(dateIndex);
+			} catch (RuntimeException e) {
+				// Providers may refuse queries they don't know
+				Log.w(TAG, "can't query " + mUri, e);
+				return null;
+			} finally {
+				Utils.closeSilently(cursor);
+			}
+		} else {
+			try {
+				String packageName = mRes.getResourcePackageName(mResId);
+				long updateTime = mContext.getPackageManager().getPackageInfo(packageName, 0).lastUpdateTime;
+				return "res:" + mRes.getResourceName(mResId) + ":" + updateTime;
+			} catch (Resources.NotFoundException e) {
+				return null;
+			} catch (PackageManager.NameNotFoundException e) {
+				return null;
+			}
+		}
+	}
 
-		if (bitmap == null) {
-			Log.w(TAG, "fail in decoding region");
+	private static String getFileCacheKey(File file) {
+		if (!file.isFile()) {
+			return null;
 		}
+		return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+	}
 
-		if (mWantRegion.equals(mOverlapRegion)) {
-			return bitmap;
+	/**
+	 * Takes an idle decoder, opening a new one if all of them are busy and
+	 * there is room for more.
+	 */
+	private RegionDecoder acquireDecoder() {
+		synchronized (mIdleDecoders) {
+			while (mIdleDecoders.isEmpty()) {
+				if (mDecoderCount == 0) {
+					// The image could not be opened at all
+					return null;
+				}
+				if (mDecoderCount < MAX_DECODERS) {
+					mDecoderCount++;
+					break;
+				}
+				try {
+					mIdleDecoders.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			if (!mIdleDecoders.isEmpty()) {
+				return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+			}
 		}
+		// Open the new decoder outside the lock, it reads the whole header
+		try {
+			return new RegionDecoder(openDecoder());
+		} catch (IOException e) {
+			Log.w(TAG, "failed to open another decoder", e);
+		}
+		synchronized (mIdleDecoders) {
+			mDecoderCount--;
+			while (mIdleDecoders.isEmpty()) {
+				try {
+					mIdleDecoders.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			return mIdleDecoders.remove(mIdleDecoders.size() - 1);
+		}
+	}
 
-		Bitmap result = Bitmap.createBitmap(tileSize, tileSize, Config.ARGB_8888);
-		if (mCanvas == null) {
-			mCanvas = new Canvas();
+	private BitmapRegionDecoder openDecoder() throws IOException {
+		if (mPath != null) {
+			return BitmapRegionDecoder.newInstance(mPath, true);
+		}
+		InputStream is;
+		if (mUri != null) {
+			is = mContext.getContentResolver().openInputStream(mUri);
+		} else {
+			is = mRes.openRawResource(mResId);
+		}
+		// The decoder keeps its own copy of the stream
+		BufferedInputStream bis = new BufferedInputStream(is);
+		try {
+			return BitmapRegionDecoder.newInstance(bis, true);
+		} finally {
+			Utils.closeSilently(bis);
 		}
-		mCanvas.setBitmap(result);
-		mCanvas.drawBitmap(bitmap, (mOverlapRegion.left - mWantRegion.left) >> level,
-				(mOverlapRegion.top - mWantRegion.top) >> level, null);
-		mCanvas.setBitmap(null);
-		return result;
 	}
 
 	/**
@@ -212,24 +328,20 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 	 */
 	private Bitmap decodePreview(Resources res, Context context, String file, Uri uri, int resId,
 			int targetSize) {
-		float scale = (float) targetSize / Math.max(mWidth, mHeight);
-		mOptions.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
+		DecodePlanner.Plan plan = DecodePlanner.planLongEdge(mWidth, mHeight, targetSize);
+		DecodePlanner.prepare(plan, mOptions);
 		mOptions.inJustDecodeBounds = false;
 
-		Bitmap result = null;
-		if (file != null) {
-			result = BitmapFactory.decodeFile(file, mOptions);
-		} else if (uri != null) {
-			try {
-				InputStream is = context.getContentResolver().openInputStream(uri);
-				BufferedInputStream bis = new BufferedInputStream(is);
-				result = BitmapFactory.decodeStream(bis, null, mOptions);
-			} catch (IOException e) {
-				Log.w("BitmapRegionTileSource", "getting preview failed", e);
-			}
-		} else {
-			result = BitmapFactory.decodeResource(res, resId, mOptions);
+		Bitmap result;
+		try {
+			result = decodeBitmap(res, context, file, uri, resId);
+		} catch (IllegalArgumentException e) {
+			// The decoder can't use the pooled bitmap, decode without it
+			BitmapPool.getInstance().put(mOptions.inBitmap);
+			mOptions.inBitmap = null;
+			result = decodeBitmap(res, context, file, uri, resId);
 		}
+		mOptions.inBitmap = null;
 		if (result == null) {
 			return null;
 		}
@@ -237,14 +349,35 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 		// We need to resize down if the decoder does not support inSampleSize
 		// or didn't support the specified inSampleSize (some decoders only do
 		// powers of 2)
-		scale = (float) targetSize / (float) (Math.max(result.getWidth(), result.getHeight()));
+		float scale = (float) targetSize / (float) (Math.max(result.getWidth(), result.getHeight()));
 
 		if (scale <= 0.5) {
-			result = BitmapUtils.resizeBitmapByScale(result, scale, true);
+			Bitmap resized = BitmapUtils.resizeBitmapByScale(result, scale, false);
+			BitmapPool.getInstance().put(result);
+			result = resized;
 		}
 		return ensureGLCompatibleBitmap(result);
 	}
 
+	private Bitmap decodeBitmap(Resources res, Context context, String file, Uri uri, int resId) {
+		if (file != null) {
+			return BitmapFactory.decodeFile(file, mOptions);
+		} else if (uri != null) {
+			BufferedInputStream bis = null;
+			try {
+				InputStream is = context.getContentResolver().openInputStream(uri);
+				bis = new BufferedInputStream(is);
+				return BitmapFactory.decodeStream(bis, null, mOptions);
+			} catch (IOException e) {
+				Log.w("BitmapRegionTileSource", "getting preview failed", e);
+				return null;
+			} finally {
+				Utils.closeSilently(bis);
+			}
+		}
+		return BitmapFactory.decodeResource(res, resId, mOptions);
+	}
+
 	private static Bitmap ensureGLCompatibleBitmap(Bitmap bitmap) {
 		if (bitmap == null || bitmap.getConfig() != null) {
 			return bitmap;
@@ -253,4 +386,85 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
 		bitmap.recycle();
 		return newBitmap;
 	}
+
+	/**
+	 * A decoder with the options and scratch objects of its own, used by one
+	 * thread at a time.
+	 */
+	private class RegionDecoder {
+		private final BitmapRegionDecoder mRegionDecoder;
+		private final Rect mWantRegion = new Rect();
+		private final Rect mOverlapRegion = new Rect();
+		private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+		private Canvas mCanvas;
+
+		RegionDecoder(BitmapRegionDecoder decoder) {
+			mRegionDecoder = decoder;
+			mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			mOptions.inPreferQualityOverSpeed = true;
+			mOptions.inTempStorage = new byte[16 * 1024];
+		}
+
+		Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
+			int tileSize = getTileSize();
+			if (!REUSE_BITMAP) {
+				return getTileWithoutReusingBitmap(level, x, y, tileSize);
+			}
+
+			int t = tileSize << level;
+			mWantRegion.set(x, y, x + t, y + t);
+
+			if (bitmap == null) {
+				bitmap = BitmapPool.getInstance().get(tileSize, tileSize);
+			}
+			if (bitmap == null) {
+				bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+			}
+
+			mOptions.inSampleSize = (1 << level);
+			mOptions.inBitmap = bitmap;
+
+			try {
+				bitmap = mRegionDecoder.decodeRegion(mWantRegion, mOptions);
+			} finally {
+				if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
+					mOptions.inBitmap = null;
+				}
+			}
+
+			if (bitmap == null) {
+				Log.w("BitmapRegionTileSource", "fail in decoding region");
+			}
+			return bitmap;
+		}
+
+		private Bitmap getTileWithoutReusingBitmap(int level, int x, int y, int tileSize) {
+
+			int t = tileSize << level;
+			mWantRegion.set(x, y, x + t, y + t);
+
+			mOverlapRegion.set(0, 0, mWidth, mHeight);
+
+			mOptions.inSampleSize = (1 << level);
+			Bitmap bitmap = mRegionDecoder.decodeRegion(mOverlapRegion, mOptions);
+
+			if (bitmap == null) {
+				Log.w(TAG, "fail in decoding region");
+			}
+
+			if (mWantRegion.equals(mOverlapRegion)) {
+				return bitmap;
+			}
+
+			Bitmap result = Bitmap.createBitmap(tileSize, tileSize, Config.ARGB_8888);
+			if (mCanvas == null) {
+				mCanvas = new Canvas();
+			}
+			mCanvas.setBitmap(result);
+			mCanvas.drawBitmap(bitmap, (mOverlapRegion.left - mWantRegion.left) >> level,
+					(mOverlapRegion.top - mWantRegion.top) >> level, null);
+			mCanvas.setBitmap(null);
+			return result;
+		}
+	}
 }
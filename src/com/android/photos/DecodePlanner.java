@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.android.gallery3d.common.Utils;
+
+/**
+ * Plans how to decode an image, or a region of it, for the size it will be
+ * drawn at: the largest sample size the decoders do exactly that still gives
+ * at least the output's pixels, the size of the result, and a bitmap from the
+ * {@link BitmapPool} to decode it into. Shared by the preview, tile and crop
+ * decodes of the wallpaper picker.
+ */
+public class DecodePlanner {
+
+	/** How to decode a region, see {@link #plan(Rect, int, int)}. */
+	public static class Plan {
+		/** The region of the image to decode. */
+		public final Rect region = new Rect();
+		/** The sample size to decode it at. */
+		public int sampleSize = 1;
+		/** The size of the decoded bitmap, rounded up. */
+		public int width;
+		public int height;
+
+		void set(Rect region, int sampleSize) {
+			this.region.set(region);
+			this.sampleSize = sampleSize;
+			width = (region.width() + sampleSize - 1) / sampleSize;
+			height = (region.height() + sampleSize - 1) / sampleSize;
+		}
+	}
+
+	private DecodePlanner() {
+	}
+
+	/**
+	 * Plans decoding the region so the result is at least minWidth by
+	 * minHeight, or the whole region if it is smaller than that.
+	 */
+	public static Plan plan(Rect region, int minWidth, int minHeight) {
+		Plan plan = new Plan();
+		plan.set(region, getSampleSize(region.width(), region.height(), minWidth, minHeight));
+		return plan;
+	}
+
+	/** Plans decoding the region at the given sample size. */
+	public static Plan plan(Rect region, int sampleSize) {
+		Plan plan = new Plan();
+		plan.set(region, Math.max(1, sampleSize));
+		return plan;
+	}
+
+	/**
+	 * Plans decoding a whole image so the long edge of the result is at least
+	 * the given size.
+	 */
+	public static Plan planLongEdge(int width, int height, int minLongEdge) {
+		Plan plan = new Plan();
+		int longEdge = Math.max(width, height);
+		plan.set(new Rect(0, 0, width, height), getSampleSize(longEdge, longEdge, minLongEdge, minLongEdge));
+		return plan;
+	}
+
+	/**
+	 * Returns the largest sample size that keeps width by height at least
+	 * minWidth by minHeight. JPEG decodes at 1/2, 1/4 and 1/8 of its size
+	 * exactly and filtered, other sizes drop rows and columns, so the sample
+	 * size is a power of two up to 8 and a multiple of 8 above.
+	 */
+	public static int getSampleSize(int width, int height, int minWidth, int minHeight) {
+		if (minWidth <= 0 || minHeight <= 0) {
+			return 1;
+		}
+		int sampleSize = Math.min(width / minWidth, height / minHeight);
+		if (sampleSize <= 1) {
+			return 1;
+		}
+		return sampleSize <= 8 ? Utils.prevPowerOf2(sampleSize) : sampleSize / 8 * 8;
+	}
+
+	/**
+	 * Sets up options to decode as planned, into a bitmap from the pool if it
+	 * has one that fits.
+	 */
+	public static void prepare(Plan plan, BitmapFactory.Options options) {
+		options.inSampleSize = plan.sampleSize;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inMutable = true;
+		options.inBitmap = BitmapPool.getInstance().get(plan.width, plan.height);
+	}
+
+	/**
+	 * Decodes the planned region, into a pooled bitmap when the decoder takes
+	 * it. Returns null if the region can't be decoded.
+	 */
+	public static Bitmap decodeRegion(BitmapRegionDecoder decoder, Plan plan, BitmapFactory.Options options) {
+		prepare(plan, options);
+		try {
+			return decoder.decodeRegion(plan.region, options);
+		} catch (IllegalArgumentException e) {
+			// The decoder can't use the pooled bitmap, decode without it
+			BitmapPool.getInstance().put(options.inBitmap);
+			options.inBitmap = null;
+			return decoder.decodeRegion(plan.region, options);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of decoded tiles, so opening the same image again draws
+ * from the cache instead of decoding the image again. Each tile is a file of
+ * raw ARGB_8888 pixels behind a small header, which is memory-mapped straight
+ * into a tile bitmap.
+ *
+ * The tiles of an image live in a directory named by a hash of the image's
+ * identity. Opening an image marks its directory as recently used, and the
+ * least recently used directories are removed when the cache grows too big.
+ * Opening an image makes room for all the tiles it may add, so the cache
+ * stays within its size while the image is shown.
+ *
+ * Thread safe, tiles can be read and written from several decoder threads.
+ */
+class DiskTileCache {
+	private static final String TAG = "DiskTileCache";
+
+	private static final String DIR_NAME = "wallpaper_tiles";
+	private static final long MAX_CACHE_SIZE = 64 * 1024 * 1024;
+	// A single image can't push every other image out of the cache
+	private static final long MAX_IMAGE_SIZE = 32 * 1024 * 1024;
+
+	private static final int MAGIC = 0x54696c65; // "Tile"
+	// magic, width, height
+	private static final int HEADER_SIZE = 12;
+
+	private final File mDir;
+	private final int mTileSize;
+	// Bytes of this image's tiles on disk, guarded by this
+	private long mSize;
+
+	private DiskTileCache(File dir, int tileSize, long size) {
+		mDir = dir;
+		mTileSize = tileSize;
+		mSize = size;
+	}
+
+	/**
+	 * Opens the cache for the image with the given identity, which must change
+	 * whenever the image does. Returns null if the cache can't be created.
+	 */
+	static DiskTileCache open(Context context, String key, int tileSize) {
+		File root = new File(context.getCacheDir(), DIR_NAME);
+		File dir = new File(root, Long.toHexString(Utils.crc64Long(key + ":" + tileSize)));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w(TAG, "can't create " + dir);
+			return null;
+		}
+		dir.setLastModified(System.currentTimeMillis());
+		trim(root, dir);
+		return new DiskTileCache(dir, tileSize, sizeOf(dir));
+	}
+
+	/**
+	 * Returns the cached tile, read into bitmap if it is suitable or into a
+	 * new bitmap otherwise. Returns null if the tile is not cached.
+	 */
+	Bitmap get(int level, int x, int y, Bitmap bitmap) {
+		File file = getFile(level, x, y);
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length < HEADER_SIZE) {
+				throw new IOException("truncated tile");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			int width = buffer.getInt(4);
+			int height = buffer.getInt(8);
+			if (buffer.getInt(0) != MAGIC || width <= 0 || width > mTileSize || height <= 0
+					|| height > mTileSize || length != HEADER_SIZE + width * height * 4) {
+				throw new IOException("bad tile header");
+			}
+			if (bitmap == null || !bitmap.isMutable() || bitmap.getWidth() != width
+					|| bitmap.getHeight() != height || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+				bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+			buffer.position(HEADER_SIZE);
+			bitmap.copyPixelsFromBuffer(buffer);
+			return bitmap;
+		} catch (IOException e) {
+			Log.w(TAG, "dropping bad tile " + file, e);
+			remove(file);
+			return null;
+		} finally {
+			Utils.closeSilently(raf);
+		}
+	}
+
+	/** Writes a decoded tile to the cache, unless the image is out of room. */
+	void put(int level, int x, int y, Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if (bitmap.getConfig() != Bitmap.Config.ARGB_8888 || bitmap.getRowBytes() != width * 4
+				|| width > mTileSize || height > mTileSize) {
+			return;
+		}
+		long length = HEADER_SIZE + width * height * 4;
+		File file = getFile(level, x, y);
+		if (file.exists()) {
+			// Another decoder thread got to it first
+			return;
+		}
+		synchronized (this) {
+			if (mSize + length > MAX_IMAGE_SIZE) {
+				return;
+			}
+			mSize += length;
+		}
+
+		// Write to a temp file, so readers never see half a tile
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = null;
+		boolean written = false;
+		try {
+			raf = new RandomAccessFile(tmp, "rw");
+			raf.setLength(length);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buffer.putInt(MAGIC).putInt(width).putInt(height);
+			bitmap.copyPixelsToBuffer(buffer);
+			raf.close();
+			raf = null;
+			// The tile may have been written meanwhile, and is replaced
+			long replaced = file.length();
+			written = tmp.renameTo(file);
+			if (written && replaced > 0) {
+				synchronized (this) {
+					mSize -= replaced;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "failed to cache tile " + file, e);
+		} catch (RuntimeException e) {
+			// copyPixelsToBuffer throws if the bitmap doesn't fit
+			Log.w(TAG, "failed to cache tile " + file, e);
+		} finally {
+			Utils.closeSilently(raf);
+			if (!written) {
+				tmp.delete();
+				synchronized (this) {
+					mSize -= length;
+				}
+			}
+		}
+	}
+
+	private File getFile(int level, int x, int y) {
+		return new File(mDir, level + "_" + x + "_" + y);
+	}
+
+	private void remove(File file) {
+		long length = file.length();
+		if (file.delete()) {
+			synchronized (this) {
+				mSize -= length;
+			}
+		}
+	}
+
+	private static long sizeOf(File dir) {
+		long size = 0;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes the least recently opened images until the cache fits, with
+	 * the most the kept image can grow to counted for it.
+	 */
+	private static void trim(File root, File keep) {
+		File[] dirs = root.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		Arrays.sort(dirs, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				// Most recently used first
+				return Utils.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long total = MAX_IMAGE_SIZE;
+		for (File dir : dirs) {
+			if (dir.equals(keep)) {
+				continue;
+			}
+			long size = sizeOf(dir);
+			if (total + size <= MAX_CACHE_SIZE) {
+				total += size;
+				continue;
+			}
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+}
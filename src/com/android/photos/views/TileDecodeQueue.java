@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos.views;
+
+/**
+ * Tiles waiting to be decoded, in a binary heap ordered by
+ * {@link #getDecodePriority}. Unlike a plain queue, tiles can be removed from
+ * the middle and reordered in place, each tile keeps its position in the
+ * heap. Not thread safe, TiledImageRenderer guards it with its queue lock.
+ */
+class TileDecodeQueue<T extends TileDecodeQueue.Entry> {
+	// Levels are below this, the image is at most 65536 pixels wide
+	static final int MAX_LEVEL = 32;
+
+	/** A tile as the queue sees it. */
+	static class Entry {
+		public int mX;
+		public int mY;
+		public int mTileLevel;
+		// Position in the queue, or -1
+		int mDecodeIndex = -1;
+		long mDecodePriority;
+
+		Entry(int x, int y, int level) {
+			mX = x;
+			mY = y;
+			mTileLevel = level;
+		}
+
+		public boolean isQueued() {
+			return mDecodeIndex >= 0;
+		}
+	}
+
+	private Entry[] mHeap = new Entry[16];
+	private int mSize;
+
+	/**
+	 * Lower decodes first: coarser levels first, as they cover the most of
+	 * the view, then by the distance of the tile to the center of the view.
+	 */
+	static long getDecodePriority(int level, int x, int y, int tileSize, int centerX, int centerY) {
+		int size = tileSize << level;
+		long dx = x + size / 2 - centerX;
+		long dy = y + size / 2 - centerY;
+		// Coordinates fit in 17 bits, so the squared distance stays below 2^40
+		return ((long) (MAX_LEVEL - level) << 40) | (dx * dx + dy * dy);
+	}
+
+	@SuppressWarnings("unchecked")
+	public T pop() {
+		if (mSize == 0) {
+			return null;
+		}
+		Entry tile = mHeap[0];
+		removeAt(0);
+		return (T) tile;
+	}
+
+	/**
+	 * Adds the tile, or moves it if it is already queued. Returns whether the
+	 * queue was empty.
+	 */
+	public boolean push(T tile, long priority) {
+		boolean wasEmpty = mSize == 0;
+		tile.mDecodePriority = priority;
+		if (tile.mDecodeIndex >= 0) {
+			siftDown(siftUp(tile.mDecodeIndex));
+			return wasEmpty;
+		}
+		if (mSize == mHeap.length) {
+			Entry[] heap = new Entry[mSize * 2];
+			System.arraycopy(mHeap, 0, heap, 0, mSize);
+			mHeap = heap;
+		}
+		mHeap[mSize] = tile;
+		tile.mDecodeIndex = mSize;
+		siftUp(mSize++);
+		return wasEmpty;
+	}
+
+	public void remove(T tile) {
+		if (tile.mDecodeIndex >= 0) {
+			removeAt(tile.mDecodeIndex);
+		}
+	}
+
+	/** Recomputes the priority of every tile, after the view moved. */
+	public void updatePriorities(int tileSize, int centerX, int centerY) {
+		for (int i = 0; i < mSize; i++) {
+			Entry tile = mHeap[i];
+			tile.mDecodePriority = getDecodePriority(tile.mTileLevel, tile.mX, tile.mY, tileSize,
+					centerX, centerY);
+		}
+		for (int i = mSize / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public void clean() {
+		for (int i = 0; i < mSize; i++) {
+			mHeap[i].mDecodeIndex = -1;
+			mHeap[i] = null;
+		}
+		mSize = 0;
+	}
+
+	private void removeAt(int index) {
+		Entry tile = mHeap[index];
+		tile.mDecodeIndex = -1;
+		Entry last = mHeap[--mSize];
+		mHeap[mSize] = null;
+		if (index < mSize) {
+			mHeap[index] = last;
+			last.mDecodeIndex = index;
+			siftDown(siftUp(index));
+		}
+	}
+
+	private int siftUp(int index) {
+		Entry tile = mHeap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (mHeap[parent].mDecodePriority <= tile.mDecodePriority) {
+				break;
+			}
+			mHeap[index] = mHeap[parent];
+			mHeap[index].mDecodeIndex = index;
+			index = parent;
+		}
+		mHeap[index] = tile;
+		tile.mDecodeIndex = index;
+		return index;
+	}
+
+	private void siftDown(int index) {
+		Entry tile = mHeap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= mSize) {
+				break;
+			}
+			if (child + 1 < mSize && mHeap[child + 1].mDecodePriority < mHeap[child].mDecodePriority) {
+				child++;
+			}
+			if (tile.mDecodePriority <= mHeap[child].mDecodePriority) {
+				break;
+			}
+			mHeap[index] = mHeap[child];
+			mHeap[index].mDecodeIndex = index;
+			index = child;
+		}
+		mHeap[index] = tile;
+		tile.mDecodeIndex = index;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.photos.views;
+
+/**
+ * Decides how many tiles {@link TiledImageRenderer} uploads per frame. It
+ * measures what an upload costs and how much of the frame the rest of the
+ * drawing takes, and fills the slack with as many uploads as fit. Slow
+ * devices stay at one upload per frame, fast ones catch up after a fling in
+ * a few frames instead of one tile at a time.
+ *
+ * Used from the GL thread only, except for {@link #getStats(Stats)}.
+ */
+public class TileUploadScheduler {
+	private static final long FRAME_BUDGET_NANOS = 1000000000L / 60;
+	// Leave room for what happens outside of draw(), like swapping buffers
+	private static final long USABLE_BUDGET_NANOS = FRAME_BUDGET_NANOS * 3 / 4;
+	// Guess for a 256x256 tile until the first upload is measured
+	private static final long INITIAL_UPLOAD_COST_NANOS = 2000000L;
+
+	private static final int MIN_QUOTA = 1;
+	private static final int MAX_QUOTA = 8;
+
+	// Weight of a new sample in the running averages, as a shift: 1/8
+	private static final int AVERAGE_SHIFT = 3;
+
+	/**
+	 * Snapshot of the scheduler's state, see {@link #getStats(Stats)}.
+	 */
+	public static class Stats {
+		/** Uploads allowed in the next frame. */
+		public int quota;
+		/** Average time of a single tile upload. */
+		public long uploadCostNanos;
+		/** Average time of a frame's drawing, without the uploads. */
+		public long frameCostNanos;
+		/** Uploads done in the last frame. */
+		public int lastFrameUploads;
+		/** Uploads done since the renderer was created. */
+		public long totalUploads;
+	}
+
+	// Guarded by this, for getStats
+	private int mQuota = MIN_QUOTA;
+	private long mUploadCost = INITIAL_UPLOAD_COST_NANOS;
+	private long mFrameCost;
+	private boolean mHasFrameCost;
+	private int mLastFrameUploads;
+	private long mTotalUploads;
+
+	// Of the frame being drawn
+	private long mFrameStart;
+	private long mFrameUploadTime;
+	private int mFrameUploads;
+
+	/** Starts a frame, and returns how many tiles it may upload. */
+	int beginFrame() {
+		mFrameStart = System.nanoTime();
+		mFrameUploadTime = 0;
+		mFrameUploads = 0;
+		return mQuota;
+	}
+
+	/** Records an upload that took the given time. */
+	void onUpload(long nanos) {
+		mFrameUploadTime += nanos;
+		mFrameUploads++;
+		synchronized (this) {
+			mUploadCost += (nanos - mUploadCost) >> AVERAGE_SHIFT;
+		}
+	}
+
+	/** Ends the frame, and decides the quota of the next one. */
+	void endFrame() {
+		long frameCost = Math.max(0, System.nanoTime() - mFrameStart - mFrameUploadTime);
+		synchronized (this) {
+			if (mHasFrameCost) {
+				mFrameCost += (frameCost - mFrameCost) >> AVERAGE_SHIFT;
+			} else {
+				mFrameCost = frameCost;
+				mHasFrameCost = true;
+			}
+
+			long slack = USABLE_BUDGET_NANOS - mFrameCost;
+			int quota = (int) Math.max(MIN_QUOTA, Math.min(MAX_QUOTA, slack / Math.max(1, mUploadCost)));
+			// Back off at once when frames get slow, but grow one at a time
+			// so a single cheap frame doesn't cause a burst of uploads
+			mQuota = Math.min(quota, mQuota + 1);
+			mLastFrameUploads = mFrameUploads;
+			mTotalUploads += mFrameUploads;
+		}
+	}
+
+	/** Fills out with the current state, can be called from any thread. */
+	public synchronized void getStats(Stats out) {
+		out.quota = mQuota;
+		out.uploadCostNanos = mUploadCost;
+		out.frameCostNanos = mFrameCost;
+		out.lastFrameUploads = mLastFrameUploads;
+		out.totalUploads = mTotalUploads;
+	}
+}
@@ -20,18 +20,18 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.support.v4.util.LongSparseArray;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.Pools.Pool;
-import android.util.Pools.SynchronizedPool;
 import android.view.View;
 import android.view.WindowManager;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.GLCanvas;
-import com.android.gallery3d.glrenderer.UploadedTexture;
+import com.android.gallery3d.glrenderer.TextureAtlas;
+import com.android.photos.BitmapPool;
 
 /**
  * Handles laying out, decoding, and drawing of tiles in GL
@@ -40,7 +40,15 @@ public class TiledImageRenderer {
 	public static final int SIZE_UNKNOWN = -1;
 
 	private static final String TAG = "TiledImageRenderer";
-	private static final int UPLOAD_LIMIT = 1;
+
+	// How far ahead tiles are prefetched along the pan and zoom
+	private static final long PREFETCH_AHEAD_MS = 300;
+	// A pause longer than this between moves ends the motion
+	private static final long VELOCITY_TIMEOUT_MS = 100;
+
+	// Leave a core for the UI and GL threads
+	private static final int DECODER_THREADS = Math.max(1,
+			Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
 
 	/*
 	 * This is the tile state in the CPU side. Life of a Tile: ACTIVATED
@@ -60,11 +68,15 @@ public class TiledImageRenderer {
 	private static final int STATE_RECYCLING = 0x20;
 	private static final int STATE_RECYCLED = 0x40;
 
-	private static Pool<Bitmap> sTilePool = new SynchronizedPool<Bitmap>(64);
-
 	// TILE_SIZE must be 2^N
 	private int mTileSize;
 
+	// Tiles are uploaded to shared pages, so the tiles of a frame are drawn
+	// with a few draw calls instead of one each. Holds 64 tiles of 256, or
+	// 16 of 512
+	private static final int ATLAS_PAGE_SIZE = 2048;
+	private final TextureAtlas mAtlas = new TextureAtlas(ATLAS_PAGE_SIZE, true);
+
 	private TileSource mModel;
 	private BasicTexture mPreview;
 	protected int mLevelCount; // cache the value of mScaledBitmaps.length
@@ -82,6 +94,7 @@ public class TiledImageRenderer {
 
 	private int mUploadQuota;
 	private boolean mRenderComplete;
+	private final TileUploadScheduler mUploadScheduler = new TileUploadScheduler();
 
 	private final RectF mSourceRect = new RectF();
 	private final RectF mTargetRect = new RectF();
@@ -92,7 +105,11 @@ public class TiledImageRenderer {
 	private final Object mQueueLock = new Object();
 	private final TileQueue mRecycledQueue = new TileQueue();
 	private final TileQueue mUploadQueue = new TileQueue();
-	private final TileQueue mDecodeQueue = new TileQueue();
+	private final TileDecodeQueue<Tile> mDecodeQueue = new TileDecodeQueue<Tile>();
+	// Number of tiles being decoded, and how many the model can decode at
+	// once. Also guarded by mQueueLock
+	private int mDecodesInFlight;
+	private int mMaxDecodes = 1;
 
 	// The width and height of the full-sized bitmap
 	protected int mImageWidth = SIZE_UNKNOWN;
@@ -108,8 +125,15 @@ public class TiledImageRenderer {
 	// Temp variables to avoid memory allocation
 	private final Rect mTileRange = new Rect();
 	private final Rect mActiveRange[] = { new Rect(), new Rect() };
+	private final Rect mPrefetchRange = new Rect();
+
+	// Smoothed motion of the view, in image pixels and log scale per ms
+	private float mVelocityX;
+	private float mVelocityY;
+	private float mScaleVelocity;
+	private long mLastMoveTime;
 
-	private TileDecoder mTileDecoder;
+	private final TileDecoder[] mTileDecoders;
 	private boolean mBackgroundTileUploaded;
 
 	private int mViewWidth, mViewHeight;
@@ -154,6 +178,19 @@ public class TiledImageRenderer {
 		public Bitmap getTile(int level, int x, int y, Bitmap reuse);
 	}
 
+	/**
+	 * A {@link TileSource} that can decode several tiles at once. Plain
+	 * sources only get one call to getTile at a time.
+	 */
+	public static interface ConcurrentTileSource extends TileSource {
+
+		/**
+		 * The number of calls to {@link #getTile(int, int, int, Bitmap)} that
+		 * may run at the same time, from different decoder threads.
+		 */
+		public int getMaxConcurrentDecodes();
+	}
+
 	public static int suggestedTileSize(Context context) {
 		return isHighResolution(context) ? 512 : 256;
 	}
@@ -167,8 +204,11 @@ public class TiledImageRenderer {
 
 	public TiledImageRenderer(View parent) {
 		mParent = parent;
-		mTileDecoder = new TileDecoder();
-		mTileDecoder.start();
+		mTileDecoders = new TileDecoder[DECODER_THREADS];
+		for (int i = 0; i < mTileDecoders.length; i++) {
+			mTileDecoders[i] = new TileDecoder();
+			mTileDecoders[i].start();
+		}
 	}
 
 	public int getViewWidth() {
@@ -211,6 +251,15 @@ public class TiledImageRenderer {
 
 	public void notifyModelInvalidated() {
 		invalidateTiles();
+		int maxDecodes = 1;
+		if (mModel instanceof ConcurrentTileSource) {
+			maxDecodes = Utils.clamp(((ConcurrentTileSource) mModel).getMaxConcurrentDecodes(), 1,
+					DECODER_THREADS);
+		}
+		synchronized (mQueueLock) {
+			mMaxDecodes = maxDecodes;
+			mQueueLock.notifyAll();
+		}
 		if (mModel == null) {
 			mImageWidth = 0;
 			mImageHeight = 0;
@@ -232,15 +281,61 @@ public class TiledImageRenderer {
 	}
 
 	public void setPosition(int centerX, int centerY, float scale) {
+		long now = SystemClock.uptimeMillis();
 		if (mCenterX == centerX && mCenterY == centerY && mScale == scale) {
+			if (now - mLastMoveTime > VELOCITY_TIMEOUT_MS && hasVelocity()) {
+				// Stopped, drop the tiles prefetched along the way
+				mVelocityX = mVelocityY = mScaleVelocity = 0;
+				mLayoutTiles = true;
+			}
 			return;
 		}
+		updateVelocity(centerX, centerY, scale, now);
 		mCenterX = centerX;
 		mCenterY = centerY;
 		mScale = scale;
 		mLayoutTiles = true;
 	}
 
+	private boolean hasVelocity() {
+		return mVelocityX != 0 || mVelocityY != 0 || mScaleVelocity != 0;
+	}
+
+	private void updateVelocity(int centerX, int centerY, float scale, long now) {
+		long dt = now - mLastMoveTime;
+		mLastMoveTime = now;
+		if (dt > VELOCITY_TIMEOUT_MS || mScale <= 0) {
+			// A new motion, one move isn't enough to tell where it goes
+			mVelocityX = mVelocityY = mScaleVelocity = 0;
+			return;
+		}
+		dt = Math.max(1, dt);
+		// Average with the previous estimate, moves come in unevenly
+		mVelocityX = (mVelocityX + (centerX - mCenterX) / (float) dt) / 2;
+		mVelocityY = (mVelocityY + (centerY - mCenterY) / (float) dt) / 2;
+		mScaleVelocity = (mScaleVelocity + (float) Math.log(scale / mScale) / dt) / 2;
+	}
+
+	/**
+	 * Sets out to the tiles that will be visible PREFETCH_AHEAD_MS from now
+	 * if the view keeps moving as it does, and returns their level. Returns
+	 * -1 if the view is still or will only show the preview.
+	 */
+	private int getPrefetchRange(Rect out) {
+		if (!hasVelocity()) {
+			return -1;
+		}
+		int centerX = Utils.clamp(Math.round(mCenterX + mVelocityX * PREFETCH_AHEAD_MS), 0, mImageWidth);
+		int centerY = Utils.clamp(Math.round(mCenterY + mVelocityY * PREFETCH_AHEAD_MS), 0, mImageHeight);
+		float scale = mScale * (float) Math.exp(mScaleVelocity * PREFETCH_AHEAD_MS);
+		int level = Utils.clamp(Utils.floorLog2(1f / scale), 0, mLevelCount);
+		if (level == mLevelCount) {
+			return -1;
+		}
+		getRange(out, centerX, centerY, level, scale, mRotation);
+		return level;
+	}
+
 	// Prepare the tiles we want to use for display.
 	//
 	// 1. Decide the tile level we want to use for display.
@@ -291,26 +386,35 @@ public class TiledImageRenderer {
 			return;
 		}
 
+		// Also keep the tiles the view is heading to, so they are decoded by
+		// the time it gets there
+		Rect prefetchRange = mPrefetchRange;
+		int prefetchLevel = getPrefetchRange(prefetchRange);
+
 		synchronized (mQueueLock) {
-			mDecodeQueue.clean();
 			mUploadQueue.clean();
 			mBackgroundTileUploaded = false;
 
 			// Recycle unused tiles: if the level of the active tile is outside
 			// the
 			// range [fromLevel, endLevel) or not in the visible range.
+			// Recycling also drops them from the decode queue.
 			int n = mActiveTiles.size();
 			for (int i = 0; i < n; i++) {
 				Tile tile = mActiveTiles.valueAt(i);
 				int level = tile.mTileLevel;
-				if (level < fromLevel || level >= endLevel
-						|| !range[level - fromLevel].contains(tile.mX, tile.mY)) {
+				boolean prefetched = level == prefetchLevel && prefetchRange.contains(tile.mX, tile.mY);
+				if (!prefetched && (level < fromLevel || level >= endLevel
+						|| !range[level - fromLevel].contains(tile.mX, tile.mY))) {
 					mActiveTiles.removeAt(i);
 					i--;
 					n--;
 					recycleTile(tile);
 				}
 			}
+
+			// The tiles still waiting are reordered for the new center
+			mDecodeQueue.updatePriorities(mTileSize, mCenterX, mCenterY);
 		}
 
 		for (int i = fromLevel; i < endLevel; ++i) {
@@ -322,6 +426,21 @@ public class TiledImageRenderer {
 				}
 			}
 		}
+
+		// Queue the prefetched tiles now, background tiles are only queued
+		// once the view is complete, which it isn't while moving
+		if (prefetchLevel >= 0) {
+			int size = mTileSize << prefetchLevel;
+			for (int y = prefetchRange.top; y < prefetchRange.bottom; y += size) {
+				for (int x = prefetchRange.left; x < prefetchRange.right; x += size) {
+					activateTile(x, y, prefetchLevel);
+					Tile tile = getTile(x, y, prefetchLevel);
+					if (!tile.isContentValid()) {
+						queueForDecode(tile);
+					}
+				}
+			}
+		}
 		invalidate();
 	}
 
@@ -379,7 +498,13 @@ public class TiledImageRenderer {
 	public void freeTextures() {
 		mLayoutTiles = true;
 
-		mTileDecoder.finishAndWait();
+		// Stop all the decoders first, so they don't wait on each other
+		for (TileDecoder decoder : mTileDecoders) {
+			decoder.interrupt();
+		}
+		for (TileDecoder decoder : mTileDecoders) {
+			decoder.finishAndWait();
+		}
 		synchronized (mQueueLock) {
 			mUploadQueue.clean();
 			mDecodeQueue.clean();
@@ -398,15 +523,22 @@ public class TiledImageRenderer {
 		mActiveTiles.clear();
 		mTileRange.set(0, 0, 0, 0);
 
-		while (sTilePool.acquire() != null) {
-		}
+		BitmapPool.getInstance().clear();
+	}
+
+	/**
+	 * Fills out with how many tiles are uploaded per frame, and what they
+	 * cost. Can be called from any thread.
+	 */
+	public void getUploadStats(TileUploadScheduler.Stats out) {
+		mUploadScheduler.getStats(out);
 	}
 
 	public boolean draw(GLCanvas canvas) {
+		int quota = mUploadScheduler.beginFrame();
 		layoutTiles();
-		uploadTiles(canvas);
-
-		mUploadQuota = UPLOAD_LIMIT;
+		// Uploads of visible tiles below get at least one of the quota
+		mUploadQuota = Math.max(1, quota - uploadTiles(canvas, quota));
 		mRenderComplete = true;
 
 		int level = mLevel;
@@ -425,6 +557,7 @@ public class TiledImageRenderer {
 				canvas.translate(-centerX, -centerY);
 			}
 		}
+		canvas.beginBatch();
 		try {
 			if (level != mLevelCount) {
 				int size = (mTileSize << level);
@@ -443,6 +576,7 @@ public class TiledImageRenderer {
 						Math.round(mImageHeight * mScale));
 			}
 		} finally {
+			canvas.endBatch();
 			if (flags != 0) {
 				canvas.restore();
 			}
@@ -455,6 +589,7 @@ public class TiledImageRenderer {
 		} else {
 			invalidate();
 		}
+		mUploadScheduler.endFrame();
 		return mRenderComplete || mPreview != null;
 	}
 
@@ -473,13 +608,18 @@ public class TiledImageRenderer {
 		synchronized (mQueueLock) {
 			if (tile.mTileState == STATE_ACTIVATED) {
 				tile.mTileState = STATE_IN_QUEUE;
-				if (mDecodeQueue.push(tile)) {
+				if (mDecodeQueue.push(tile, getDecodePriority(tile))) {
 					mQueueLock.notifyAll();
 				}
 			}
 		}
 	}
 
+	private long getDecodePriority(Tile tile) {
+		return TileDecodeQueue.getDecodePriority(tile.mTileLevel, tile.mX, tile.mY, mTileSize,
+				mCenterX, mCenterY);
+	}
+
 	private void decodeTile(Tile tile) {
 		synchronized (mQueueLock) {
 			if (tile.mTileState != STATE_IN_QUEUE) {
@@ -492,7 +632,7 @@ public class TiledImageRenderer {
 			if (tile.mTileState == STATE_RECYCLING) {
 				tile.mTileState = STATE_RECYCLED;
 				if (tile.mDecodedTile != null) {
-					sTilePool.release(tile.mDecodedTile);
+					BitmapPool.getInstance().put(tile.mDecodedTile);
 					tile.mDecodedTile = null;
 				}
 				mRecycledQueue.push(tile);
@@ -521,13 +661,14 @@ public class TiledImageRenderer {
 
 	private void recycleTile(Tile tile) {
 		synchronized (mQueueLock) {
+			mDecodeQueue.remove(tile);
 			if (tile.mTileState == STATE_DECODING) {
 				tile.mTileState = STATE_RECYCLING;
 				return;
 			}
 			tile.mTileState = STATE_RECYCLED;
 			if (tile.mDecodedTile != null) {
-				sTilePool.release(tile.mDecodedTile);
+				BitmapPool.getInstance().put(tile.mDecodedTile);
 				tile.mDecodedTile = null;
 			}
 			mRecycledQueue.push(tile);
@@ -538,9 +679,6 @@ public class TiledImageRenderer {
 		long key = makeTileKey(x, y, level);
 		Tile tile = mActiveTiles.get(key);
 		if (tile != null) {
-			if (tile.mTileState == STATE_IN_QUEUE) {
-				tile.mTileState = STATE_ACTIVATED;
-			}
 			return;
 		}
 		tile = obtainTile(x, y, level);
@@ -558,10 +696,11 @@ public class TiledImageRenderer {
 		return result;
 	}
 
-	private void uploadTiles(GLCanvas canvas) {
-		int quota = UPLOAD_LIMIT;
+	/** Uploads up to quota decoded tiles, and returns how many it did. */
+	private int uploadTiles(GLCanvas canvas, int quota) {
+		int uploaded = 0;
 		Tile tile = null;
-		while (quota > 0) {
+		while (uploaded < quota) {
 			synchronized (mQueueLock) {
 				tile = mUploadQueue.pop();
 			}
@@ -570,8 +709,8 @@ public class TiledImageRenderer {
 			}
 			if (!tile.isContentValid()) {
 				if (tile.mTileState == STATE_DECODED) {
-					tile.updateContent(canvas);
-					--quota;
+					uploadTile(tile, canvas);
+					++uploaded;
 				} else {
 					Log.w(TAG, "Tile in upload queue has invalid state: " + tile.mTileState);
 				}
@@ -580,6 +719,13 @@ public class TiledImageRenderer {
 		if (tile != null) {
 			invalidate();
 		}
+		return uploaded;
+	}
+
+	private void uploadTile(Tile tile, GLCanvas canvas) {
+		long start = System.nanoTime();
+		tile.updateContent(canvas);
+		mUploadScheduler.onUpload(System.nanoTime() - start);
 	}
 
 	// Draw the tile to a square at canvas that locates at (x, y) and
@@ -596,7 +742,7 @@ public class TiledImageRenderer {
 				if (tile.mTileState == STATE_DECODED) {
 					if (mUploadQuota > 0) {
 						--mUploadQuota;
-						tile.updateContent(canvas);
+						uploadTile(tile, canvas);
 					} else {
 						mRenderComplete = false;
 					}
@@ -621,7 +767,7 @@ public class TiledImageRenderer {
 	private boolean drawTile(Tile tile, GLCanvas canvas, RectF source, RectF target) {
 		while (true) {
 			if (tile.isContentValid()) {
-				canvas.drawTexture(tile, source, target);
+				mAtlas.drawTexture(canvas, tile.mRegion, source, target);
 				return true;
 			}
 
@@ -648,33 +794,26 @@ public class TiledImageRenderer {
 		}
 	}
 
-	private class Tile extends UploadedTexture {
-		public int mX;
-		public int mY;
-		public int mTileLevel;
+	private class Tile extends TileDecodeQueue.Entry {
 		public Tile mNext;
 		public Bitmap mDecodedTile;
 		public volatile int mTileState = STATE_ACTIVATED;
+		// Where the tile is uploaded to, kept when the tile is reused
+		public TextureAtlas.Region mRegion;
 
 		public Tile(int x, int y, int level) {
-			mX = x;
-			mY = y;
-			mTileLevel = level;
+			super(x, y, level);
 		}
 
-		@Override
-		protected void onFreeBitmap(Bitmap bitmap) {
-			sTilePool.release(bitmap);
+		public boolean isContentValid() {
+			return mRegion != null && mRegion.isContentValid();
 		}
 
 		boolean decode() {
 			// Get a tile from the original image. The tile is down-scaled
 			// by (1 << mTilelevel) from a region in the original image.
 			try {
-				Bitmap reuse = sTilePool.acquire();
-				if (reuse != null && reuse.getWidth() != mTileSize) {
-					reuse = null;
-				}
+				Bitmap reuse = BitmapPool.getInstance().get(mTileSize, mTileSize);
 				mDecodedTile = mModel.getTile(mTileLevel, mX, mY, reuse);
 			} catch (Throwable t) {
 				Log.w(TAG, "fail to decode tile", t);
@@ -682,41 +821,49 @@ public class TiledImageRenderer {
 			return mDecodedTile != null;
 		}
 
-		@Override
-		protected Bitmap onGetBitmap() {
+		// Uploads the decoded tile to the atlas.
+		public void updateContent(GLCanvas canvas) {
 			Utils.assertTrue(mTileState == STATE_DECODED);
-
-			// We need to override the width and height, so that we won't
-			// draw beyond the boundaries.
-			int rightEdge = ((mImageWidth - mX) >> mTileLevel);
-			int bottomEdge = ((mImageHeight - mY) >> mTileLevel);
-			setSize(Math.min(mTileSize, rightEdge), Math.min(mTileSize, bottomEdge));
-
 			Bitmap bitmap = mDecodedTile;
 			mDecodedTile = null;
 			mTileState = STATE_ACTIVATED;
-			return bitmap;
-		}
 
-		// We override getTextureWidth() and getTextureHeight() here, so the
-		// texture can be re-used for different tiles regardless of the actual
-		// size of the tile (which may be small because it is a tile at the
-		// boundary).
-		@Override
-		public int getTextureWidth() {
-			return mTileSize;
-		}
+			// The region is re-used for different tiles regardless of the
+			// actual size of the tile (which may be small because it is a
+			// tile at the boundary), unless the tile size changed
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			if (mRegion != null && !mRegion.fits(width, height)) {
+				mAtlas.free(mRegion);
+				mRegion = null;
+			}
+			if (mRegion == null) {
+				mRegion = mAtlas.allocate(width, height);
+			}
+			mAtlas.upload(canvas, mRegion, bitmap);
+			BitmapPool.getInstance().put(bitmap);
 
-		@Override
-		public int getTextureHeight() {
-			return mTileSize;
+			// We need to override the width and height, so that we won't
+			// draw beyond the boundaries.
+			int rightEdge = ((mImageWidth - mX) >> mTileLevel);
+			int bottomEdge = ((mImageHeight - mY) >> mTileLevel);
+			mRegion.setSize(Math.min(width, rightEdge), Math.min(height, bottomEdge));
 		}
 
 		public void update(int x, int y, int level) {
 			mX = x;
 			mY = y;
 			mTileLevel = level;
-			invalidateContent();
+			if (mRegion != null) {
+				mRegion.invalidateContent();
+			}
+		}
+
+		public void recycle() {
+			if (mRegion != null) {
+				mAtlas.free(mRegion);
+				mRegion = null;
+			}
 		}
 
 		public Tile getParentTile() {
@@ -788,9 +935,12 @@ public class TiledImageRenderer {
 		private Tile waitForTile() throws InterruptedException {
 			synchronized (mQueueLock) {
 				while (true) {
-					Tile tile = mDecodeQueue.pop();
-					if (tile != null) {
-						return tile;
+					if (mDecodesInFlight < mMaxDecodes) {
+						Tile tile = mDecodeQueue.pop();
+						if (tile != null) {
+							mDecodesInFlight++;
+							return tile;
+						}
 					}
 					mQueueLock.wait();
 				}
@@ -802,7 +952,17 @@ public class TiledImageRenderer {
 			try {
 				while (!isInterrupted()) {
 					Tile tile = waitForTile();
-					decodeTile(tile);
+					try {
+						decodeTile(tile);
+					} finally {
+						synchronized (mQueueLock) {
+							mDecodesInFlight--;
+							// Another decoder may be waiting for this slot
+							if (!mDecodeQueue.isEmpty()) {
+								mQueueLock.notifyAll();
+							}
+						}
+					}
 				}
 			} catch (InterruptedException ex) {
 				// We were finished
@@ -32,6 +32,7 @@ package com.google.protobuf;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -95,6 +96,78 @@ public final class CodedInputStream {
 		return result;
 	}
 
+	/**
+	 * Create a new CodedInputStream wrapping the given ByteBuffer, from its
+	 * position to its limit. The position of the buffer is not changed. A
+	 * buffer backed by an accessible array is read in place, any other buffer
+	 * is copied once.
+	 */
+	public static CodedInputStream newInstance(final ByteBuffer buf) {
+		CodedInputStream result = new CodedInputStream(EMPTY_BYTE_ARRAY, 0, 0);
+		result.reset(buf);
+		return result;
+	}
+
+	/**
+	 * Point this stream at a new byte array slice, as if it had been created
+	 * with {@link #newInstance(byte[], int, int)}. This allows one stream to
+	 * decode many small messages without allocating. Limits, the last tag and
+	 * the size counter are cleared, the recursion limit, size limit and
+	 * aliasing setting are kept.
+	 */
+	public void reset(final byte[] buf, final int off, final int len) {
+		buffer = buf;
+		bufferIsCopy = false;
+		resetPosition(off, len);
+	}
+
+	/**
+	 * Point this stream at the remaining bytes of a ByteBuffer, like
+	 * {@link #reset(byte[], int, int)}. A buffer without an accessible array
+	 * is copied into an array that this stream keeps for the next reset.
+	 */
+	public void reset(final ByteBuffer buf) {
+		if (buf.hasArray()) {
+			reset(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			return;
+		}
+		final int len = buf.remaining();
+		if (copyBuffer == null || copyBuffer.length < len) {
+			copyBuffer = new byte[len];
+		}
+		buf.duplicate().get(copyBuffer, 0, len);
+		buffer = copyBuffer;
+		bufferIsCopy = true;
+		resetPosition(0, len);
+	}
+
+	private void resetPosition(final int off, final int len) {
+		input = null;
+		bufferSize = off + len;
+		bufferSizeAfterLimit = 0;
+		bufferPos = off;
+		totalBytesRetired = -off;
+		currentLimit = Integer.MAX_VALUE;
+		lastTag = 0;
+		recursionDepth = 0;
+		try {
+			// See newInstance(byte[], int, int)
+			pushLimit(len);
+		} catch (InvalidProtocolBufferException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	/**
+	 * Enables {@link #readBytes()} to return views of the underlying byte
+	 * array instead of copies. Only safe if the array is not modified while
+	 * the returned ByteStrings are in use. Has no effect when reading from an
+	 * InputStream or from a copied ByteBuffer, as those buffers are reused.
+	 */
+	public void enableAliasing(final boolean enabled) {
+		enableAliasing = enabled;
+	}
+
 	// -----------------------------------------------------------------
 
 	/**
@@ -315,8 +388,10 @@ public final class CodedInputStream {
 			return ByteString.EMPTY;
 		} else if (size <= (bufferSize - bufferPos) && size > 0) {
 			// Fast path: We already have the bytes in a contiguous buffer, so
-			// just copy directly from it.
-			final ByteString result = ByteString.copyFrom(buffer, bufferPos, size);
+			// just copy directly from it, or share it if the caller allows.
+			final ByteString result = (enableAliasing && input == null && !bufferIsCopy)
+					? new BoundedByteString(buffer, bufferPos, size)
+					: ByteString.copyFrom(buffer, bufferPos, size);
 			bufferPos += size;
 			return result;
 		} else {
@@ -521,13 +596,20 @@ public final class CodedInputStream {
 
 	// -----------------------------------------------------------------
 
-	private final byte[] buffer;
+	private byte[] buffer;
 	private int bufferSize;
 	private int bufferSizeAfterLimit;
 	private int bufferPos;
-	private final InputStream input;
+	private InputStream input;
 	private int lastTag;
 
+	/** See enableAliasing() */
+	private boolean enableAliasing;
+
+	/** Array that ByteBuffers without one are copied into, see reset() */
+	private byte[] copyBuffer;
+	private boolean bufferIsCopy;
+
 	/**
 	 * The total number of bytes read before the current buffer. The total bytes
 	 * read up to the current position can be computed as
@@ -550,6 +632,7 @@ public final class CodedInputStream {
 	private static final int DEFAULT_RECURSION_LIMIT = 64;
 	private static final int DEFAULT_SIZE_LIMIT = 64 << 20; // 64MB
 	private static final int BUFFER_SIZE = 4096;
+	private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
 	private CodedInputStream(final byte[] buffer, final int off, final int len) {
 		this.buffer = buffer;
@@ -34,6 +34,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Checksum;
 
 /**
  * Encodes and writes protocol message fields.
@@ -58,6 +61,10 @@ public final class CodedOutputStream {
 
 	private final OutputStream output;
 
+	/** See startChecksum() */
+	private Checksum checksum;
+	private int checksumStart;
+
 	/**
 	 * The buffer size used in {@link #newInstance(OutputStream)}.
 	 */
@@ -128,6 +135,92 @@ public final class CodedOutputStream {
 		return new CodedOutputStream(flatArray, offset, length);
 	}
 
+	/**
+	 * Create a new {@code CodedOutputStream} that writes to the given
+	 * {@code ByteBuffer}, starting at its position. Bytes are staged in a
+	 * buffer of the given size and put into the ByteBuffer in bulk on
+	 * {@link #flush()}. If more bytes are written than the ByteBuffer has
+	 * room for, {@link OutOfSpaceException} will be thrown. Pass the
+	 * serialized size as the buffer size to write a message in one put.
+	 */
+	public static CodedOutputStream newInstance(final ByteBuffer byteBuffer, final int bufferSize) {
+		return newInstance(new ByteBufferOutputStream(byteBuffer), bufferSize);
+	}
+
+	/**
+	 * Create a new {@code CodedOutputStream} that writes to the given
+	 * {@code ByteBuffer}. See {@link #newInstance(ByteBuffer, int)}.
+	 */
+	public static CodedOutputStream newInstance(final ByteBuffer byteBuffer) {
+		return newInstance(byteBuffer, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a new {@code CodedOutputStream} that writes to the given
+	 * {@code WritableByteChannel}, through a buffer of the given size. Bytes
+	 * are handed to the channel straight from the buffer, without copying.
+	 * {@link #flush()} does not flush or close the channel.
+	 */
+	public static CodedOutputStream newInstance(final WritableByteChannel channel, final int bufferSize) {
+		return newInstance(new ChannelOutputStream(channel), bufferSize);
+	}
+
+	/**
+	 * Create a new {@code CodedOutputStream} that writes to the given
+	 * {@code WritableByteChannel}. See
+	 * {@link #newInstance(WritableByteChannel, int)}.
+	 */
+	public static CodedOutputStream newInstance(final WritableByteChannel channel) {
+		return newInstance(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Puts everything written into a ByteBuffer. */
+	private static class ByteBufferOutputStream extends OutputStream {
+		private final ByteBuffer byteBuffer;
+
+		ByteBufferOutputStream(final ByteBuffer byteBuffer) {
+			this.byteBuffer = byteBuffer;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (!byteBuffer.hasRemaining()) {
+				throw new OutOfSpaceException();
+			}
+			byteBuffer.put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			if (byteBuffer.remaining() < len) {
+				throw new OutOfSpaceException();
+			}
+			byteBuffer.put(b, off, len);
+		}
+	}
+
+	/** Writes everything to a channel, blocking until it is all written. */
+	private static class ChannelOutputStream extends OutputStream {
+		private final WritableByteChannel channel;
+
+		ChannelOutputStream(final WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			final ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+		}
+	}
+
 	// -----------------------------------------------------------------
 
 	/** Write a {@code double} field, including tag, to the stream. */
@@ -789,8 +882,39 @@ public final class CodedOutputStream {
 
 		// Since we have an output stream, this is our buffer
 		// and buffer offset == 0
+		updateChecksum();
 		output.write(buffer, 0, position);
 		position = 0;
+		checksumStart = 0;
+	}
+
+	/**
+	 * Computes the given checksum over every byte written from now on, until
+	 * {@link #stopChecksum()} is called. The bytes are checksummed as they
+	 * leave the buffer, so a checked payload can be written in one pass.
+	 */
+	public void startChecksum(final Checksum checksum) {
+		if (this.checksum != null) {
+			throw new IllegalStateException("Already computing a checksum.");
+		}
+		this.checksum = checksum;
+		checksumStart = position;
+	}
+
+	/**
+	 * Stops computing the checksum started with {@link #startChecksum}. The
+	 * checksum then covers everything written in between.
+	 */
+	public void stopChecksum() {
+		updateChecksum();
+		checksum = null;
+	}
+
+	private void updateChecksum() {
+		if (checksum != null) {
+			checksum.update(buffer, checksumStart, position - checksumStart);
+			checksumStart = position;
+		}
 	}
 
 	/**
@@ -893,6 +1017,9 @@ public final class CodedOutputStream {
 				position = length;
 			} else {
 				// Write is very big. Let's do it all at once.
+				if (checksum != null) {
+					checksum.update(value, offset, length);
+				}
 				output.write(value, offset, length);
 			}
 		}
@@ -941,6 +1068,9 @@ public final class CodedOutputStream {
 					if (bytesRead != bytesToRead) {
 						throw new IllegalStateException("Read failed? Should never happen");
 					}
+					if (checksum != null) {
+						checksum.update(buffer, 0, bytesRead);
+					}
 					output.write(buffer, 0, bytesRead);
 					length -= bytesRead;
 				}
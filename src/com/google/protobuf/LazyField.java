@@ -41,12 +41,13 @@ import java.util.Map.Entry;
  * LazyField is thread-compatible e.g. concurrent read are safe, however,
  * synchronizations are needed under read/write situations.
  * 
- * Now LazyField is only used to lazily load MessageSet. TODO(xiangl): Use
- * LazyField to lazily load all messages.
+ * Now LazyField is used to lazily load MessageSet, and by generated code for
+ * message fields that are only parsed when read. TODO(xiangl): Use LazyField
+ * to lazily load all messages.
  * 
  * @author xiangl@google.com (Xiang Li)
  */
-class LazyField {
+public class LazyField {
 
 	final private MessageLite defaultInstance;
 	final private ExtensionRegistryLite extensionRegistry;
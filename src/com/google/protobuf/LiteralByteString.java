@@ -276,9 +276,12 @@ class LiteralByteString extends ByteString {
 	@Override
 	public CodedInputStream newCodedInput() {
 		// We trust CodedInputStream not to modify the bytes, or to give anyone
-		// else access to them.
-		return CodedInputStream.newInstance(bytes, getOffsetIntoBytes(), size()); // No
-																					// copy
+		// else access to them. As the bytes never change, bytes fields can be
+		// views of them instead of copies.
+		CodedInputStream input = CodedInputStream.newInstance(bytes, getOffsetIntoBytes(), size()); // No
+																									// copy
+		input.enableAliasing(true);
+		return input;
 	}
 
 	// =================================================================
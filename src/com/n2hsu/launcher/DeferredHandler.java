@@ -20,36 +20,62 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
-import android.util.Pair;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import android.util.SparseIntArray;
 
 /**
  * Queue of things to run on a looper thread. Items posted with {@link #post}
  * will not be actually enqued on the handler until after the last one has run,
  * to keep from starving the thread.
- * 
+ *
  * This class is fifo.
+ *
+ * Items are kept in a ring buffer of parallel arrays so that posting does not
+ * allocate. Cancelling by type bumps a per-type generation; queued items from
+ * an older generation are dropped when they reach the head of the queue.
+ *
+ * By default one item is run per looper message. When a drain budget is set
+ * with {@link #setDrainBudget}, each message keeps running queued items until
+ * the budget is used up or an idle item reaches the head of the queue.
  */
 public class DeferredHandler {
-	private LinkedList<Pair<Runnable, Integer>> mQueue = new LinkedList<Pair<Runnable, Integer>>();
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Object mLock = new Object();
+	private Runnable[] mRunnables = new Runnable[INITIAL_CAPACITY];
+	private int[] mTypes = new int[INITIAL_CAPACITY];
+	private int[] mGenerations = new int[INITIAL_CAPACITY];
+	private boolean[] mIdle = new boolean[INITIAL_CAPACITY];
+	private int mHead;
+	private int mSize;
+
+	// Current generation of each runnable type, bumped to cancel that type
+	private final SparseIntArray mTypeGenerations = new SparseIntArray();
+
+	private long mDrainBudgetNanos;
+
 	private MessageQueue mMessageQueue = Looper.myQueue();
 	private Impl mHandler = new Impl();
 
 	private class Impl extends Handler implements MessageQueue.IdleHandler {
 		public void handleMessage(Message msg) {
-			Pair<Runnable, Integer> p;
-			Runnable r;
-			synchronized (mQueue) {
-				if (mQueue.size() == 0) {
-					return;
+			final long start = mDrainBudgetNanos > 0 ? System.nanoTime() : 0;
+			while (true) {
+				Runnable r;
+				synchronized (mLock) {
+					if (!dropStaleLocked()) {
+						return;
+					}
+					r = mRunnables[mHead];
+					removeFirstLocked();
+				}
+				r.run();
+				synchronized (mLock) {
+					if (mDrainBudgetNanos <= 0 || !dropStaleLocked() || mIdle[mHead]
+							|| System.nanoTime() - start >= mDrainBudgetNanos) {
+						scheduleNextLocked();
+						return;
+					}
 				}
-				p = mQueue.removeFirst();
-				r = p.first;
-			}
-			r.run();
-			synchronized (mQueue) {
-				scheduleNextLocked();
 			}
 		}
 
@@ -59,19 +85,17 @@ public class DeferredHandler {
 		}
 	}
 
-	private class IdleRunnable implements Runnable {
-		Runnable mRunnable;
-
-		IdleRunnable(Runnable r) {
-			mRunnable = r;
-		}
-
-		public void run() {
-			mRunnable.run();
-		}
+	public DeferredHandler() {
 	}
 
-	public DeferredHandler() {
+	/**
+	 * Sets how long a single looper message may spend running queued items. A
+	 * budget of 0 runs exactly one item per message.
+	 */
+	public void setDrainBudget(long budgetMillis) {
+		synchronized (mLock) {
+			mDrainBudgetNanos = Math.max(0, budgetMillis) * 1000000L;
+		}
 	}
 
 	/** Schedule runnable to run after everything that's on the queue right now. */
@@ -80,9 +104,27 @@ public class DeferredHandler {
 	}
 
 	public void post(Runnable runnable, int type) {
-		synchronized (mQueue) {
-			mQueue.add(new Pair<Runnable, Integer>(runnable, type));
-			if (mQueue.size() == 1) {
+		enqueue(runnable, type, false);
+	}
+
+	/**
+	 * Schedule runnable to run before everything that's on the queue right
+	 * now. Used by work that is split into slices and must finish before the
+	 * items queued behind it.
+	 */
+	public void postAtFrontOfQueue(Runnable runnable, int type) {
+		synchronized (mLock) {
+			final boolean wasEmpty = !dropStaleLocked();
+			if (mSize == mRunnables.length) {
+				growLocked();
+			}
+			mHead = (mHead - 1 + mRunnables.length) % mRunnables.length;
+			mRunnables[mHead] = runnable;
+			mTypes[mHead] = type;
+			mGenerations[mHead] = mTypeGenerations.get(type);
+			mIdle[mHead] = false;
+			mSize++;
+			if (wasEmpty) {
 				scheduleNextLocked();
 			}
 		}
@@ -94,52 +136,118 @@ public class DeferredHandler {
 	}
 
 	public void postIdle(final Runnable runnable, int type) {
-		post(new IdleRunnable(runnable), type);
+		enqueue(runnable, type, true);
 	}
 
-	public void cancelRunnable(Runnable runnable) {
-		synchronized (mQueue) {
-			while (mQueue.remove(runnable)) {
+	private void enqueue(Runnable runnable, int type, boolean idle) {
+		synchronized (mLock) {
+			final boolean wasEmpty = !dropStaleLocked();
+			if (mSize == mRunnables.length) {
+				growLocked();
+			}
+			int index = (mHead + mSize) % mRunnables.length;
+			mRunnables[index] = runnable;
+			mTypes[index] = type;
+			mGenerations[index] = mTypeGenerations.get(type);
+			mIdle[index] = idle;
+			mSize++;
+			if (wasEmpty) {
+				scheduleNextLocked();
 			}
 		}
 	}
 
-	public void cancelAllRunnablesOfType(int type) {
-		synchronized (mQueue) {
-			ListIterator<Pair<Runnable, Integer>> iter = mQueue.listIterator();
-			Pair<Runnable, Integer> p;
-			while (iter.hasNext()) {
-				p = iter.next();
-				if (p.second == type) {
-					iter.remove();
+	public void cancelRunnable(Runnable runnable) {
+		synchronized (mLock) {
+			final int capacity = mRunnables.length;
+			for (int i = 0; i < mSize; i++) {
+				int index = (mHead + i) % capacity;
+				if (mRunnables[index] == runnable) {
+					// Leave a hole, it is skipped when it reaches the head
+					mRunnables[index] = null;
 				}
 			}
 		}
 	}
 
+	public void cancelAllRunnablesOfType(int type) {
+		synchronized (mLock) {
+			mTypeGenerations.put(type, mTypeGenerations.get(type) + 1);
+		}
+	}
+
 	public void cancel() {
-		synchronized (mQueue) {
-			mQueue.clear();
+		synchronized (mLock) {
+			while (mSize > 0) {
+				removeFirstLocked();
+			}
 		}
 	}
 
-	/** Runs all queued Runnables from the calling thread. */
+	/**
+	 * Runs all queued Runnables from the calling thread, one at a time until
+	 * the queue is empty. Work that re-posts itself while being flushed, like
+	 * the slices of {@link #postAtFrontOfQueue}, is run to the end too.
+	 */
 	public void flush() {
-		LinkedList<Pair<Runnable, Integer>> queue = new LinkedList<Pair<Runnable, Integer>>();
-		synchronized (mQueue) {
-			queue.addAll(mQueue);
-			mQueue.clear();
+		while (true) {
+			Runnable r;
+			synchronized (mLock) {
+				if (!dropStaleLocked()) {
+					return;
+				}
+				r = mRunnables[mHead];
+				removeFirstLocked();
+			}
+			r.run();
 		}
-		for (Pair<Runnable, Integer> p : queue) {
-			p.first.run();
+	}
+
+	/**
+	 * Removes cancelled items from the head of the queue.
+	 *
+	 * @return true if a runnable is left at the head of the queue.
+	 */
+	private boolean dropStaleLocked() {
+		while (mSize > 0) {
+			if (mRunnables[mHead] != null
+					&& mGenerations[mHead] == mTypeGenerations.get(mTypes[mHead])) {
+				return true;
+			}
+			removeFirstLocked();
+		}
+		return false;
+	}
+
+	private void removeFirstLocked() {
+		mRunnables[mHead] = null;
+		mHead = (mHead + 1) % mRunnables.length;
+		mSize--;
+	}
+
+	private void growLocked() {
+		final int capacity = mRunnables.length;
+		Runnable[] runnables = new Runnable[capacity * 2];
+		int[] types = new int[capacity * 2];
+		int[] generations = new int[capacity * 2];
+		boolean[] idle = new boolean[capacity * 2];
+		for (int i = 0; i < mSize; i++) {
+			int index = (mHead + i) % capacity;
+			runnables[i] = mRunnables[index];
+			types[i] = mTypes[index];
+			generations[i] = mGenerations[index];
+			idle[i] = mIdle[index];
 		}
+		mRunnables = runnables;
+		mTypes = types;
+		mGenerations = generations;
+		mIdle = idle;
+		mHead = 0;
 	}
 
 	void scheduleNextLocked() {
-		if (mQueue.size() > 0) {
-			Pair<Runnable, Integer> p = mQueue.getFirst();
-			Runnable peek = p.first;
-			if (peek instanceof IdleRunnable) {
+		if (dropStaleLocked()) {
+			if (mIdle[mHead]) {
 				mMessageQueue.addIdleHandler(mHandler);
 			} else {
 				mHandler.sendEmptyMessage(1);
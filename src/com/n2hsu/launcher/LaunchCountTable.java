@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.n2hsu.launcher;
+
+import java.util.Arrays;
+
+/**
+ * Launch counts keyed by component. Each key is given a dense id the first
+ * time it is seen, so counts live in a plain int array and callers can keep
+ * their own per-component data indexed by the same ids. Lookups go through an
+ * open addressed hash table of ids.
+ *
+ * Not thread safe.
+ */
+class LaunchCountTable {
+	private static final int MIN_CAPACITY = 16;
+
+	private String[] mKeys;
+	private int[] mCounts;
+	private int mSize;
+
+	// Open addressed table of (id + 1), 0 means empty. Always a power of two
+	// and at most half full.
+	private int[] mSlots;
+
+	LaunchCountTable(int initialCapacity) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < initialCapacity) {
+			capacity <<= 1;
+		}
+		mKeys = new String[capacity];
+		mCounts = new int[capacity];
+		mSlots = new int[capacity * 2];
+	}
+
+	/** Number of distinct keys, ids run from 0 to size() - 1. */
+	int size() {
+		return mSize;
+	}
+
+	String keyAt(int id) {
+		return mKeys[id];
+	}
+
+	int countAt(int id) {
+		return mCounts[id];
+	}
+
+	/** Returns the id of the key, or -1 if it was never added. */
+	int indexOf(String key) {
+		final int mask = mSlots.length - 1;
+		for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			final int entry = mSlots[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			if (mKeys[entry - 1].equals(key)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/** Returns the id of the key, adding it with a count of 0 if needed. */
+	int getOrAdd(String key) {
+		int id = indexOf(key);
+		if (id < 0) {
+			id = add(key);
+		}
+		return id;
+	}
+
+	/** Adds count launches to the key, and returns its id. */
+	int increment(String key, int count) {
+		final int id = getOrAdd(key);
+		mCounts[id] += count;
+		return id;
+	}
+
+	void incrementAt(int id, int count) {
+		mCounts[id] += count;
+	}
+
+	void clear() {
+		Arrays.fill(mKeys, 0, mSize, null);
+		Arrays.fill(mCounts, 0, mSize, 0);
+		Arrays.fill(mSlots, 0);
+		mSize = 0;
+	}
+
+	private int add(String key) {
+		if (mSize == mKeys.length) {
+			grow();
+		}
+		final int id = mSize++;
+		mKeys[id] = key;
+		mCounts[id] = 0;
+		insertSlot(key, id);
+		return id;
+	}
+
+	private void insertSlot(String key, int id) {
+		final int mask = mSlots.length - 1;
+		int slot = hash(key) & mask;
+		while (mSlots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mSlots[slot] = id + 1;
+	}
+
+	private void grow() {
+		final int capacity = mKeys.length * 2;
+		mKeys = Arrays.copyOf(mKeys, capacity);
+		mCounts = Arrays.copyOf(mCounts, capacity);
+		mSlots = new int[capacity * 2];
+		for (int id = 0; id < mSize; id++) {
+			insertSlot(mKeys[id], id);
+		}
+	}
+
+	private static int hash(String key) {
+		// spread the bits, String.hashCode() is weak in the low bits
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.n2hsu.launcher;
+
+import java.util.Arrays;
+
+/**
+ * Exponentially decayed launch scores, indexed by the ids of a
+ * {@link LaunchCountTable}.
+ *
+ * Scores use forward decay: a launch at time t adds e^(rate * (t - landmark))
+ * instead of decaying every score as time goes on. All scores then share the
+ * same factor of e^(-rate * (now - landmark)), so their order never changes
+ * by itself, and only the launched id has to move in the heap. The landmark
+ * is moved forward now and then to keep the numbers in range.
+ *
+ * Not thread safe.
+ */
+class LaunchRanking {
+	static final long DEFAULT_HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+	// Move the landmark before a single launch weighs more than e^this
+	private static final double MAX_EXPONENT = 32;
+
+	private final double mRate;
+	private long mLandmark;
+
+	private double[] mScores;
+	// Max heap of ids ordered by score, and the position of each id in it
+	private int[] mHeap;
+	private int[] mHeapIndex;
+	private int mSize;
+
+	// Scratch heap of positions in mHeap, for top k queries
+	private int[] mCandidates = new int[0];
+
+	LaunchRanking(long halfLifeMillis, int initialCapacity) {
+		mRate = Math.log(2) / halfLifeMillis;
+		final int capacity = Math.max(1, initialCapacity);
+		mScores = new double[capacity];
+		mHeap = new int[capacity];
+		mHeapIndex = new int[capacity];
+	}
+
+	/** Number of ids with a score, always the size of the count table. */
+	int size() {
+		return mSize;
+	}
+
+	long getLandmark() {
+		return mLandmark;
+	}
+
+	/** Score of id relative to the landmark, as stored by {@link #setScore}. */
+	double getRawScore(int id) {
+		return mScores[id];
+	}
+
+	/** Score of id at the given time, ie. launches weighted by their age. */
+	double getScore(int id, long now) {
+		return mScores[id] * Math.exp(mRate * (mLandmark - now));
+	}
+
+	/** Drops all scores and starts over from the given landmark. */
+	void reset(long landmark) {
+		Arrays.fill(mScores, 0, mSize, 0);
+		mSize = 0;
+		mLandmark = landmark;
+	}
+
+	/**
+	 * Sets the score of id, relative to the current landmark. Ids must be
+	 * added in order, starting at 0.
+	 */
+	void setScore(int id, double score) {
+		ensureId(id);
+		mScores[id] = score;
+		siftUp(mHeapIndex[id]);
+		siftDown(mHeapIndex[id]);
+	}
+
+	/** Records a launch of id at the given time. */
+	void addLaunch(int id, long time) {
+		ensureId(id);
+		double exponent = mRate * (time - mLandmark);
+		if (exponent > MAX_EXPONENT) {
+			moveLandmark(time);
+			exponent = 0;
+		}
+		mScores[id] += Math.exp(exponent);
+		siftUp(mHeapIndex[id]);
+	}
+
+	/**
+	 * Writes the ids with the k highest scores to out, best first, and returns
+	 * how many were written. Walks the heap best first, so it takes O(k log k)
+	 * and leaves the heap alone.
+	 */
+	int getTop(int k, int[] out) {
+		k = Math.min(k, Math.min(mSize, out.length));
+		if (k <= 0) {
+			return 0;
+		}
+		if (mCandidates.length < 2 * k + 1) {
+			mCandidates = new int[2 * k + 1];
+		}
+		final int[] candidates = mCandidates;
+		int candidateCount = 0;
+		candidates[candidateCount++] = 0;
+
+		int found = 0;
+		while (found < k) {
+			// Pop the best candidate
+			final int pos = candidates[0];
+			candidates[0] = candidates[--candidateCount];
+			siftDownCandidate(candidates, candidateCount, 0);
+			out[found++] = mHeap[pos];
+
+			// Its children are the only new candidates
+			for (int child = 2 * pos + 1; child <= 2 * pos + 2 && child < mSize; child++) {
+				int i = candidateCount++;
+				candidates[i] = child;
+				while (i > 0) {
+					final int parent = (i - 1) / 2;
+					if (mScores[mHeap[candidates[parent]]] >= mScores[mHeap[candidates[i]]]) {
+						break;
+					}
+					swap(candidates, parent, i);
+					i = parent;
+				}
+			}
+		}
+		return found;
+	}
+
+	private void siftDownCandidate(int[] candidates, int count, int i) {
+		while (true) {
+			final int left = 2 * i + 1;
+			if (left >= count) {
+				return;
+			}
+			int best = left;
+			if (left + 1 < count
+					&& mScores[mHeap[candidates[left + 1]]] > mScores[mHeap[candidates[left]]]) {
+				best = left + 1;
+			}
+			if (mScores[mHeap[candidates[i]]] >= mScores[mHeap[candidates[best]]]) {
+				return;
+			}
+			swap(candidates, i, best);
+			i = best;
+		}
+	}
+
+	private void moveLandmark(long landmark) {
+		// Scaling every score by the same factor keeps the heap ordered
+		final double scale = Math.exp(mRate * (mLandmark - landmark));
+		for (int id = 0; id < mSize; id++) {
+			mScores[id] *= scale;
+		}
+		mLandmark = landmark;
+	}
+
+	private void ensureId(int id) {
+		while (mSize <= id) {
+			if (mSize == mScores.length) {
+				final int capacity = mScores.length * 2;
+				mScores = Arrays.copyOf(mScores, capacity);
+				mHeap = Arrays.copyOf(mHeap, capacity);
+				mHeapIndex = Arrays.copyOf(mHeapIndex, capacity);
+			}
+			// New ids have no launches, so they go to the bottom of the heap
+			mScores[mSize] = 0;
+			mHeap[mSize] = mSize;
+			mHeapIndex[mSize] = mSize;
+			mSize++;
+		}
+	}
+
+	private void siftUp(int pos) {
+		final int id = mHeap[pos];
+		final double score = mScores[id];
+		while (pos > 0) {
+			final int parent = (pos - 1) / 2;
+			if (mScores[mHeap[parent]] >= score) {
+				break;
+			}
+			mHeap[pos] = mHeap[parent];
+			mHeapIndex[mHeap[pos]] = pos;
+			pos = parent;
+		}
+		mHeap[pos] = id;
+		mHeapIndex[id] = pos;
+	}
+
+	private void siftDown(int pos) {
+		final int id = mHeap[pos];
+		final double score = mScores[id];
+		while (true) {
+			final int left = 2 * pos + 1;
+			if (left >= mSize) {
+				break;
+			}
+			int best = left;
+			if (left + 1 < mSize && mScores[mHeap[left + 1]] > mScores[mHeap[left]]) {
+				best = left + 1;
+			}
+			if (score >= mScores[mHeap[best]]) {
+				break;
+			}
+			mHeap[pos] = mHeap[best];
+			mHeapIndex[mHeap[pos]] = pos;
+			pos = best;
+		}
+		mHeap[pos] = id;
+		mHeapIndex[id] = pos;
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		final int tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+}
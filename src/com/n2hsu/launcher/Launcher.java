@@ -944,6 +944,7 @@ public class Launcher extends Activity implements View.OnClickListener, OnLongCl
 		mPaused = true;
 		mDragController.cancelDrag();
 		mDragController.resetLastGestureUpTime();
+		mStats.flush();
 
 		// We call onHide() aggressively. The custom content callbacks should be
 		// able to
@@ -17,9 +17,12 @@
 package com.n2hsu.launcher;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.GeneratedMessage.Builder;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
 import com.n2hsu.launcher.LauncherSettings.Favorites;
 import com.n2hsu.launcher.LauncherSettings.WorkspaceScreens;
 import com.n2hsu.launcher.backup.BackupProtos;
@@ -40,27 +43,41 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
+import android.util.Pair;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 
 /**
@@ -74,12 +91,25 @@ public class LauncherBackupHelper implements BackupHelper {
 
 	private static final int MAX_JOURNAL_SIZE = 1000000;
 
+	/** restored rows are inserted in transactions of this many rows */
+	private static final int RESTORE_BATCH_SIZE = 50;
+
 	/** icons are large, dribble them out */
 	private static final int MAX_ICONS_PER_PASS = 10;
 
 	/** widgets contain previews, which are very large, dribble them out */
 	private static final int MAX_WIDGETS_PER_PASS = 5;
 
+	/** with image compression spread over the packing threads, more icons fit in a pass */
+	private static final int MAX_ICONS_PER_PIPELINED_PASS = 30;
+
+	private static final int MAX_WIDGETS_PER_PIPELINED_PASS = 10;
+
+	/** threads compressing images during a backup pass, 0 to pack on the agent thread */
+	private static final int PACKING_THREADS = Math.min(3, Runtime.getRuntime().availableProcessors() - 1);
+	// Idle packing threads go away after this long, between backup passes
+	private static final long PACKING_KEEP_ALIVE_SECONDS = 10;
+
 	public static final int IMAGE_COMPRESSION_QUALITY = 75;
 
 	public static final String LAUNCHER_PREFIX = "L";
@@ -88,6 +118,9 @@ public class LauncherBackupHelper implements BackupHelper {
 
 	private static BackupManager sBackupManager;
 
+	// see getPackingExecutor()
+	private static ThreadPoolExecutor sPackingExecutor;
+
 	private static final String[] FAVORITE_PROJECTION = { Favorites._ID, // 0
 			Favorites.MODIFIED, // 1
 			Favorites.INTENT, // 2
@@ -132,14 +165,49 @@ public class LauncherBackupHelper implements BackupHelper {
 
 	private static final int SCREEN_RANK_INDEX = 2;
 
+	private static final int PAYLOAD_TAG = (CheckedMessage.PAYLOAD_FIELD_NUMBER << 3)
+			| WireFormat.WIRETYPE_LENGTH_DELIMITED;
+	private static final int CHECKSUM_TAG = (CheckedMessage.CHECKSUM_FIELD_NUMBER << 3)
+			| WireFormat.WIRETYPE_VARINT;
+	/** a CRC32 is at most 5 bytes as a varint */
+	private static final int MAX_CHECKSUM_FIELD_SIZE = CodedOutputStream
+			.computeTagSize(CheckedMessage.CHECKSUM_FIELD_NUMBER) + 5;
+
+	/** first column covered by the content hash, skips the id and timestamp */
+	private static final int FAVORITE_HASH_START_INDEX = INTENT_INDEX;
+	private static final int SCREEN_HASH_START_INDEX = SCREEN_RANK_INDEX;
+
 	private final Context mContext;
 
 	private HashMap<ComponentName, AppWidgetProviderInfo> mWidgetMap;
 
 	private ArrayList<Key> mKeys;
 
+	private final CRC32 mRowChecksum = new CRC32();
+
+	private byte[] mRestoreBuffer = new byte[512];
+
+	/**
+	 * Reset onto every checked message we read. Bytes fields alias the
+	 * buffer, nothing parsed out of an entity is kept past its restore.
+	 */
+	private final CodedInputStream mRestoreInput = CodedInputStream.newInstance(mRestoreBuffer);
+
+	/** restored rows waiting for the next batched insert, and their keys */
+	private final ArrayList<ContentValues> mRestoredFavorites = new ArrayList<ContentValues>();
+	private final ArrayList<Key> mRestoredFavoriteKeys = new ArrayList<Key>();
+	private final ArrayList<ContentValues> mRestoredScreens = new ArrayList<ContentValues>();
+	private final ArrayList<Key> mRestoredScreenKeys = new ArrayList<Key>();
+
+	/** the workspace was cleared for the restored rows */
+	private boolean mWorkspaceCleared;
+
+	/** a batch failed to insert, the rest of the restore is dropped */
+	private boolean mRestoreFailed;
+
 	public LauncherBackupHelper(Context context) {
 		mContext = context;
+		mRestoreInput.enableAliasing(true);
 	}
 
 	private void dataChanged() {
@@ -174,7 +242,8 @@ public class LauncherBackupHelper implements BackupHelper {
 		Log.v(TAG, "onBackup");
 
 		Journal in = readJournal(oldState);
-		Journal out = Journal.newBuilder().setRows(0).setBytes(0l).setT(System.currentTimeMillis()).build();
+		Journal.Builder out = Journal.newBuilder().setAppVersion(getAppVersion()).setRows(0).setBytes(0l)
+				.setT(System.currentTimeMillis());
 
 		long lastBackupTime = in.getT();
 
@@ -190,8 +259,8 @@ public class LauncherBackupHelper implements BackupHelper {
 			Log.e(TAG, "launcher backup has failed", e);
 		}
 
-		// out.key = keys.toArray(BackupProtos.Key.EMPTY_ARRAY);
-		writeJournal(newState, Journal.newBuilder(out).addAllKey(null).build());
+		out.addAllKey(keys);
+		writeJournal(newState, out.build());
 		Log.v(TAG, "onBackup: wrote " + out.getBytes() + "b in " + out.getRows() + " rows.");
 	}
 
@@ -210,16 +279,23 @@ public class LauncherBackupHelper implements BackupHelper {
 		if (mKeys == null) {
 			mKeys = new ArrayList<Key>();
 		}
-		byte[] buffer = new byte[512];
 		String backupKey = data.getKey();
 		int dataSize = data.size();
-		if (buffer.length < dataSize) {
-			buffer = new byte[dataSize];
+		// entities are parsed in place, so one buffer serves the whole restore
+		if (mRestoreBuffer.length < dataSize) {
+			mRestoreBuffer = new byte[dataSize];
 		}
+		final byte[] buffer = mRestoreBuffer;
 		Key key = null;
 		int bytesRead = 0;
 		try {
-			bytesRead = data.read(buffer, 0, dataSize);
+			while (bytesRead < dataSize) {
+				int result = data.read(buffer, bytesRead, dataSize - bytesRead);
+				if (result <= 0) {
+					break;
+				}
+				bytesRead += result;
+			}
 			if (DEBUG)
 				Log.d(TAG, "read " + bytesRead + " of " + dataSize + " available");
 		} catch (IOException e) {
@@ -264,16 +340,35 @@ public class LauncherBackupHelper implements BackupHelper {
 	public void writeNewStateDescription(ParcelFileDescriptor newState) {
 		// clear the output journal time, to force a full backup to
 		// will catch any changes the restore process might have made
-		Journal out = Journal.newBuilder().setT(0).addAllKey(null).build();
+		Journal out = Journal.newBuilder().setAppVersion(getAppVersion()).setT(0).build();
+
+		flushRestoredRows();
+		if (mRestoreFailed && mWorkspaceCleared) {
+			// don't leave a partial workspace behind
+			Log.e(TAG, "restore failed, falling back to the default workspace");
+			final LauncherProvider provider = LauncherAppState.getLauncherProvider();
+			if (provider != null) {
+				provider.clearWorkspace(true);
+			}
+		} else {
+			updateMaxIds();
+		}
+		mWorkspaceCleared = false;
+		mRestoreFailed = false;
 
 		writeJournal(newState, out);
-		Log.v(TAG, "onRestore: read " + mKeys.size() + " rows");
-		mKeys.clear();
+		if (mKeys != null) {
+			Log.v(TAG, "onRestore: read " + mKeys.size() + " rows");
+			mKeys.clear();
+		}
 	}
 
 	/**
 	 * Write all modified favorites to the data stream.
 	 * 
+	 * <P>
+	 * Rows whose content hash matches the one recorded in the journal are not
+	 * packed or written again.
 	 * 
 	 * @param in
 	 *            notes from last backup
@@ -285,9 +380,10 @@ public class LauncherBackupHelper implements BackupHelper {
 	 *            keys to mark as clean in the notes for next backup
 	 * @throws IOException
 	 */
-	private void backupFavorites(Journal in, BackupDataOutput data, Journal out, ArrayList<Key> keys)
+	private void backupFavorites(Journal in, BackupDataOutput data, Journal.Builder out, ArrayList<Key> keys)
 			throws IOException {
 		// read the old ID set
+		Map<String, Long> savedHashes = getSavedHashesByType(Key.Type.FAVORITE_VALUE, in);
 		Set<String> savedIds = getSavedIdsByType(Key.Type.FAVORITE_VALUE, in);
 		if (DEBUG)
 			Log.d(TAG, "favorite savedIds.size()=" + savedIds.size());
@@ -302,12 +398,11 @@ public class LauncherBackupHelper implements BackupHelper {
 				final long id = cursor.getLong(ID_INDEX);
 				final long updateTime = cursor.getLong(ID_MODIFIED);
 				Key key = getKey(Key.Type.FAVORITE_VALUE, id);
-				keys.add(key);
-				currentIds.add(keyToBackupKey(key));
-				if (updateTime > in.getT()) {
-					byte[] blob = packFavorite(cursor);
-					writeRowToBackup(key, blob, out, data);
-				}
+				String backupKey = keyToBackupKey(key);
+				currentIds.add(backupKey);
+				long hash = backupRowIfChanged(key, backupKey, savedHashes.get(backupKey), updateTime,
+						cursor, FAVORITE_HASH_START_INDEX, in, out, data);
+				keys.add(Key.newBuilder(key).setHash(hash).build());
 			}
 		} finally {
 			cursor.close();
@@ -317,8 +412,7 @@ public class LauncherBackupHelper implements BackupHelper {
 
 		// these IDs must have been deleted
 		savedIds.removeAll(currentIds);
-		out = out.newBuilder(out).setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data))
-				.build();
+		out.setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data));
 	}
 
 	/**
@@ -348,6 +442,17 @@ public class LauncherBackupHelper implements BackupHelper {
 			Favorite favorite = unpackFavorite(buffer, 0, dataSize);
 			if (DEBUG)
 				Log.d(TAG, "unpacked " + favorite.getItemType());
+			if (favorite.getItemType() == Favorites.ITEM_TYPE_APPWIDGET) {
+				// the widget id belongs to the old device, binding a new one
+				// needs the user's permission
+				Log.w(TAG, "not restoring widget " + favorite.getAppWidgetProvider());
+				return;
+			}
+			mRestoredFavorites.add(favoriteToValues(favorite));
+			mRestoredFavoriteKeys.add(key);
+			if (mRestoredFavorites.size() >= RESTORE_BATCH_SIZE) {
+				flushRestoredRows();
+			}
 		} catch (InvalidProtocolBufferException e) {
 			Log.w(TAG, "failed to decode proto", e);
 		}
@@ -356,6 +461,9 @@ public class LauncherBackupHelper implements BackupHelper {
 	/**
 	 * Write all modified screens to the data stream.
 	 * 
+	 * <P>
+	 * Rows whose content hash matches the one recorded in the journal are not
+	 * packed or written again.
 	 * 
 	 * @param in
 	 *            notes from last backup
@@ -367,9 +475,10 @@ public class LauncherBackupHelper implements BackupHelper {
 	 *            keys to mark as clean in the notes for next backup
 	 * @throws IOException
 	 */
-	private void backupScreens(Journal in, BackupDataOutput data, Journal out, ArrayList<Key> keys)
+	private void backupScreens(Journal in, BackupDataOutput data, Journal.Builder out, ArrayList<Key> keys)
 			throws IOException {
 		// read the old ID set
+		Map<String, Long> savedHashes = getSavedHashesByType(Key.Type.SCREEN_VALUE, in);
 		Set<String> savedIds = getSavedIdsByType(Key.Type.SCREEN_VALUE, in);
 		if (DEBUG)
 			Log.d(TAG, "screen savedIds.size()=" + savedIds.size());
@@ -384,12 +493,11 @@ public class LauncherBackupHelper implements BackupHelper {
 				final long id = cursor.getLong(ID_INDEX);
 				final long updateTime = cursor.getLong(ID_MODIFIED);
 				Key key = getKey(Key.Type.SCREEN_VALUE, id);
-				keys.add(key);
-				currentIds.add(keyToBackupKey(key));
-				if (updateTime > in.getT()) {
-					byte[] blob = packScreen(cursor);
-					writeRowToBackup(key, blob, out, data);
-				}
+				String backupKey = keyToBackupKey(key);
+				currentIds.add(backupKey);
+				long hash = backupRowIfChanged(key, backupKey, savedHashes.get(backupKey), updateTime,
+						cursor, SCREEN_HASH_START_INDEX, in, out, data);
+				keys.add(Key.newBuilder(key).setHash(hash).build());
 			}
 		} finally {
 			cursor.close();
@@ -399,8 +507,7 @@ public class LauncherBackupHelper implements BackupHelper {
 
 		// these IDs must have been deleted
 		savedIds.removeAll(currentIds);
-		out = out.newBuilder(out).setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data))
-				.build();
+		out.setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data));
 	}
 
 	/**
@@ -429,6 +536,14 @@ public class LauncherBackupHelper implements BackupHelper {
 			Screen screen = unpackScreen(buffer, 0, dataSize);
 			if (DEBUG)
 				Log.d(TAG, "unpacked " + screen.getRank());
+			ContentValues values = new ContentValues();
+			values.put(WorkspaceScreens._ID, screen.getId());
+			values.put(WorkspaceScreens.SCREEN_RANK, screen.getRank());
+			mRestoredScreens.add(values);
+			mRestoredScreenKeys.add(key);
+			if (mRestoredScreens.size() >= RESTORE_BATCH_SIZE) {
+				flushRestoredRows();
+			}
 		} catch (InvalidProtocolBufferException e) {
 			Log.w(TAG, "failed to decode proto", e);
 		}
@@ -448,7 +563,7 @@ public class LauncherBackupHelper implements BackupHelper {
 	 *            keys to mark as clean in the notes for next backup
 	 * @throws IOException
 	 */
-	private void backupIcons(Journal in, BackupDataOutput data, Journal out, ArrayList<Key> keys)
+	private void backupIcons(Journal in, BackupDataOutput data, Journal.Builder out, ArrayList<Key> keys)
 			throws IOException {
 		// persist icons that haven't been persisted yet
 		final LauncherAppState appState = LauncherAppState.getInstanceNoCreate();
@@ -467,9 +582,9 @@ public class LauncherBackupHelper implements BackupHelper {
 		if (DEBUG)
 			Log.d(TAG, "icon savedIds.size()=" + savedIds.size());
 
-		int startRows = out.getRows();
-		if (DEBUG)
-			Log.d(TAG, "starting here: " + startRows);
+		final PackingPipeline pipeline = new PackingPipeline(out, data, keys);
+		final int maxIcons = pipeline.isParallel() ? MAX_ICONS_PER_PIPELINED_PASS : MAX_ICONS_PER_PASS;
+		int packed = 0;
 		String where = Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_APPLICATION;
 		Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION, where, null, null);
 		Set<String> currentIds = new HashSet<String>(cursor.getCount());
@@ -498,15 +613,21 @@ public class LauncherBackupHelper implements BackupHelper {
 						keys.add(key);
 					} else if (backupKey != null) {
 						if (DEBUG)
-							Log.d(TAG, "I can count this high: " + out.getRows());
-						if ((out.getRows() - startRows) < MAX_ICONS_PER_PASS) {
+							Log.d(TAG, "I can count this high: " + packed);
+						if (packed < maxIcons) {
 							if (DEBUG)
 								Log.d(TAG, "saving icon " + backupKey);
-							Bitmap icon = iconCache.getIcon(intent);
-							keys.add(key);
+							final Bitmap icon = iconCache.getIcon(intent);
 							if (icon != null && !iconCache.isDefaultIcon(icon)) {
-								byte[] blob = packIcon(dpi, icon);
-								writeRowToBackup(key, blob, out, data);
+								pipeline.submit(key, new Callable<byte[]>() {
+									@Override
+									public byte[] call() {
+										return packIcon(dpi, icon);
+									}
+								});
+								packed++;
+							} else {
+								keys.add(key);
 							}
 						} else {
 							if (DEBUG)
@@ -522,7 +643,9 @@ public class LauncherBackupHelper implements BackupHelper {
 				}
 
 			}
+			pipeline.finish();
 		} finally {
+			pipeline.cancel();
 			cursor.close();
 		}
 		if (DEBUG)
@@ -530,8 +653,7 @@ public class LauncherBackupHelper implements BackupHelper {
 
 		// these IDs must have been deleted
 		savedIds.removeAll(currentIds);
-		out = out.newBuilder(out).setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data))
-				.build();
+		out.setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data));
 	}
 
 	/**
@@ -566,9 +688,10 @@ public class LauncherBackupHelper implements BackupHelper {
 						"read "
 								+ Base64.encodeToString(res.getData().toByteArray(), 0, res.getData().size(),
 										Base64.NO_WRAP));
-			Bitmap icon = BitmapFactory.decodeByteArray(res.getData().toByteArray(), 0, res.getData().size());
-			if (icon == null) {
+			if (!isDecodableImage(res)) {
 				Log.w(TAG, "failed to unpack icon for " + key.getName());
+			} else {
+				keys.add(key);
 			}
 		} catch (InvalidProtocolBufferException e) {
 			Log.w(TAG, "failed to decode proto", e);
@@ -589,7 +712,7 @@ public class LauncherBackupHelper implements BackupHelper {
 	 *            keys to mark as clean in the notes for next backup
 	 * @throws IOException
 	 */
-	private void backupWidgets(Journal in, BackupDataOutput data, Journal out, ArrayList<Key> keys)
+	private void backupWidgets(Journal in, BackupDataOutput data, Journal.Builder out, ArrayList<Key> keys)
 			throws IOException {
 		// persist static widget info that hasn't been persisted yet
 		final LauncherAppState appState = LauncherAppState.getInstanceNoCreate();
@@ -613,9 +736,9 @@ public class LauncherBackupHelper implements BackupHelper {
 		if (DEBUG)
 			Log.d(TAG, "widgets savedIds.size()=" + savedIds.size());
 
-		int startRows = out.getRows();
-		if (DEBUG)
-			Log.d(TAG, "starting here: " + startRows);
+		final PackingPipeline pipeline = new PackingPipeline(out, data, keys);
+		final int maxWidgets = pipeline.isParallel() ? MAX_WIDGETS_PER_PIPELINED_PASS : MAX_WIDGETS_PER_PASS;
+		int packed = 0;
 		String where = Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_APPWIDGET;
 		Cursor cursor = cr.query(Favorites.CONTENT_URI, FAVORITE_PROJECTION, where, null, null);
 		Set<String> currentIds = new HashSet<String>(cursor.getCount());
@@ -644,16 +767,14 @@ public class LauncherBackupHelper implements BackupHelper {
 					keys.add(key);
 				} else if (backupKey != null) {
 					if (DEBUG)
-						Log.d(TAG, "I can count this high: " + out.getRows());
-					if ((out.getRows() - startRows) < MAX_WIDGETS_PER_PASS) {
+						Log.d(TAG, "I can count this high: " + packed);
+					if (packed < maxWidgets) {
 						if (DEBUG)
 							Log.d(TAG, "saving widget " + backupKey);
 						previewLoader.setPreviewSize(spanX * profile.cellWidthPx, spanY
 								* profile.cellHeightPx, widgetSpacingLayout);
-						byte[] blob = packWidget(dpi, previewLoader, iconCache, provider);
-						keys.add(key);
-						writeRowToBackup(key, blob, out, data);
-
+						pipeline.submit(key, prepareWidget(dpi, previewLoader, iconCache, provider));
+						packed++;
 					} else {
 						if (DEBUG)
 							Log.d(TAG, "scheduling another run for widget " + backupKey);
@@ -662,7 +783,9 @@ public class LauncherBackupHelper implements BackupHelper {
 					}
 				}
 			}
+			pipeline.finish();
 		} finally {
+			pipeline.cancel();
 			cursor.close();
 		}
 		if (DEBUG)
@@ -670,8 +793,7 @@ public class LauncherBackupHelper implements BackupHelper {
 
 		// these IDs must have been deleted
 		savedIds.removeAll(currentIds);
-		out = out.newBuilder(out).setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data))
-				.build();
+		out.setRows(out.getRows() + removeDeletedKeysFromBackup(savedIds, data));
 	}
 
 	/**
@@ -701,18 +823,82 @@ public class LauncherBackupHelper implements BackupHelper {
 			Widget widget = unpackWidget(buffer, 0, dataSize);
 			if (DEBUG)
 				Log.d(TAG, "unpacked " + widget.getProvider());
-			if (widget.getIcon().getData() != null) {
-				Bitmap icon = BitmapFactory.decodeByteArray(widget.getIcon().getData().toByteArray(), 0,
-						widget.getIcon().getData().size());
-				if (icon == null) {
+			if (widget.hasIcon()) {
+				if (!isDecodableImage(widget.getIcon())) {
 					Log.w(TAG, "failed to unpack widget icon for " + key.getName());
 				}
 			}
+			keys.add(key);
 		} catch (InvalidProtocolBufferException e) {
 			Log.w(TAG, "failed to decode proto", e);
 		}
 	}
 
+	/**
+	 * Write a favorite or screen row unless its content is unchanged since the
+	 * last backup.
+	 * 
+	 * @param savedHash
+	 *            content hash recorded in the journal, or null
+	 * @param updateTime
+	 *            modification time of the row
+	 * @param hashStart
+	 *            first cursor column covered by the content hash
+	 * @return the content hash to record in the journal
+	 * @throws IOException
+	 */
+	private long backupRowIfChanged(Key key, String backupKey, Long savedHash, long updateTime,
+			Cursor cursor, int hashStart, Journal in, Journal.Builder out, BackupDataOutput data)
+			throws IOException {
+		if (savedHash != null && updateTime <= in.getT()) {
+			// not touched since the last backup, don't even hash it
+			return savedHash;
+		}
+		final long hash = hashRow(cursor, hashStart);
+		if (savedHash != null && savedHash == hash) {
+			if (DEBUG)
+				Log.d(TAG, "unchanged " + geKeyType(key) + " " + backupKey);
+			return hash;
+		}
+		byte[] blob = key.getType() == Key.Type.SCREEN ? packScreen(cursor) : packFavorite(cursor);
+		writeRowToBackup(key, blob, out, data);
+		return hash;
+	}
+
+	/** Compute a checksum over the columns of the current row, from start. */
+	private long hashRow(Cursor c, int start) {
+		final CRC32 checksum = mRowChecksum;
+		checksum.reset();
+		final int columns = c.getColumnCount();
+		for (int i = start; i < columns; i++) {
+			final int type = c.getType(i);
+			checksum.update(type);
+			switch (type) {
+			case Cursor.FIELD_TYPE_INTEGER:
+				updateChecksum(checksum, c.getLong(i));
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				updateChecksum(checksum, Double.doubleToLongBits(c.getDouble(i)));
+				break;
+			case Cursor.FIELD_TYPE_STRING:
+				checksum.update(c.getString(i).getBytes());
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				checksum.update(c.getBlob(i));
+				break;
+			default:
+				break;
+			}
+		}
+		return checksum.getValue();
+	}
+
+	private static void updateChecksum(CRC32 checksum, long value) {
+		for (int shift = 0; shift < 64; shift += 8) {
+			checksum.update((int) (value >> shift));
+		}
+	}
+
 	/**
 	 * create a new key, with an integer ID.
 	 * 
@@ -853,7 +1039,7 @@ public class LauncherBackupHelper implements BackupHelper {
 	 */
 	private Favorite unpackFavorite(byte[] buffer, int offset, int dataSize)
 			throws InvalidProtocolBufferException {
-		Favorite favorite = Favorite.parseFrom(readCheckedBytes(buffer, offset, dataSize));
+		Favorite favorite = Favorite.PARSER.parseFrom(openCheckedPayload(buffer, offset, dataSize));
 		return favorite;
 	}
 
@@ -868,7 +1054,7 @@ public class LauncherBackupHelper implements BackupHelper {
 	/** Deserialize a Screen from persistence, after verifying checksum wrapper. */
 	private Screen unpackScreen(byte[] buffer, int offset, int dataSize)
 			throws InvalidProtocolBufferException {
-		Screen screen = Screen.parseFrom(readCheckedBytes(buffer, offset, dataSize));
+		Screen screen = Screen.PARSER.parseFrom(openCheckedPayload(buffer, offset, dataSize));
 		return screen;
 	}
 
@@ -876,13 +1062,20 @@ public class LauncherBackupHelper implements BackupHelper {
 	 * Serialize an icon Resource for persistence, including a checksum wrapper.
 	 */
 	private byte[] packIcon(int dpi, Bitmap icon) {
-		Resource res = Resource.newBuilder().setDpi(dpi).build();
+		Resource res = packResource(dpi, icon);
+		if (res == null) {
+			return null;
+		}
+		return writeCheckedBytes(res);
+	}
 
+	/** Compress a bitmap into a Resource, or return null if that fails. */
+	private Resource packResource(int dpi, Bitmap bitmap) {
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		if (icon.compress(IMAGE_FORMAT, IMAGE_COMPRESSION_QUALITY, os)) {
-			res = Resource.newBuilder(res).setData(ByteString.copyFrom(os.toByteArray())).build();
+		if (!bitmap.compress(IMAGE_FORMAT, IMAGE_COMPRESSION_QUALITY, os)) {
+			return null;
 		}
-		return writeCheckedBytes(res);
+		return Resource.newBuilder().setDpi(dpi).setData(ByteString.copyFrom(os.toByteArray())).build();
 	}
 
 	/**
@@ -891,53 +1084,57 @@ public class LauncherBackupHelper implements BackupHelper {
 	 */
 	private Resource unpackIcon(byte[] buffer, int offset, int dataSize)
 			throws InvalidProtocolBufferException {
-		Resource res = Resource.parseFrom(readCheckedBytes(buffer, offset, dataSize));
+		Resource res = Resource.PARSER.parseFrom(openCheckedPayload(buffer, offset, dataSize));
 		return res;
 	}
 
-	/** Serialize a widget for persistence, including a checksum wrapper. */
-	private byte[] packWidget(int dpi, WidgetPreviewLoader previewLoader, IconCache iconCache,
-			ComponentName provider) {
+	/**
+	 * Render the widget images on the calling thread, and return a task that
+	 * compresses them and serializes the widget, including a checksum wrapper.
+	 * The task may run on a packing thread.
+	 */
+	private Callable<byte[]> prepareWidget(final int dpi, WidgetPreviewLoader previewLoader,
+			IconCache iconCache, ComponentName provider) {
 		final AppWidgetProviderInfo info = findAppWidgetProviderInfo(provider);
 
-		Widget widget = Widget.newBuilder().setProvider(provider.flattenToShortString()).setLabel(info.label)
-				.setConfigure(info.configure != null).build();
+		final Widget.Builder widget = Widget.newBuilder().setProvider(provider.flattenToShortString())
+				.setLabel(info.label).setConfigure(info.configure != null);
+		Bitmap icon = null;
 		if (info.icon != 0) {
-
-			Resource res = Resource.newBuilder().build();
-			widget = Widget.newBuilder(widget).setIcon(res).build();
-
 			Drawable fullResIcon = iconCache.getFullResIcon(provider.getPackageName(), info.icon);
-			Bitmap icon = Utilities.createIconBitmap(fullResIcon, mContext);
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			if (icon.compress(IMAGE_FORMAT, IMAGE_COMPRESSION_QUALITY, os)) {
-
-				res = Resource.newBuilder(res).setData(ByteString.copyFrom(os.toByteArray())).setDpi(dpi)
-						.build();
-				widget = Widget.newBuilder(widget).setIcon(res).build();
-			}
+			icon = Utilities.createIconBitmap(fullResIcon, mContext);
 		}
+		Bitmap preview = null;
 		if (info.previewImage != 0) {
+			preview = previewLoader.generateWidgetPreview(info, null);
+		}
 
-			Resource preview = Resource.newBuilder().build();
-			widget = Widget.newBuilder(widget).setPreview(preview).build();
-
-			Bitmap previewBitmap = previewLoader.generateWidgetPreview(info, null);
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			if (previewBitmap.compress(IMAGE_FORMAT, IMAGE_COMPRESSION_QUALITY, os)) {
-
-				preview = Resource.newBuilder(preview).setData(ByteString.copyFrom(os.toByteArray()))
-						.setDpi(dpi).build();
-				widget = Widget.newBuilder(widget).setPreview(preview).build();
+		final Bitmap iconBitmap = icon;
+		final Bitmap previewBitmap = preview;
+		return new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				if (iconBitmap != null) {
+					Resource res = packResource(dpi, iconBitmap);
+					if (res != null) {
+						widget.setIcon(res);
+					}
+				}
+				if (previewBitmap != null) {
+					Resource res = packResource(dpi, previewBitmap);
+					if (res != null) {
+						widget.setPreview(res);
+					}
+				}
+				return writeCheckedBytes(widget.build());
 			}
-		}
-		return writeCheckedBytes(widget);
+		};
 	}
 
 	/** Deserialize a widget from persistence, after verifying checksum wrapper. */
 	private Widget unpackWidget(byte[] buffer, int offset, int dataSize)
 			throws InvalidProtocolBufferException {
-		Widget widget = Widget.parseFrom(readCheckedBytes(buffer, offset, dataSize));
+		Widget widget = Widget.PARSER.parseFrom(openCheckedPayload(buffer, offset, dataSize));
 		return widget;
 	}
 
@@ -952,7 +1149,7 @@ public class LauncherBackupHelper implements BackupHelper {
 	 * @return a Journal protocol bugffer
 	 */
 	private Journal readJournal(ParcelFileDescriptor oldState) {
-		Journal journal = Journal.newBuilder().build();
+		Journal journal = Journal.getDefaultInstance();
 		if (oldState == null) {
 			return journal;
 		}
@@ -988,10 +1185,10 @@ public class LauncherBackupHelper implements BackupHelper {
 
 				if (buffer != null) {
 					try {
-						journal = journal.parseFrom(readCheckedBytes(buffer, 0, bytesRead));
+						journal = Journal.PARSER.parseFrom(openCheckedPayload(buffer, 0, bytesRead));
 					} catch (InvalidProtocolBufferException e) {
 						Log.d(TAG, "failed to read the journal", e);
-						journal = null;
+						journal = Journal.getDefaultInstance();
 					}
 				}
 			}
@@ -1007,14 +1204,13 @@ public class LauncherBackupHelper implements BackupHelper {
 		return journal;
 	}
 
-	private void writeRowToBackup(Key key, byte[] blob, Journal out, BackupDataOutput data)
+	private void writeRowToBackup(Key key, byte[] blob, Journal.Builder out, BackupDataOutput data)
 			throws IOException {
 		String backupKey = keyToBackupKey(key);
 		data.writeEntityHeader(backupKey, blob.length);
 		data.writeEntityData(blob, blob.length);
 
-		out = Journal.newBuilder(out).setRows(out.getRows() + 1).setBytes(out.getBytes() + blob.length)
-				.build();
+		out.setRows(out.getRows() + 1).setBytes(out.getBytes() + blob.length);
 
 		Log.v(TAG, "saving " + geKeyType(key) + " " + backupKey + ": " + getKeyName(key) + "/" + blob.length);
 		if (DEBUG_PAYLOAD) {
@@ -1030,15 +1226,32 @@ public class LauncherBackupHelper implements BackupHelper {
 
 	private Set<String> getSavedIdsByType(int type, Journal in) {
 		Set<String> savedIds = new HashSet<String>();
-		for (int i = 0; i < in.getKeyList().size(); i++) {
+		for (int i = 0; i < in.getKeyCount(); i++) {
 			Key key = in.getKey(i);
-			if (key.getType().ordinal() == type) {
-				savedIds.add(keyToBackupKey(key));
+			if (key.getType().getNumber() == type) {
+				savedIds.add(keyToBackupKey(stripHash(key)));
 			}
 		}
 		return savedIds;
 	}
 
+	/** Map the backup keys of a type to the content hashes in the journal. */
+	private Map<String, Long> getSavedHashesByType(int type, Journal in) {
+		Map<String, Long> savedHashes = new HashMap<String, Long>();
+		for (int i = 0; i < in.getKeyCount(); i++) {
+			Key key = in.getKey(i);
+			if (key.getType().getNumber() == type && key.hasHash()) {
+				savedHashes.put(keyToBackupKey(stripHash(key)), key.getHash());
+			}
+		}
+		return savedHashes;
+	}
+
+	/** The journal keeps content hashes in the keys, backup keys do not. */
+	private Key stripHash(Key key) {
+		return key.hasHash() ? Key.newBuilder(key).clearHash().build() : key;
+	}
+
 	private int removeDeletedKeysFromBackup(Set<String> deletedIds, BackupDataOutput data) throws IOException {
 		int rows = 0;
 		for (String deleted : deletedIds) {
@@ -1064,7 +1277,11 @@ public class LauncherBackupHelper implements BackupHelper {
 		FileOutputStream outStream = null;
 		try {
 			outStream = new FileOutputStream(newState.getFileDescriptor());
-			outStream.write(writeCheckedBytes(journal));
+			// a buffer the size of the journal, up to the default size
+			CodedOutputStream out = CodedOutputStream.newInstance(outStream.getChannel(),
+					Math.min(getCheckedSize(journal), CodedOutputStream.DEFAULT_BUFFER_SIZE));
+			writeChecked(out, journal);
+			out.flush();
 			outStream.close();
 		} catch (IOException e) {
 			Log.d(TAG, "failed to write backup journal", e);
@@ -1073,35 +1290,205 @@ public class LauncherBackupHelper implements BackupHelper {
 
 	/** Wrap a proto in a CheckedMessage and compute the checksum. */
 	private byte[] writeCheckedBytes(Message proto) {
+		// the size is known up to the length of the checksum varint, so room
+		// is left for the longest one and the rare short one is trimmed
+		byte[] blob = new byte[getCheckedSize(proto)];
+		CodedOutputStream out = CodedOutputStream.newInstance(blob);
+		try {
+			writeChecked(out, proto);
+		} catch (IOException e) {
+			// can't happen, the array is big enough
+			throw new IllegalStateException(e);
+		}
+		final int size = blob.length - out.spaceLeft();
+		return size == blob.length ? blob : Arrays.copyOf(blob, size);
+	}
 
-		CheckedMessage wrapper = CheckedMessage.newBuilder().build();
+	/** Upper bound of the size of proto wrapped in a CheckedMessage. */
+	private static int getCheckedSize(Message proto) {
+		return CodedOutputStream.computeTagSize(CheckedMessage.PAYLOAD_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(proto.getSerializedSize())
+				+ proto.getSerializedSize() + MAX_CHECKSUM_FIELD_SIZE;
+	}
 
-		wrapper = CheckedMessage.newBuilder(wrapper).setPayload(proto.toByteString()).build();
+	/**
+	 * Write proto as a CheckedMessage in a single pass, the checksum is
+	 * computed while the payload is written and then appended.
+	 */
+	private static void writeChecked(CodedOutputStream out, Message proto) throws IOException {
+		out.writeRawVarint32(PAYLOAD_TAG);
+		out.writeRawVarint32(proto.getSerializedSize());
+		CRC32 checksum = new CRC32();
+		out.startChecksum(checksum);
+		proto.writeTo(out);
+		out.stopChecksum();
+		out.writeInt64(CheckedMessage.CHECKSUM_FIELD_NUMBER, checksum.getValue());
+	}
+
+	/**
+	 * Verify the checksum of a CheckedMessage in place, and return a stream that
+	 * reads the payload straight out of the buffer.
+	 */
+	private CodedInputStream openCheckedPayload(byte[] buffer, int offset, int dataSize)
+			throws InvalidProtocolBufferException {
+		final CodedInputStream in = mRestoreInput;
+		in.reset(buffer, offset, dataSize);
+		int payloadOffset = -1;
+		int payloadSize = 0;
+		boolean hasChecksum = false;
+		long expectedChecksum = 0;
+		try {
+			int tag;
+			while ((tag = in.readTag()) != 0) {
+				if (tag == PAYLOAD_TAG) {
+					payloadSize = in.readRawVarint32();
+					payloadOffset = offset + in.getTotalBytesRead();
+					in.skipRawBytes(payloadSize);
+				} else if (tag == CHECKSUM_TAG) {
+					expectedChecksum = in.readInt64();
+					hasChecksum = true;
+				} else if (!in.skipField(tag)) {
+					break;
+				}
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new InvalidProtocolBufferException(e.getMessage());
+		}
+		if (payloadOffset < 0 || !hasChecksum) {
+			throw new InvalidProtocolBufferException("incomplete checked message");
+		}
 
 		CRC32 checksum = new CRC32();
-		checksum.update(wrapper.getPayload().size());
+		checksum.update(buffer, payloadOffset, payloadSize);
+		if (expectedChecksum != checksum.getValue()) {
+			throw new InvalidProtocolBufferException("checksum does not match");
+		}
+		in.reset(buffer, payloadOffset, payloadSize);
+		return in;
+	}
 
-		wrapper = CheckedMessage.newBuilder(wrapper).setChecksum(checksum.getValue()).build();
+	/** Check the image header of a restored resource, without decoding the pixels. */
+	private boolean isDecodableImage(Resource res) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(res.getData().newInput(), null, options);
+		return options.outWidth > 0 && options.outHeight > 0;
+	}
 
-		return wrapper.toByteArray();
+	private ContentValues favoriteToValues(Favorite favorite) {
+		ContentValues values = new ContentValues();
+		values.put(Favorites._ID, favorite.getId());
+		values.put(Favorites.ITEM_TYPE, favorite.getItemType());
+		if (favorite.hasTitle()) {
+			values.put(Favorites.TITLE, favorite.getTitle());
+		}
+		values.put(Favorites.CONTAINER, favorite.getContainer());
+		values.put(Favorites.SCREEN, favorite.getScreen());
+		values.put(Favorites.CELLX, favorite.getCellX());
+		values.put(Favorites.CELLY, favorite.getCellY());
+		values.put(Favorites.SPANX, favorite.getSpanX());
+		values.put(Favorites.SPANY, favorite.getSpanY());
+		if (favorite.hasDisplayMode()) {
+			values.put(Favorites.DISPLAY_MODE, favorite.getDisplayMode());
+		}
+		if (favorite.hasAppWidgetId()) {
+			values.put(Favorites.APPWIDGET_ID, favorite.getAppWidgetId());
+		}
+		if (favorite.hasAppWidgetProvider()) {
+			values.put(Favorites.APPWIDGET_PROVIDER, favorite.getAppWidgetProvider());
+		}
+		if (favorite.hasIntent()) {
+			values.put(Favorites.INTENT, favorite.getIntent());
+		}
+		if (favorite.hasUri()) {
+			values.put(Favorites.URI, favorite.getUri());
+		}
+		values.put(Favorites.ICON_TYPE, favorite.getIconType());
+		if (favorite.hasIconPackage()) {
+			values.put(Favorites.ICON_PACKAGE, favorite.getIconPackage());
+		}
+		if (favorite.hasIconResource()) {
+			values.put(Favorites.ICON_RESOURCE, favorite.getIconResource());
+		}
+		if (favorite.hasIcon()) {
+			values.put(Favorites.ICON, favorite.getIcon().toByteArray());
+		}
+		return values;
 	}
 
-	/** Unwrap a proto message from a CheckedMessage, verifying the checksum. */
-	private byte[] readCheckedBytes(byte[] buffer, int offset, int dataSize)
-			throws InvalidProtocolBufferException {
+	/**
+	 * Insert the pending restored rows, one transaction per table. Restored
+	 * rows keep their backed up ids, so the first batch clears the workspace
+	 * they replace. After a failed batch nothing more is inserted.
+	 */
+	private void flushRestoredRows() {
+		if (!mRestoreFailed && !mWorkspaceCleared
+				&& (!mRestoredScreens.isEmpty() || !mRestoredFavorites.isEmpty())) {
+			final LauncherProvider provider = LauncherAppState.getLauncherProvider();
+			if (provider == null) {
+				Log.e(TAG, "no launcher provider to restore into");
+				mRestoreFailed = true;
+			} else {
+				provider.clearWorkspace(false);
+				mWorkspaceCleared = true;
+			}
+		}
+		insertRestoredRows(WorkspaceScreens.CONTENT_URI, mRestoredScreens, mRestoredScreenKeys);
+		insertRestoredRows(Favorites.CONTENT_URI, mRestoredFavorites, mRestoredFavoriteKeys);
+	}
 
-		byte[] newByte = new byte[dataSize];
-		for (int i = offset; i < (offset + dataSize); i++) {
-			newByte[i - offset] = buffer[i];
+	/** Insert one batch, its keys only count as restored once it is committed. */
+	private void insertRestoredRows(Uri uri, ArrayList<ContentValues> rows, ArrayList<Key> keys) {
+		if (!rows.isEmpty() && !mRestoreFailed) {
+			ContentValues[] values = rows.toArray(new ContentValues[rows.size()]);
+			if (mContext.getContentResolver().bulkInsert(uri, values) == values.length) {
+				mKeys.addAll(keys);
+			} else {
+				Log.e(TAG, "failed to restore " + values.length + " rows into " + uri);
+				mRestoreFailed = true;
+			}
 		}
-		CheckedMessage wrapper = CheckedMessage.newBuilder().setPayload(ByteString.copyFrom(newByte)).build();
+		rows.clear();
+		keys.clear();
+	}
 
-		CRC32 checksum = new CRC32();
-		checksum.update(wrapper.getPayload().size());
-		if (wrapper.getChecksum() != checksum.getValue()) {
-			throw new InvalidProtocolBufferException("checksum does not match");
+	/** Keep the provider from handing out ids that were taken by restored rows. */
+	private void updateMaxIds() {
+		final LauncherProvider provider = LauncherAppState.getLauncherProvider();
+		if (provider == null) {
+			return;
+		}
+		final ContentResolver cr = mContext.getContentResolver();
+		long maxId = queryMaxId(cr, Favorites.CONTENT_URI, Favorites._ID);
+		if (maxId >= 0) {
+			provider.updateMaxItemId(maxId);
+		}
+		maxId = queryMaxId(cr, WorkspaceScreens.CONTENT_URI, WorkspaceScreens._ID);
+		if (maxId >= 0) {
+			provider.updateMaxScreenId(maxId);
+		}
+	}
+
+	private long queryMaxId(ContentResolver cr, Uri uri, String column) {
+		Cursor c = cr.query(uri, new String[] { "MAX(" + column + ")" }, null, null, null);
+		if (c == null) {
+			return -1;
+		}
+		try {
+			return c.moveToNext() ? c.getLong(0) : -1;
+		} finally {
+			c.close();
+		}
+	}
+
+	private int getAppVersion() {
+		try {
+			return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).versionCode;
+		} catch (NameNotFoundException e) {
+			return 0;
 		}
-		return wrapper.getPayload().toByteArray();
 	}
 
 	private AppWidgetProviderInfo findAppWidgetProviderInfo(ComponentName component) {
@@ -1116,6 +1503,98 @@ public class LauncherBackupHelper implements BackupHelper {
 		return mWidgetMap.get(component);
 	}
 
+	/**
+	 * Runs the packing of large rows on a few threads while the agent thread
+	 * writes the finished rows, in the order they were submitted. Rows are
+	 * packed on the calling thread when there are no packing threads.
+	 */
+	/**
+	 * The threads of all packing pipelines, created on first use. They are
+	 * shared by the icon and widget passes and time out when idle.
+	 */
+	private static synchronized ExecutorService getPackingExecutor() {
+		if (sPackingExecutor == null) {
+			sPackingExecutor = new ThreadPoolExecutor(PACKING_THREADS, PACKING_THREADS,
+					PACKING_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			sPackingExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sPackingExecutor;
+	}
+
+	private class PackingPipeline {
+		private final Journal.Builder mOut;
+		private final BackupDataOutput mData;
+		private final ArrayList<Key> mKeys;
+		private final ExecutorService mExecutor;
+		private final ArrayDeque<Pair<Key, Future<byte[]>>> mPending = new ArrayDeque<Pair<Key, Future<byte[]>>>();
+
+		PackingPipeline(Journal.Builder out, BackupDataOutput data, ArrayList<Key> keys) {
+			mOut = out;
+			mData = data;
+			mKeys = keys;
+			mExecutor = PACKING_THREADS > 0 ? getPackingExecutor() : null;
+		}
+
+		boolean isParallel() {
+			return mExecutor != null;
+		}
+
+		/** Pack a row, and write it once it and all rows before it are packed. */
+		void submit(Key key, Callable<byte[]> packer) throws IOException {
+			if (mExecutor == null) {
+				try {
+					write(key, packer.call());
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					Log.w(TAG, "failed to pack " + geKeyType(key) + " " + getKeyName(key), e);
+				}
+				return;
+			}
+			mPending.add(new Pair<Key, Future<byte[]>>(key, mExecutor.submit(packer)));
+			// write what is ready, and don't let too many packed rows pile up
+			while (!mPending.isEmpty()
+					&& (mPending.peek().second.isDone() || mPending.size() > PACKING_THREADS * 2)) {
+				writeNext();
+			}
+		}
+
+		/** Wait for all submitted rows, and write them. */
+		void finish() throws IOException {
+			while (!mPending.isEmpty()) {
+				writeNext();
+			}
+		}
+
+		/** Drop the rows that are not written yet, after a failure. */
+		void cancel() {
+			for (Pair<Key, Future<byte[]>> pending : mPending) {
+				pending.second.cancel(true);
+			}
+			mPending.clear();
+		}
+
+		private void writeNext() throws IOException {
+			Pair<Key, Future<byte[]>> next = mPending.remove();
+			try {
+				write(next.first, next.second.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while packing " + getKeyName(next.first));
+			} catch (ExecutionException e) {
+				Log.w(TAG, "failed to pack " + geKeyType(next.first) + " " + getKeyName(next.first),
+						e.getCause());
+			}
+		}
+
+		private void write(Key key, byte[] blob) throws IOException {
+			mKeys.add(key);
+			if (blob != null) {
+				writeRowToBackup(key, blob, mOut, mData);
+			}
+		}
+	}
+
 	private class KeyParsingException extends Throwable {
 		private KeyParsingException(Throwable cause) {
 			super(cause);
@@ -74,13 +74,12 @@ public class LauncherModel extends BroadcastReceiver {
 	// false = strew non-workspace apps across the workspace on upgrade
 	public static final boolean UPGRADE_USE_MORE_APPS_FOLDER = false;
 
-	private static final int ITEMS_CHUNK = 6; // batch size for the workspace
-												// icons
 	private final boolean mAppsCanBeOnRemoveableStorage;
 
 	private final LauncherAppState mApp;
 	private final Object mLock = new Object();
 	private DeferredHandler mHandler = new DeferredHandler();
+	private final WorkspaceBindScheduler mBindScheduler = new WorkspaceBindScheduler();
 	private LoaderTask mLoaderTask;
 	private boolean mIsLoaderTaskRunning;
 	private volatile boolean mFlushingWorkerThread;
@@ -92,6 +91,9 @@ public class LauncherModel extends BroadcastReceiver {
 	private static final int MAIN_THREAD_NORMAL_RUNNABLE = 0;
 	private static final int MAIN_THREAD_BINDING_RUNNABLE = 1;
 
+	// How long one main thread message may spend draining queued runnables
+	private static final long MAIN_THREAD_DRAIN_BUDGET_MS = 4;
+
 	private static final HandlerThread sWorkerThread = new HandlerThread("launcher-loader");
 	static {
 		sWorkerThread.start();
@@ -212,6 +214,7 @@ public class LauncherModel extends BroadcastReceiver {
 		mApp = app;
 		mBgAllAppsList = new AllAppsList(iconCache, appFilter);
 		mIconCache = iconCache;
+		mHandler.setDrainBudget(MAIN_THREAD_DRAIN_BUDGET_MS);
 
 		mDefaultIcon = Utilities.createIconBitmap(mIconCache.getFullResDefaultActivityIcon(), context);
 
@@ -231,7 +234,7 @@ public class LauncherModel extends BroadcastReceiver {
 	private void runOnMainThread(Runnable r, int type) {
 		if (sWorkerThread.getThreadId() == Process.myTid()) {
 			// If we are on the worker thread, post onto the main handler
-			mHandler.post(r);
+			mHandler.post(r, type);
 		} else {
 			r.run();
 		}
@@ -2216,26 +2219,59 @@ public class LauncherModel extends BroadcastReceiver {
 			runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
 		}
 
+		/**
+		 * Binds a list of workspace items. When sliced, each run binds as many
+		 * items as {@link WorkspaceBindScheduler} allows for the current frame
+		 * and then puts itself back at the front of the main thread queue, so
+		 * that it still finishes before anything queued behind it.
+		 */
+		private class WorkspaceItemsBinder implements Runnable {
+			private final Callbacks mOldCallbacks;
+			private final ArrayList<ItemInfo> mItems;
+			private final int mPhase;
+			private final boolean mSliced;
+			private int mNext;
+
+			WorkspaceItemsBinder(Callbacks oldCallbacks, ArrayList<ItemInfo> items, int phase,
+					boolean sliced) {
+				mOldCallbacks = oldCallbacks;
+				mItems = items;
+				mPhase = phase;
+				mSliced = sliced;
+			}
+
+			@Override
+			public void run() {
+				Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+				if (callbacks == null) {
+					return;
+				}
+				final int N = mItems.size();
+				final int end = mSliced ? Math.min(N, mNext + mBindScheduler.nextChunkSize()) : N;
+				final long t = System.nanoTime();
+				callbacks.bindItems(mItems, mNext, end, false);
+				mBindScheduler.recordItems(mPhase, end - mNext, System.nanoTime() - t);
+				mNext = end;
+				if (mNext < N) {
+					mHandler.postAtFrontOfQueue(this, MAIN_THREAD_BINDING_RUNNABLE);
+				}
+			}
+		}
+
 		private void bindWorkspaceItems(final Callbacks oldCallbacks,
 				final ArrayList<ItemInfo> workspaceItems, final ArrayList<LauncherAppWidgetInfo> appWidgets,
-				final HashMap<Long, FolderInfo> folders, ArrayList<Runnable> deferredBindRunnables) {
+				final HashMap<Long, FolderInfo> folders, ArrayList<Runnable> deferredBindRunnables,
+				final int itemsPhase) {
 
 			final boolean postOnMainThread = (deferredBindRunnables != null);
 
-			// Bind the workspace items
-			int N = workspaceItems.size();
-			for (int i = 0; i < N; i += ITEMS_CHUNK) {
-				final int start = i;
-				final int chunkSize = (i + ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N - i);
-				final Runnable r = new Runnable() {
-					@Override
-					public void run() {
-						Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-						if (callbacks != null) {
-							callbacks.bindItems(workspaceItems, start, start + chunkSize, false);
-						}
-					}
-				};
+			// Bind the workspace items, in slices sized by the bind scheduler
+			// when going through the main thread handler
+			if (!workspaceItems.isEmpty()) {
+				final boolean sliced = postOnMainThread
+						|| sWorkerThread.getThreadId() == Process.myTid();
+				final Runnable r = new WorkspaceItemsBinder(oldCallbacks, workspaceItems, itemsPhase,
+						sliced);
 				if (postOnMainThread) {
 					deferredBindRunnables.add(r);
 				} else {
@@ -2249,7 +2285,10 @@ public class LauncherModel extends BroadcastReceiver {
 					public void run() {
 						Callbacks callbacks = tryGetCallbacks(oldCallbacks);
 						if (callbacks != null) {
+							final long t = System.nanoTime();
 							callbacks.bindFolders(folders);
+							mBindScheduler.recordPhase(WorkspaceBindScheduler.PHASE_FOLDERS,
+									folders.size(), System.nanoTime() - t);
 						}
 					}
 				};
@@ -2268,7 +2307,10 @@ public class LauncherModel extends BroadcastReceiver {
 					public void run() {
 						Callbacks callbacks = tryGetCallbacks(oldCallbacks);
 						if (callbacks != null) {
+							final long t = System.nanoTime();
 							callbacks.bindAppWidget(widget);
+							mBindScheduler.recordPhase(WorkspaceBindScheduler.PHASE_WIDGETS, 1,
+									System.nanoTime() - t);
 						}
 					}
 				};
@@ -2349,7 +2391,8 @@ public class LauncherModel extends BroadcastReceiver {
 			bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
 
 			// Load items on the current page
-			bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets, currentFolders, null);
+			bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets, currentFolders, null,
+					WorkspaceBindScheduler.PHASE_CURRENT_PAGE_ITEMS);
 			if (isLoadingSynchronously) {
 				r = new Runnable() {
 					public void run() {
@@ -2367,7 +2410,8 @@ public class LauncherModel extends BroadcastReceiver {
 			// work until after the first render)
 			mDeferredBindRunnables.clear();
 			bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-					(isLoadingSynchronously ? mDeferredBindRunnables : null));
+					(isLoadingSynchronously ? mDeferredBindRunnables : null),
+					WorkspaceBindScheduler.PHASE_OTHER_PAGE_ITEMS);
 
 			// Tell the workspace that we're done binding items
 			r = new Runnable() {
@@ -2381,6 +2425,9 @@ public class LauncherModel extends BroadcastReceiver {
 					// queue.
 					if (DEBUG_LOADERS) {
 						Log.d(TAG, "bound workspace in " + (SystemClock.uptimeMillis() - t) + "ms");
+						mBindScheduler.dumpAndResetTimings();
+					} else {
+						mBindScheduler.resetTimings();
 					}
 
 					mIsLoadingAndBindingWorkspace = false;
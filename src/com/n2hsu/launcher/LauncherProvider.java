@@ -285,6 +285,36 @@ public class LauncherProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * Deletes all favorites and workspace screens, for a restore to replace
+	 * them.
+	 *
+	 * @param loadDefault
+	 *            load the default workspace the next time the workspace is
+	 *            loaded, like for a new database, instead of keeping what
+	 *            gets inserted next
+	 */
+	synchronized public void clearWorkspace(boolean loadDefault) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_FAVORITES, null, null);
+			db.delete(TABLE_WORKSPACE_SCREENS, null, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		String spKey = LauncherAppState.getSharedPreferencesKey();
+		SharedPreferences sp = getContext().getSharedPreferences(spKey, Context.MODE_PRIVATE);
+		SharedPreferences.Editor editor = sp.edit();
+		editor.putBoolean(EMPTY_DATABASE_CREATED, loadDefault);
+		editor.commit();
+
+		sendNotify(Favorites.CONTENT_URI);
+		sendNotify(LauncherSettings.WorkspaceScreens.CONTENT_URI);
+	}
+
 	private static interface ContentValuesCallback {
 		public void onRow(ContentValues values);
 	}
@@ -44,6 +44,7 @@ import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter {
@@ -51,13 +52,15 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 
 	private final LayoutInflater mInflater;
 	private final PackageManager mPackageManager;
+	private final WallpaperThumbnailLoader mThumbnailLoader;
 
 	private List<LiveWallpaperTile> mWallpapers;
 
 	@SuppressWarnings("unchecked")
-	public LiveWallpaperListAdapter(Context context) {
+	public LiveWallpaperListAdapter(Context context, WallpaperThumbnailLoader thumbnailLoader) {
 		mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 		mPackageManager = context.getPackageManager();
+		mThumbnailLoader = thumbnailLoader;
 
 		List<ResolveInfo> list = mPackageManager.queryIntentServices(new Intent(
 				WallpaperService.SERVICE_INTERFACE), PackageManager.GET_META_DATA);
@@ -93,17 +96,29 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 
 		WallpaperPickerActivity.setWallpaperItemPaddingToZero((FrameLayout) view);
 
-		LiveWallpaperTile wallpaperInfo = mWallpapers.get(position);
+		final LiveWallpaperTile wallpaperInfo = mWallpapers.get(position);
 		wallpaperInfo.setView(view);
-		ImageView image = (ImageView) view.findViewById(R.id.wallpaper_image);
-		ImageView icon = (ImageView) view.findViewById(R.id.wallpaper_icon);
-		if (wallpaperInfo.mThumbnail != null) {
-			image.setImageDrawable(wallpaperInfo.mThumbnail);
-			icon.setVisibility(View.GONE);
-		} else {
-			icon.setImageDrawable(wallpaperInfo.mInfo.loadIcon(mPackageManager));
-			icon.setVisibility(View.VISIBLE);
-		}
+		final ImageView image = (ImageView) view.findViewById(R.id.wallpaper_image);
+		final ImageView icon = (ImageView) view.findViewById(R.id.wallpaper_icon);
+		image.setImageDrawable(null);
+		icon.setVisibility(View.GONE);
+		mThumbnailLoader.load(new WallpaperThumbnailLoader.Request(wallpaperInfo.mThumbnailKey, image) {
+			@Override
+			protected Drawable load() {
+				return wallpaperInfo.mInfo.loadThumbnail(mPackageManager);
+			}
+
+			@Override
+			protected void onLoaded(Drawable thumb) {
+				if (thumb != null) {
+					thumb.setDither(true);
+					image.setImageDrawable(thumb);
+				} else {
+					// Wallpapers without a thumbnail show their icon instead
+					loadIcon(wallpaperInfo, icon);
+				}
+			}
+		});
 
 		TextView label = (TextView) view.findViewById(R.id.wallpaper_item_label);
 		label.setText(wallpaperInfo.mInfo.loadLabel(mPackageManager));
@@ -111,13 +126,31 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 		return view;
 	}
 
+	private void loadIcon(final LiveWallpaperTile wallpaperInfo, final ImageView icon) {
+		mThumbnailLoader.load(new WallpaperThumbnailLoader.Request(wallpaperInfo.mThumbnailKey + ":icon", icon) {
+			@Override
+			protected Drawable load() {
+				return wallpaperInfo.mInfo.loadIcon(mPackageManager);
+			}
+
+			@Override
+			protected void onLoaded(Drawable drawable) {
+				if (drawable != null) {
+					icon.setImageDrawable(drawable);
+					icon.setVisibility(View.VISIBLE);
+				}
+			}
+		});
+	}
+
 	public static class LiveWallpaperTile extends WallpaperPickerActivity.WallpaperTileInfo {
-		private Drawable mThumbnail;
 		private WallpaperInfo mInfo;
+		// Changes when the wallpaper's package is updated
+		private String mThumbnailKey;
 
-		public LiveWallpaperTile(Drawable thumbnail, WallpaperInfo info, Intent intent) {
-			mThumbnail = thumbnail;
+		public LiveWallpaperTile(WallpaperInfo info, Intent intent, String thumbnailKey) {
 			mInfo = info;
+			mThumbnailKey = thumbnailKey;
 		}
 
 		@Override
@@ -144,6 +177,7 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 			final PackageManager packageManager = mContext.getPackageManager();
 
 			List<ResolveInfo> list = params[0];
+			HashMap<String, String> packageKeys = new HashMap<String, String>();
 
 			Collections.sort(list, new Comparator<ResolveInfo>() {
 				final Collator mCollator;
@@ -169,10 +203,16 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 					continue;
 				}
 
-				Drawable thumb = info.loadThumbnail(packageManager);
+				// The thumbnails are loaded when the tiles are bound, see getView
+				String packageKey = packageKeys.get(info.getPackageName());
+				if (packageKey == null) {
+					packageKey = WallpaperThumbnailLoader.getPackageKey(packageManager, info.getPackageName());
+					packageKeys.put(info.getPackageName(), packageKey);
+				}
 				Intent launchIntent = new Intent(WallpaperService.SERVICE_INTERFACE);
 				launchIntent.setClassName(info.getPackageName(), info.getServiceName());
-				LiveWallpaperTile wallpaper = new LiveWallpaperTile(thumb, info, launchIntent);
+				LiveWallpaperTile wallpaper = new LiveWallpaperTile(info, launchIntent, "live:" + packageKey
+						+ ":" + info.getServiceName());
 				publishProgress(wallpaper);
 			}
 			// Send a null object to show loading is finished
@@ -188,7 +228,6 @@ public class LiveWallpaperListAdapter extends BaseAdapter implements ListAdapter
 					LiveWallpaperListAdapter.this.notifyDataSetChanged();
 					break;
 				}
-				info.mThumbnail.setDither(true);
 				if (mWallpaperPosition < mWallpapers.size()) {
 					mWallpapers.set(mWallpaperPosition, info);
 				} else {
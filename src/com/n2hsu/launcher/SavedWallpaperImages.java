@@ -26,12 +26,15 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.ListAdapter;
 
 import com.android.photos.BitmapRegionTileSource;
@@ -43,18 +46,27 @@ import java.util.ArrayList;
 
 public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 	private static String TAG = "Launcher3.SavedWallpaperImages";
+
+	// Writes and deletes of saved images, in order, off the caller's thread
+	private static final HandlerThread sWriterThread = new HandlerThread("wallpaper-writer");
+	static {
+		sWriterThread.start();
+	}
+	private static final Handler sWriter = new Handler(sWriterThread.getLooper());
+
 	private ImageDb mDb;
 	ArrayList<SavedWallpaperTile> mImages;
 	Context mContext;
 	LayoutInflater mLayoutInflater;
+	private final WallpaperThumbnailLoader mThumbnailLoader;
 
 	public static class SavedWallpaperTile extends WallpaperPickerActivity.WallpaperTileInfo {
 		private int mDbId;
-		private Drawable mThumb;
+		private String mThumbFilename;
 
-		public SavedWallpaperTile(int dbId, Drawable thumb) {
+		public SavedWallpaperTile(int dbId, String thumbFilename) {
 			mDbId = dbId;
-			mThumb = thumb;
+			mThumbFilename = thumbFilename;
 		}
 
 		@Override
@@ -91,10 +103,11 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 		}
 	}
 
-	public SavedWallpaperImages(Activity context) {
+	public SavedWallpaperImages(Activity context, WallpaperThumbnailLoader thumbnailLoader) {
 		mDb = new ImageDb(context);
 		mContext = context;
 		mLayoutInflater = context.getLayoutInflater();
+		mThumbnailLoader = thumbnailLoader;
 	}
 
 	public void loadThumbnailsAndImageIdList() {
@@ -106,14 +119,9 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 				null, // args to select query
 				null, null, ImageDb.COLUMN_ID + " DESC", null);
 
+		// The thumbnails are decoded when their tiles are bound, see getView
 		while (result.moveToNext()) {
-			String filename = result.getString(1);
-			File file = new File(mContext.getFilesDir(), filename);
-
-			Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
-			if (thumb != null) {
-				mImages.add(new SavedWallpaperTile(result.getInt(0), new BitmapDrawable(thumb)));
-			}
+			mImages.add(new SavedWallpaperTile(result.getInt(0), result.getString(1)));
 		}
 		result.close();
 	}
@@ -130,13 +138,39 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 		return position;
 	}
 
-	public View getView(int position, View convertView, ViewGroup parent) {
-		Drawable thumbDrawable = mImages.get(position).mThumb;
-		if (thumbDrawable == null) {
-			Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-		}
-		return WallpaperPickerActivity.createImageTileView(mLayoutInflater, position, convertView, parent,
-				thumbDrawable);
+	public View getView(final int position, View convertView, ViewGroup parent) {
+		final SavedWallpaperTile tile = mImages.get(position);
+		View view = WallpaperPickerActivity.createImageTileView(mLayoutInflater, position, convertView,
+				parent, null);
+
+		// Leave the tile empty until its thumbnail is decoded
+		final ImageView image = (ImageView) view.findViewById(R.id.wallpaper_image);
+		image.setImageDrawable(null);
+		mThumbnailLoader.load(new WallpaperThumbnailLoader.Request(getThumbnailKey(tile.mThumbFilename),
+				image) {
+			@Override
+			protected Drawable load() {
+				File file = new File(mContext.getFilesDir(), tile.mThumbFilename);
+				Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
+				return thumb != null ? new BitmapDrawable(mContext.getResources(), thumb) : null;
+			}
+
+			@Override
+			protected void onLoaded(Drawable thumb) {
+				if (thumb == null) {
+					Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
+					return;
+				}
+				thumb.setDither(true);
+				image.setImageDrawable(thumb);
+			}
+		});
+		return view;
+	}
+
+	// Thumbnail files are never rewritten, a new image gets a new file
+	private static String getThumbnailKey(String thumbFilename) {
+		return "saved:" + thumbFilename;
 	}
 
 	public String getImageFilename(int id) {
@@ -165,20 +199,40 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 		}
 	}
 
-	public void deleteImage(int id) {
-		Pair<String, String> filenames = getImageFilenames(id);
-		File imageFile = new File(mContext.getFilesDir(), filenames.first);
-		imageFile.delete();
-		File thumbFile = new File(mContext.getFilesDir(), filenames.second);
-		thumbFile.delete();
-		SQLiteDatabase db = mDb.getWritableDatabase();
-		db.delete(ImageDb.TABLE_NAME, ImageDb.COLUMN_ID + " = ?", // SELECT
-																	// query
-				new String[] { Integer.toString(id) // args to SELECT query
-				});
+	public void deleteImage(final int id) {
+		sWriter.post(new Runnable() {
+			public void run() {
+				Pair<String, String> filenames = getImageFilenames(id);
+				if (filenames == null) {
+					return;
+				}
+				WallpaperThumbnailLoader.removeCached(getThumbnailKey(filenames.first));
+				File imageFile = new File(mContext.getFilesDir(), filenames.first);
+				imageFile.delete();
+				File thumbFile = new File(mContext.getFilesDir(), filenames.second);
+				thumbFile.delete();
+				SQLiteDatabase db = mDb.getWritableDatabase();
+				db.delete(ImageDb.TABLE_NAME, ImageDb.COLUMN_ID + " = ?", // SELECT
+																			// query
+						new String[] { Integer.toString(id) // args to SELECT query
+						});
+			}
+		});
+	}
+
+	/**
+	 * Saves the image and its thumbnail. Returns at once, the files and the
+	 * database are written on a background thread.
+	 */
+	public void writeImage(final Bitmap thumbnail, final byte[] imageBytes) {
+		sWriter.post(new Runnable() {
+			public void run() {
+				writeImageNow(thumbnail, imageBytes);
+			}
+		});
 	}
 
-	public void writeImage(Bitmap thumbnail, byte[] imageBytes) {
+	private void writeImageNow(Bitmap thumbnail, byte[] imageBytes) {
 		try {
 			File imageFile = File.createTempFile("wallpaper", "", mContext.getFilesDir());
 			FileOutputStream imageFileStream = mContext.openFileOutput(imageFile.getName(),
@@ -197,6 +251,9 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
 			values.put(ImageDb.COLUMN_IMAGE_THUMBNAIL_FILENAME, thumbFile.getName());
 			values.put(ImageDb.COLUMN_IMAGE_FILENAME, imageFile.getName());
 			db.insert(ImageDb.TABLE_NAME, null, values);
+			// Shown as soon as the picker opens again
+			WallpaperThumbnailLoader.putCached(getThumbnailKey(thumbFile.getName()), new BitmapDrawable(
+					mContext.getResources(), thumbnail));
 		} catch (IOException e) {
 			Log.e(TAG, "Failed writing images to storage " + e);
 		}
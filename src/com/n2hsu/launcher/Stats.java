@@ -17,14 +17,28 @@
 package com.n2hsu.launcher;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
+/**
+ * Launch statistics. Launch counts are kept per component in memory and
+ * persisted as a snapshot plus an append-only journal of launches, which is
+ * folded back into the snapshot once it grows. All file access happens on the
+ * stats thread.
+ */
 public class Stats {
 	private static final boolean DEBUG_BROADCASTS = false;
 	private static final String TAG = "Launcher3/Stats";
@@ -45,37 +59,96 @@ public class Stats {
 	private static final int LOG_TAG_LAUNCH = 0x1000;
 
 	private static final String STATS_FILE_NAME = "stats.log";
-	private static final int STATS_VERSION = 1;
+	private static final int STATS_VERSION = 4;
+	// intent uri and count per entry, no generation
+	private static final int STATS_VERSION_1 = 1;
+	// component and count per entry, no scores
+	private static final int STATS_VERSION_2 = 2;
+	// component, count and score per entry, not indexed
+	private static final int STATS_VERSION_3 = 3;
+
+	// The current snapshot is read through a mapped buffer. It is a header,
+	// a fixed width index entry per component, and a table of the component
+	// names in UTF-8 that the index entries point into.
+	// version, generation, landmark, entry count, string table size
+	private static final int STATS_HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+	// count, score, key offset, key length
+	private static final int STATS_INDEX_ENTRY_SIZE = 4 + 8 + 4 + 4;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final int INITIAL_STATS_SIZE = 100;
 
-	// TODO: delayed/batched writes
-	private static final boolean FLUSH_IMMEDIATELY = true;
+	private static final String STATS_JOURNAL_FILE_NAME = "stats.journal";
+	private static final int STATS_JOURNAL_VERSION = 2;
+	// records have no launch time
+	private static final int STATS_JOURNAL_VERSION_1 = 1;
+	// fold the journal into the snapshot once it holds this many launches
+	// (or more launches than there are components)
+	private static final int COMPACT_MIN_RECORDS = 256;
+
+	private static final HandlerThread sStatsThread = new HandlerThread("launcher-stats",
+			Process.THREAD_PRIORITY_BACKGROUND);
+	static {
+		sStatsThread.start();
+	}
+	private static final Handler sStatsHandler = new Handler(sStatsThread.getLooper());
+
+	// Launches are logged in batches from the stats thread. A batch is
+	// written once the buffer is half full, or after a delay.
+	private static final int LOG_BUFFER_SIZE = 64;
+	private static final long LOG_FLUSH_DELAY_MS = 5000;
 
 	private final Launcher mLauncher;
 
-	DataOutputStream mLog;
+	// < guarded by mPendingIntents >
+	// Ring of launches waiting to be logged, oldest are dropped when full
+	private final String[] mPendingIntents = new String[LOG_BUFFER_SIZE];
+	private final long[] mPendingTimes = new long[LOG_BUFFER_SIZE];
+	// container, screen, cellX, cellY per launch
+	private final short[] mPendingLocations = new short[LOG_BUFFER_SIZE * 4];
+	private int mPendingHead;
+	private int mPendingCount;
+	private int mDroppedLaunches;
+	private boolean mFlushScheduled;
+	private boolean mSyncRequested;
 
-	ArrayList<String> mIntents;
-	ArrayList<Integer> mHistogram;
+	// < only access on the stats thread >
+	private FileOutputStream mLogFile;
+	private DataOutputStream mLog;
+	private final String[] mWriteIntents = new String[LOG_BUFFER_SIZE];
+	private final long[] mWriteTimes = new long[LOG_BUFFER_SIZE];
+	private final short[] mWriteLocations = new short[LOG_BUFFER_SIZE * 4];
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			writePendingLaunches();
+		}
+	};
+
+	// Guarded by mCounts, only written on the stats thread
+	private final LaunchCountTable mCounts = new LaunchCountTable(INITIAL_STATS_SIZE);
+	private final LaunchRanking mRanking = new LaunchRanking(LaunchRanking.DEFAULT_HALF_LIFE_MS,
+			INITIAL_STATS_SIZE);
+
+	// < only access on the stats thread >
+	private int mGeneration;
+	private boolean mJournalValid;
+	private int mJournalRecords;
+	private DataOutputStream mJournal;
 
 	public Stats(Launcher launcher) {
 		mLauncher = launcher;
 
-		loadStats();
-
-		if (LOCAL_LAUNCH_LOG) {
-			try {
-				mLog = new DataOutputStream(mLauncher.openFileOutput(LOG_FILE_NAME, Context.MODE_APPEND));
-				mLog.writeInt(LOG_TAG_VERSION);
-				mLog.writeInt(LOG_VERSION);
-			} catch (FileNotFoundException e) {
-				Log.e(TAG, "unable to create stats log: " + e);
-				mLog = null;
-			} catch (IOException e) {
-				Log.e(TAG, "unable to write to stats log: " + e);
-				mLog = null;
+		// Runs before any launch is counted, as those are posted later
+		sStatsHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				loadStats();
+				if (LOCAL_LAUNCH_LOG) {
+					openLog();
+				}
 			}
-		}
+		});
 
 		if (DEBUG_BROADCASTS) {
 			launcher.registerReceiver(new BroadcastReceiver() {
@@ -89,13 +162,79 @@ public class Stats {
 	}
 
 	public void incrementLaunch(String intentStr) {
-		int pos = mIntents.indexOf(intentStr);
-		if (pos < 0) {
-			mIntents.add(intentStr);
-			mHistogram.add(1);
-		} else {
-			mHistogram.set(pos, mHistogram.get(pos) + 1);
+		incrementLaunch(intentStr, System.currentTimeMillis());
+	}
+
+	private void incrementLaunch(final String intentStr, final long time) {
+		// counted on the stats thread, so the table always matches what is
+		// in the snapshot and the journal
+		sStatsHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				final String key = getComponentKey(intentStr);
+				final int id;
+				final boolean isNew;
+				synchronized (mCounts) {
+					isNew = mCounts.indexOf(key) < 0;
+					id = mCounts.increment(key, 1);
+					mRanking.addLaunch(id, time);
+				}
+				appendToJournal(id, time, isNew ? key : null);
+			}
+		});
+	}
+
+	/**
+	 * Launches are counted per component when there is one, so the same app
+	 * launched with slightly different intents shares its count.
+	 */
+	static String getComponentKey(String intentStr) {
+		try {
+			ComponentName cn = Intent.parseUri(intentStr, 0).getComponent();
+			if (cn != null) {
+				return cn.flattenToShortString();
+			}
+		} catch (URISyntaxException e) {
+			// count it under the raw string
 		}
+		return intentStr;
+	}
+
+	/** Returns how many times the component of the intent was launched. */
+	public int getLaunchCount(Intent intent) {
+		final String key = getComponentKey(intent.toUri(0));
+		synchronized (mCounts) {
+			final int id = mCounts.indexOf(key);
+			return id < 0 ? 0 : mCounts.countAt(id);
+		}
+	}
+
+	/**
+	 * Returns up to count components, most likely to be launched first. Each
+	 * launch counts for less as it gets older, halving every week.
+	 */
+	public ArrayList<ComponentName> getTopComponents(int count) {
+		final ArrayList<ComponentName> result = new ArrayList<ComponentName>(count);
+		synchronized (mCounts) {
+			// launches without a component are ranked too, ask for more ids
+			// until there are enough components
+			int[] ids = new int[Math.min(count, mRanking.size())];
+			while (ids.length > 0) {
+				final int found = mRanking.getTop(ids.length, ids);
+				result.clear();
+				for (int i = 0; i < found && result.size() < count; i++) {
+					ComponentName cn = ComponentName.unflattenFromString(mCounts.keyAt(ids[i]));
+					if (cn != null) {
+						result.add(cn);
+					}
+				}
+				if (result.size() == count || found == mRanking.size()) {
+					break;
+				}
+				ids = new int[Math.min(ids.length * 2, mRanking.size())];
+			}
+		}
+		return result;
 	}
 
 	public void recordLaunch(Intent intent) {
@@ -116,53 +255,244 @@ public class Stats {
 		}
 		mLauncher.sendBroadcast(broadcastIntent, PERM_LAUNCH);
 
-		incrementLaunch(flat);
+		final long time = System.currentTimeMillis();
+		incrementLaunch(flat, time);
 
-		if (FLUSH_IMMEDIATELY) {
-			saveStats();
+		if (LOCAL_LAUNCH_LOG) {
+			queueLaunch(flat, time, shortcut);
+		}
+	}
+
+	/**
+	 * Writes out everything buffered so far and syncs it to disk, without
+	 * waiting for it. Called when the launcher is paused, as the process may
+	 * be killed any time after that.
+	 */
+	public void flush() {
+		synchronized (mPendingIntents) {
+			mSyncRequested = true;
+			scheduleFlushLocked(true);
 		}
+	}
+
+	private void queueLaunch(String flat, long time, ShortcutInfo shortcut) {
+		synchronized (mPendingIntents) {
+			if (mPendingCount == LOG_BUFFER_SIZE) {
+				// the writer is behind, drop the oldest launch
+				mPendingHead = (mPendingHead + 1) % LOG_BUFFER_SIZE;
+				mPendingCount--;
+				mDroppedLaunches++;
+			}
+			final int index = (mPendingHead + mPendingCount) % LOG_BUFFER_SIZE;
+			mPendingIntents[index] = flat;
+			mPendingTimes[index] = time;
+			final int loc = index * 4;
+			if (shortcut == null) {
+				mPendingLocations[loc] = 0;
+				mPendingLocations[loc + 1] = 0;
+				mPendingLocations[loc + 2] = 0;
+				mPendingLocations[loc + 3] = 0;
+			} else {
+				mPendingLocations[loc] = (short) shortcut.container;
+				mPendingLocations[loc + 1] = (short) shortcut.screenId;
+				mPendingLocations[loc + 2] = (short) shortcut.cellX;
+				mPendingLocations[loc + 3] = (short) shortcut.cellY;
+			}
+			mPendingCount++;
+			scheduleFlushLocked(mPendingCount >= LOG_BUFFER_SIZE / 2);
+		}
+	}
 
-		if (LOCAL_LAUNCH_LOG && mLog != null) {
+	private void scheduleFlushLocked(boolean now) {
+		if (now) {
+			sStatsHandler.removeCallbacks(mFlushRunnable);
+			sStatsHandler.post(mFlushRunnable);
+			mFlushScheduled = true;
+		} else if (!mFlushScheduled) {
+			sStatsHandler.postDelayed(mFlushRunnable, LOG_FLUSH_DELAY_MS);
+			mFlushScheduled = true;
+		}
+	}
+
+	private void openLog() {
+		try {
+			mLogFile = mLauncher.openFileOutput(LOG_FILE_NAME, Context.MODE_APPEND);
+			mLog = new DataOutputStream(new BufferedOutputStream(mLogFile));
+			mLog.writeInt(LOG_TAG_VERSION);
+			mLog.writeInt(LOG_VERSION);
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, "unable to create stats log: " + e);
+			mLog = null;
+		} catch (IOException e) {
+			Log.e(TAG, "unable to write to stats log: " + e);
+			mLog = null;
+		}
+	}
+
+	/**
+	 * Moves the buffered launches out of the ring and writes them to the log,
+	 * then flushes the log and the journal. Runs on the stats thread.
+	 */
+	private void writePendingLaunches() {
+		final int count;
+		final int dropped;
+		final boolean sync;
+		synchronized (mPendingIntents) {
+			count = mPendingCount;
+			for (int i = 0; i < count; i++) {
+				final int index = (mPendingHead + i) % LOG_BUFFER_SIZE;
+				mWriteIntents[i] = mPendingIntents[index];
+				mWriteTimes[i] = mPendingTimes[index];
+				System.arraycopy(mPendingLocations, index * 4, mWriteLocations, i * 4, 4);
+				mPendingIntents[index] = null;
+			}
+			mPendingHead = 0;
+			mPendingCount = 0;
+			dropped = mDroppedLaunches;
+			mDroppedLaunches = 0;
+			sync = mSyncRequested;
+			mSyncRequested = false;
+			mFlushScheduled = false;
+		}
+
+		if (dropped > 0) {
+			Log.w(TAG, "dropped " + dropped + " launches from the stats log");
+		}
+		if (mLog != null) {
 			try {
-				mLog.writeInt(LOG_TAG_LAUNCH);
-				mLog.writeLong(System.currentTimeMillis());
-				if (shortcut == null) {
-					mLog.writeShort(0);
-					mLog.writeShort(0);
-					mLog.writeShort(0);
-					mLog.writeShort(0);
-				} else {
-					mLog.writeShort((short) shortcut.container);
-					mLog.writeShort((short) shortcut.screenId);
-					mLog.writeShort((short) shortcut.cellX);
-					mLog.writeShort((short) shortcut.cellY);
+				for (int i = 0; i < count; i++) {
+					mLog.writeInt(LOG_TAG_LAUNCH);
+					mLog.writeLong(mWriteTimes[i]);
+					for (int j = i * 4; j < i * 4 + 4; j++) {
+						mLog.writeShort(mWriteLocations[j]);
+					}
+					mLog.writeUTF(mWriteIntents[i]);
 				}
-				mLog.writeUTF(flat);
-				if (FLUSH_IMMEDIATELY) {
-					mLog.flush(); // TODO: delayed writes
+				mLog.flush();
+				if (sync) {
+					mLogFile.getFD().sync();
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		for (int i = 0; i < count; i++) {
+			mWriteIntents[i] = null;
+		}
+
+		if (mJournal != null) {
+			try {
+				mJournal.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "unable to write to stats journal: " + e);
+				// don't append after a partial record, start over from a snapshot
+				saveStats();
+			}
+		}
+	}
+
+	/**
+	 * Append a launch to the journal. A new component is written with its key,
+	 * later launches only with its id.
+	 */
+	private void appendToJournal(int id, long time, String newKey) {
+		try {
+			if (mJournal == null) {
+				openJournal();
+			}
+			mJournal.writeInt(id);
+			mJournal.writeLong(time);
+			if (newKey != null) {
+				mJournal.writeUTF(newKey);
+			}
+			mJournalRecords++;
+			// flushed along with the launch log
+			synchronized (mPendingIntents) {
+				scheduleFlushLocked(false);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "unable to write to stats journal: " + e);
+			// don't append after a partial record, start over from a snapshot
+			saveStats();
+			return;
+		}
+
+		if (mJournalRecords >= Math.max(COMPACT_MIN_RECORDS, mCounts.size())) {
+			saveStats();
+		}
+	}
+
+	private void openJournal() throws IOException {
+		if (mJournalValid) {
+			mJournal = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(
+					STATS_JOURNAL_FILE_NAME, Context.MODE_APPEND)));
+		} else {
+			// start a journal for the current snapshot
+			mJournal = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(
+					STATS_JOURNAL_FILE_NAME, Context.MODE_PRIVATE)));
+			mJournal.writeInt(STATS_JOURNAL_VERSION);
+			mJournal.writeInt(mGeneration);
+			mJournal.flush();
+			mJournalValid = true;
+			mJournalRecords = 0;
+		}
+	}
+
+	private void closeJournal() {
+		if (mJournal != null) {
+			try {
+				mJournal.close();
+			} catch (IOException e) {
+			}
+			mJournal = null;
+		}
 	}
 
+	/**
+	 * Write a new snapshot of all counts and start an empty journal. Both files
+	 * carry a generation, so a journal that was already folded into the
+	 * snapshot is ignored if we die before it is replaced.
+	 */
 	private void saveStats() {
+		final int generation = mGeneration + 1;
+
 		DataOutputStream stats = null;
 		try {
-			stats = new DataOutputStream(mLauncher.openFileOutput(STATS_FILE_NAME + ".tmp",
-					Context.MODE_PRIVATE));
+			stats = new DataOutputStream(new BufferedOutputStream(mLauncher.openFileOutput(STATS_FILE_NAME
+					+ ".tmp", Context.MODE_PRIVATE)));
+			// no lock needed to read, the table is only written on this thread
+			final int N = mCounts.size();
+			final byte[][] keys = new byte[N][];
+			int stringsSize = 0;
+			for (int i = 0; i < N; i++) {
+				keys[i] = mCounts.keyAt(i).getBytes(UTF_8);
+				stringsSize += keys[i].length;
+			}
+
 			stats.writeInt(STATS_VERSION);
-			final int N = mHistogram.size();
+			stats.writeInt(generation);
+			stats.writeLong(mRanking.getLandmark());
 			stats.writeInt(N);
+			stats.writeInt(stringsSize);
+			int keyOffset = 0;
 			for (int i = 0; i < N; i++) {
-				stats.writeUTF(mIntents.get(i));
-				stats.writeInt(mHistogram.get(i));
+				stats.writeInt(mCounts.countAt(i));
+				stats.writeDouble(mRanking.getRawScore(i));
+				stats.writeInt(keyOffset);
+				stats.writeInt(keys[i].length);
+				keyOffset += keys[i].length;
+			}
+			for (int i = 0; i < N; i++) {
+				stats.write(keys[i]);
 			}
 			stats.close();
 			stats = null;
-			mLauncher.getFileStreamPath(STATS_FILE_NAME + ".tmp").renameTo(
-					mLauncher.getFileStreamPath(STATS_FILE_NAME));
+			if (mLauncher.getFileStreamPath(STATS_FILE_NAME + ".tmp").renameTo(
+					mLauncher.getFileStreamPath(STATS_FILE_NAME))) {
+				mGeneration = generation;
+				closeJournal();
+				mJournalValid = false;
+			}
 		} catch (FileNotFoundException e) {
 			Log.e(TAG, "unable to create stats data: " + e);
 		} catch (IOException e) {
@@ -178,20 +508,154 @@ public class Stats {
 	}
 
 	private void loadStats() {
-		mIntents = new ArrayList<String>(INITIAL_STATS_SIZE);
-		mHistogram = new ArrayList<Integer>(INITIAL_STATS_SIZE);
+		boolean needsCompaction = false;
+		synchronized (mCounts) {
+			boolean hasJournal = true;
+			final int version = loadMappedStats();
+			if (version != STATS_VERSION && version != 0) {
+				// rewrite it in the current format right away
+				hasJournal = loadOldStats(version);
+				needsCompaction = true;
+			}
+			// a damaged journal is folded into a new snapshot before it is
+			// appended to again
+			if (hasJournal && !replayJournal()) {
+				needsCompaction = true;
+			}
+		}
+		if (needsCompaction) {
+			saveStats();
+		}
+	}
+
+	/**
+	 * Loads a snapshot in the current format by mapping it, so the index and
+	 * the names are read straight out of the page cache. The entries are
+	 * still decoded into the table up front, launches and the journal look
+	 * them up by name and add to them.
+	 *
+	 * @return the version of the snapshot, or 0 if there is none.
+	 */
+	private int loadMappedStats() {
+		FileInputStream in = null;
+		try {
+			in = mLauncher.openFileInput(STATS_FILE_NAME);
+			final FileChannel channel = in.getChannel();
+			final long size = channel.size();
+			if (size < 4) {
+				return 0;
+			}
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			final int version = buffer.getInt(0);
+			if (version != STATS_VERSION) {
+				return version;
+			}
+
+			final int N = size >= STATS_HEADER_SIZE ? buffer.getInt(16) : -1;
+			final int stringsSize = size >= STATS_HEADER_SIZE ? buffer.getInt(20) : -1;
+			final long stringsStart = STATS_HEADER_SIZE + (long) N * STATS_INDEX_ENTRY_SIZE;
+			if (N < 0 || stringsSize < 0 || stringsStart + stringsSize != size) {
+				Log.w(TAG, "bad stats data, size " + size);
+				return 0;
+			}
+
+			mGeneration = buffer.getInt(4);
+			mRanking.reset(buffer.getLong(8));
+			byte[] key = new byte[64];
+			for (int i = 0; i < N; i++) {
+				final int entry = STATS_HEADER_SIZE + i * STATS_INDEX_ENTRY_SIZE;
+				final int count = buffer.getInt(entry);
+				final double score = buffer.getDouble(entry + 4);
+				final int keyOffset = buffer.getInt(entry + 12);
+				final int keyLength = buffer.getInt(entry + 16);
+				if (keyOffset < 0 || keyLength < 0 || (long) keyOffset + keyLength > stringsSize) {
+					Log.w(TAG, "bad stats index entry " + i);
+					resetStats();
+					return 0;
+				}
+				if (key.length < keyLength) {
+					key = new byte[keyLength];
+				}
+				buffer.position((int) stringsStart + keyOffset);
+				buffer.get(key, 0, keyLength);
+				mRanking.setScore(mCounts.increment(new String(key, 0, keyLength, UTF_8), count), score);
+			}
+			return version;
+		} catch (FileNotFoundException e) {
+			// not a problem
+			return 0;
+		} catch (IOException e) {
+			Log.e(TAG, "unable to read stats data: " + e);
+			resetStats();
+			return 0;
+		} catch (RuntimeException e) {
+			// the mapped buffer throws on reads past its end, which only bad
+			// data gets to
+			Log.w(TAG, "bad stats data: " + e);
+			resetStats();
+			return 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops what was loaded from a snapshot that turned out to be bad. The
+	 * generation goes too, so its journal isn't replayed onto nothing.
+	 */
+	private void resetStats() {
+		mCounts.clear();
+		mRanking.reset(0);
+		mGeneration = 0;
+	}
+
+	/**
+	 * Loads a snapshot in one of the older stream formats.
+	 *
+	 * @return false if the snapshot predates the journal.
+	 */
+	private boolean loadOldStats(int version) {
 		DataInputStream stats = null;
 		try {
-			stats = new DataInputStream(mLauncher.openFileInput(STATS_FILE_NAME));
-			final int version = stats.readInt();
-			if (version == STATS_VERSION) {
+			stats = new DataInputStream(new BufferedInputStream(mLauncher.openFileInput(STATS_FILE_NAME)));
+			stats.readInt();
+			if (version == STATS_VERSION_3) {
+				mGeneration = stats.readInt();
+				mRanking.reset(stats.readLong());
 				final int N = stats.readInt();
 				for (int i = 0; i < N; i++) {
-					final String pkg = stats.readUTF();
+					final String key = stats.readUTF();
 					final int count = stats.readInt();
-					mIntents.add(pkg);
-					mHistogram.add(count);
+					final double score = stats.readDouble();
+					mRanking.setScore(mCounts.increment(key, count), score);
 				}
+			} else if (version == STATS_VERSION_2) {
+				mGeneration = stats.readInt();
+				final int N = stats.readInt();
+				for (int i = 0; i < N; i++) {
+					final String key = stats.readUTF();
+					final int count = stats.readInt();
+					mCounts.increment(key, count);
+				}
+				seedScoresFromCounts();
+			} else if (version == STATS_VERSION_1) {
+				// entries are keyed by intent, merge them by component
+				final int N = stats.readInt();
+				for (int i = 0; i < N; i++) {
+					final String intentStr = stats.readUTF();
+					final int count = stats.readInt();
+					mCounts.increment(getComponentKey(intentStr), count);
+				}
+				seedScoresFromCounts();
+				// has no generation, so no journal belongs to it
+				return false;
+			} else {
+				Log.w(TAG, "unknown stats version " + version);
 			}
 		} catch (FileNotFoundException e) {
 			// not a problem
@@ -206,5 +670,74 @@ public class Stats {
 				}
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Older snapshots have no launch times, so their launches are ranked as if
+	 * they all just happened.
+	 */
+	private void seedScoresFromCounts() {
+		mRanking.reset(System.currentTimeMillis());
+		final int N = mCounts.size();
+		for (int i = 0; i < N; i++) {
+			mRanking.setScore(i, mCounts.countAt(i));
+		}
+	}
+
+	/**
+	 * Add the launches in the journal of the current snapshot to the counts.
+	 *
+	 * @return false if the journal ends in a partial or bad record.
+	 */
+	private boolean replayJournal() {
+		DataInputStream journal = null;
+		try {
+			journal = new DataInputStream(new BufferedInputStream(
+					mLauncher.openFileInput(STATS_JOURNAL_FILE_NAME)));
+			final int version = journal.readInt();
+			if ((version != STATS_JOURNAL_VERSION && version != STATS_JOURNAL_VERSION_1)
+					|| journal.readInt() != mGeneration) {
+				return true;
+			}
+			// an old journal is folded into a new snapshot rather than mixing
+			// record formats
+			mJournalValid = version == STATS_JOURNAL_VERSION;
+			final long fallbackTime = mLauncher.getFileStreamPath(STATS_JOURNAL_FILE_NAME)
+					.lastModified();
+			while (true) {
+				final int id;
+				try {
+					id = journal.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				final long time = version == STATS_JOURNAL_VERSION ? journal.readLong() : fallbackTime;
+				if (id == mCounts.size()) {
+					mRanking.addLaunch(mCounts.increment(journal.readUTF(), 1), time);
+				} else if (id >= 0 && id < mCounts.size()) {
+					mCounts.incrementAt(id, 1);
+					mRanking.addLaunch(id, time);
+				} else {
+					Log.w(TAG, "bad stats journal record: " + id);
+					return false;
+				}
+				mJournalRecords++;
+			}
+			return mJournalValid;
+		} catch (FileNotFoundException e) {
+			// not a problem
+			return true;
+		} catch (IOException e) {
+			// a torn last record, keep what was read
+			return false;
+		} finally {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+				}
+			}
+		}
 	}
 }
@@ -43,14 +43,18 @@ public class ThirdPartyWallpaperPickerListAdapter extends BaseAdapter implements
 	private final LayoutInflater mInflater;
 	private final PackageManager mPackageManager;
 	private final int mIconSize;
+	private final WallpaperThumbnailLoader mThumbnailLoader;
 
 	private List<ThirdPartyWallpaperTile> mThirdPartyWallpaperPickers = new ArrayList<ThirdPartyWallpaperTile>();
 
 	public static class ThirdPartyWallpaperTile extends WallpaperPickerActivity.WallpaperTileInfo {
 		private ResolveInfo mResolveInfo;
+		// Changes when the picker's package is updated
+		private String mIconKey;
 
-		public ThirdPartyWallpaperTile(ResolveInfo resolveInfo) {
+		public ThirdPartyWallpaperTile(ResolveInfo resolveInfo, String iconKey) {
 			mResolveInfo = resolveInfo;
+			mIconKey = iconKey;
 		}
 
 		@Override
@@ -64,10 +68,11 @@ public class ThirdPartyWallpaperPickerListAdapter extends BaseAdapter implements
 		}
 	}
 
-	public ThirdPartyWallpaperPickerListAdapter(Context context) {
+	public ThirdPartyWallpaperPickerListAdapter(Context context, WallpaperThumbnailLoader thumbnailLoader) {
 		mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 		mPackageManager = context.getPackageManager();
 		mIconSize = context.getResources().getDimensionPixelSize(R.dimen.wallpaperItemIconSize);
+		mThumbnailLoader = thumbnailLoader;
 		final PackageManager pm = mPackageManager;
 
 		final Intent pickWallpaperIntent = new Intent(Intent.ACTION_SET_WALLPAPER);
@@ -101,7 +106,9 @@ public class ThirdPartyWallpaperPickerListAdapter extends BaseAdapter implements
 					continue outerLoop;
 				}
 			}
-			mThirdPartyWallpaperPickers.add(new ThirdPartyWallpaperTile(info));
+			String iconKey = "icon:" + WallpaperThumbnailLoader.getPackageKey(pm, itemPackageName) + ":"
+					+ info.activityInfo.name;
+			mThirdPartyWallpaperPickers.add(new ThirdPartyWallpaperTile(info, iconKey));
 		}
 	}
 
@@ -128,12 +135,25 @@ public class ThirdPartyWallpaperPickerListAdapter extends BaseAdapter implements
 
 		WallpaperPickerActivity.setWallpaperItemPaddingToZero((FrameLayout) view);
 
-		ResolveInfo info = mThirdPartyWallpaperPickers.get(position).mResolveInfo;
-		TextView label = (TextView) view.findViewById(R.id.wallpaper_item_label);
+		ThirdPartyWallpaperTile tile = mThirdPartyWallpaperPickers.get(position);
+		final ResolveInfo info = tile.mResolveInfo;
+		final TextView label = (TextView) view.findViewById(R.id.wallpaper_item_label);
 		label.setText(info.loadLabel(mPackageManager));
-		Drawable icon = info.loadIcon(mPackageManager);
-		icon.setBounds(new Rect(0, 0, mIconSize, mIconSize));
-		label.setCompoundDrawables(null, icon, null, null);
+		label.setCompoundDrawables(null, null, null, null);
+		mThumbnailLoader.load(new WallpaperThumbnailLoader.Request(tile.mIconKey, label) {
+			@Override
+			protected Drawable load() {
+				return info.loadIcon(mPackageManager);
+			}
+
+			@Override
+			protected void onLoaded(Drawable icon) {
+				if (icon != null) {
+					icon.setBounds(new Rect(0, 0, mIconSize, mIconSize));
+					label.setCompoundDrawables(null, icon, null, null);
+				}
+			}
+		});
 		return view;
 	}
 }
@@ -19,6 +19,7 @@ package com.n2hsu.launcher;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.WallpaperManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -46,7 +47,9 @@ import android.view.WindowManager;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.exif.ExifInterface;
 import com.n2hsu.launcher.R;
+import com.android.photos.BitmapPool;
 import com.android.photos.BitmapRegionTileSource;
+import com.android.photos.DecodePlanner;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -196,25 +199,30 @@ public class WallpaperCropActivity extends Activity {
 
 	private static int getRotationFromExifHelper(String path, Resources res, int resId, Context context,
 			Uri uri) {
+		// Only the orientation is needed, so skip the rest of the exif data
 		ExifInterface ei = new ExifInterface();
+		InputStream is = null;
 		try {
+			Integer ori;
 			if (path != null) {
-				ei.readExif(path);
-			} else if (uri != null) {
-				InputStream is = context.getContentResolver().openInputStream(uri);
-				BufferedInputStream bis = new BufferedInputStream(is);
-				ei.readExif(bis);
+				ori = ei.readOrientation(path);
+			} else if (uri != null && ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+				ori = ei.readOrientation(uri.getPath());
 			} else {
-				InputStream is = res.openRawResource(resId);
-				BufferedInputStream bis = new BufferedInputStream(is);
-				ei.readExif(bis);
+				if (uri != null) {
+					is = context.getContentResolver().openInputStream(uri);
+				} else {
+					is = res.openRawResource(resId);
+				}
+				ori = ei.readOrientation(new BufferedInputStream(is));
 			}
-			Integer ori = ei.getTagIntValue(ExifInterface.TAG_ORIENTATION);
 			if (ori != null) {
 				return ExifInterface.getRotationForOrientationValue(ori.shortValue());
 			}
 		} catch (IOException e) {
 			Log.w(LOGTAG, "Getting exif data failed", e);
+		} finally {
+			Utils.closeSilently(is);
 		}
 		return 0;
 	}
@@ -363,6 +371,11 @@ public class WallpaperCropActivity extends Activity {
 	}
 
 	protected static class BitmapCropTask extends AsyncTask<Void, Void, Boolean> {
+		// Rows of the (sampled) source decoded at a time by cropInBands
+		private static final int CROP_BAND_ROWS = 256;
+		// Extra rows decoded around each band, for filtering at its edges
+		private static final int CROP_BAND_OVERLAP = 2;
+
 		Uri mInUri = null;
 		Context mContext;
 		String mInFilePath;
@@ -530,9 +543,12 @@ public class WallpaperCropActivity extends Activity {
 					return false;
 				}
 
-				// See how much we're reducing the size of the image
-				int scaleDownSampleSize = Math.min(roundedTrueCrop.width() / mOutWidth,
-						roundedTrueCrop.height() / mOutHeight);
+				// See how much we're reducing the size of the image. The output
+				// size is after rotation, the crop before
+				boolean sideways = mRotation == 90 || mRotation == 270;
+				int scaleDownSampleSize = DecodePlanner.getSampleSize(roundedTrueCrop.width(),
+						roundedTrueCrop.height(), sideways ? mOutHeight : mOutWidth, sideways ? mOutWidth
+								: mOutHeight);
 
 				// Attempt to open a region decoder
 				BitmapRegionDecoder decoder = null;
@@ -543,26 +559,33 @@ public class WallpaperCropActivity extends Activity {
 				}
 
 				Bitmap crop = null;
+				// Whether crop is already rotated and scaled to the output
+				boolean transformed = false;
 				if (decoder != null) {
-					// Do region decoding to get crop bitmap
-					BitmapFactory.Options options = new BitmapFactory.Options();
-					if (scaleDownSampleSize > 1) {
-						options.inSampleSize = scaleDownSampleSize;
-					}
-					crop = decoder.decodeRegion(roundedTrueCrop, options);
+					crop = cropInBands(decoder, roundedTrueCrop, scaleDownSampleSize, rotateMatrix);
+					transformed = crop != null;
 					decoder.recycle();
 				}
 
 				if (crop == null) {
 					// BitmapRegionDecoder has failed, try to crop in-memory
+					Point bounds = getImageBounds();
 					regenerateInputStream();
 					Bitmap fullSize = null;
 					if (mInStream != null) {
+						DecodePlanner.Plan plan = DecodePlanner.plan(bounds != null ? new Rect(0, 0, bounds.x,
+								bounds.y) : new Rect(), scaleDownSampleSize);
 						BitmapFactory.Options options = new BitmapFactory.Options();
-						if (scaleDownSampleSize > 1) {
-							options.inSampleSize = scaleDownSampleSize;
+						DecodePlanner.prepare(plan, options);
+						try {
+							fullSize = BitmapFactory.decodeStream(mInStream, null, options);
+						} catch (IllegalArgumentException e) {
+							// The decoder can't use the pooled bitmap, decode without it
+							BitmapPool.getInstance().put(options.inBitmap);
+							options.inBitmap = null;
+							regenerateInputStream();
+							fullSize = BitmapFactory.decodeStream(mInStream, null, options);
 						}
-						fullSize = BitmapFactory.decodeStream(mInStream, null, options);
 					}
 					if (fullSize != null) {
 						mCropBounds.left /= scaleDownSampleSize;
@@ -573,6 +596,9 @@ public class WallpaperCropActivity extends Activity {
 
 						crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left, roundedTrueCrop.top,
 								roundedTrueCrop.width(), roundedTrueCrop.height());
+						if (crop != fullSize) {
+							BitmapPool.getInstance().put(fullSize);
+						}
 					}
 				}
 
@@ -581,42 +607,9 @@ public class WallpaperCropActivity extends Activity {
 					failure = true;
 					return false;
 				}
-				if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
-					float[] dimsAfter = new float[] { crop.getWidth(), crop.getHeight() };
-					rotateMatrix.mapPoints(dimsAfter);
-					dimsAfter[0] = Math.abs(dimsAfter[0]);
-					dimsAfter[1] = Math.abs(dimsAfter[1]);
-
-					if (!(mOutWidth > 0 && mOutHeight > 0)) {
-						mOutWidth = Math.round(dimsAfter[0]);
-						mOutHeight = Math.round(dimsAfter[1]);
-					}
-
-					RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
-					RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
-
-					Matrix m = new Matrix();
-					if (mRotation == 0) {
-						m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-					} else {
-						Matrix m1 = new Matrix();
-						m1.setTranslate(-crop.getWidth() / 2f, -crop.getHeight() / 2f);
-						Matrix m2 = new Matrix();
-						m2.setRotate(mRotation);
-						Matrix m3 = new Matrix();
-						m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
-						Matrix m4 = new Matrix();
-						m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-
-						Matrix c1 = new Matrix();
-						c1.setConcat(m2, m1);
-						Matrix c2 = new Matrix();
-						c2.setConcat(m4, m3);
-						m.setConcat(c2, c1);
-					}
-
-					Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(), (int) returnRect.height(),
-							Bitmap.Config.ARGB_8888);
+				if (!transformed && (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0)) {
+					Matrix m = getCropToOutputMatrix(crop.getWidth(), crop.getHeight(), rotateMatrix);
+					Bitmap tmp = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
 					if (tmp != null) {
 						Canvas c = new Canvas(tmp);
 						Paint p = new Paint();
@@ -657,6 +650,104 @@ public class WallpaperCropActivity extends Activity {
 			return !failure; // True if any of the operations failed
 		}
 
+		/**
+		 * Returns the matrix that rotates and scales a crop of the given size
+		 * into the output, and sets the output size to the rotated crop if it
+		 * wasn't given.
+		 */
+		private Matrix getCropToOutputMatrix(float cropWidth, float cropHeight, Matrix rotateMatrix) {
+			float[] dimsAfter = new float[] { cropWidth, cropHeight };
+			rotateMatrix.mapPoints(dimsAfter);
+			dimsAfter[0] = Math.abs(dimsAfter[0]);
+			dimsAfter[1] = Math.abs(dimsAfter[1]);
+
+			if (!(mOutWidth > 0 && mOutHeight > 0)) {
+				mOutWidth = Math.round(dimsAfter[0]);
+				mOutHeight = Math.round(dimsAfter[1]);
+			}
+
+			RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
+			RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+
+			Matrix m = new Matrix();
+			if (mRotation == 0) {
+				m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+			} else {
+				Matrix m1 = new Matrix();
+				m1.setTranslate(-cropWidth / 2f, -cropHeight / 2f);
+				Matrix m2 = new Matrix();
+				m2.setRotate(mRotation);
+				Matrix m3 = new Matrix();
+				m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
+				Matrix m4 = new Matrix();
+				m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+
+				Matrix c1 = new Matrix();
+				c1.setConcat(m2, m1);
+				Matrix c2 = new Matrix();
+				c2.setConcat(m4, m3);
+				m.setConcat(c2, c1);
+			}
+			return m;
+		}
+
+		/**
+		 * Decodes the crop in horizontal bands and draws each one, rotated
+		 * and scaled, straight into the output bitmap. Only one band of the
+		 * source is in memory at a time, instead of the whole decoded crop and
+		 * a transformed copy of it. Returns null if a band fails to decode.
+		 */
+		private Bitmap cropInBands(BitmapRegionDecoder decoder, Rect crop, int sampleSize,
+				Matrix rotateMatrix) {
+			sampleSize = Math.max(1, sampleSize);
+			final float sampledWidth = crop.width() / (float) sampleSize;
+			Matrix m = getCropToOutputMatrix(sampledWidth, crop.height() / (float) sampleSize,
+					rotateMatrix);
+			Bitmap out = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(out);
+			Paint paint = new Paint();
+			paint.setFilterBitmap(true);
+
+			// Each band goes back to the pool when drawn, and the next one is
+			// decoded into it
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			BitmapPool pool = BitmapPool.getInstance();
+
+			// Bands are whole sampled rows, so they line up with each other
+			final int bandHeight = CROP_BAND_ROWS * sampleSize;
+			final int overlap = CROP_BAND_OVERLAP * sampleSize;
+			Rect region = new Rect();
+			RectF band = new RectF();
+			Matrix bandMatrix = new Matrix();
+			for (int top = crop.top; top < crop.bottom; top += bandHeight) {
+				int bottom = Math.min(crop.bottom, top + bandHeight);
+				// Decode a little past the band, so filtering at its edges sees
+				// the same pixels as if the crop was drawn in one go
+				region.set(crop.left, Math.max(crop.top, top - overlap), crop.right,
+						Math.min(crop.bottom, bottom + overlap));
+				Bitmap strip = DecodePlanner.decodeRegion(decoder, DecodePlanner.plan(region, sampleSize),
+						options);
+				if (strip == null) {
+					out.recycle();
+					return null;
+				}
+
+				// Only draw the band itself, the overlap belongs to its
+				// neighbors
+				band.set(0, (top - crop.top) / (float) sampleSize, sampledWidth, (bottom - crop.top)
+						/ (float) sampleSize);
+				m.mapRect(band);
+				bandMatrix.set(m);
+				bandMatrix.preTranslate(0, (region.top - crop.top) / (float) sampleSize);
+				canvas.save();
+				canvas.clipRect(band);
+				canvas.drawBitmap(strip, bandMatrix, paint);
+				canvas.restore();
+				pool.put(strip);
+			}
+			return out;
+		}
+
 		@Override
 		protected Boolean doInBackground(Void... params) {
 			return cropBitmap();
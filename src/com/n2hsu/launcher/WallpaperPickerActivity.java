@@ -97,6 +97,7 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 
 	ArrayList<Uri> mTempWallpaperTiles = new ArrayList<Uri>();
 	private SavedWallpaperImages mSavedImages;
+	private WallpaperThumbnailLoader mThumbnailLoader;
 	private WallpaperInfo mLiveWallpaperInfoOnPickerLaunch;
 
 	public static abstract class WallpaperTileInfo {
@@ -184,6 +185,9 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 		private Resources mResources;
 		private int mResId;
 		private Drawable mThumb;
+		// Loaded when the tile is bound, if mThumb is null
+		private int mThumbResId;
+		private String mThumbKey;
 
 		public ResourceWallpaperInfo(Resources res, int resId, Drawable thumb) {
 			mResources = res;
@@ -191,6 +195,13 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 			mThumb = thumb;
 		}
 
+		public ResourceWallpaperInfo(Resources res, int resId, int thumbResId, String thumbKey) {
+			mResources = res;
+			mResId = resId;
+			mThumbResId = thumbResId;
+			mThumbKey = thumbKey;
+		}
+
 		@Override
 		public void onClick(WallpaperPickerActivity a) {
 			int rotation = WallpaperCropActivity.getRotationFromExif(mResources, mResId);
@@ -328,20 +339,24 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 			}
 		};
 
+		// The tiles' thumbnails are loaded in the background, starting with
+		// the ones visible in the strip
+		mThumbnailLoader = new WallpaperThumbnailLoader(findViewById(R.id.wallpaper_scroll_container));
+
 		// Populate the built-in wallpapers
 		ArrayList<ResourceWallpaperInfo> wallpapers = findBundledWallpapers();
 		mWallpapersView = (LinearLayout) findViewById(R.id.wallpaper_list);
-		BuiltInWallpapersAdapter ia = new BuiltInWallpapersAdapter(this, wallpapers);
+		BuiltInWallpapersAdapter ia = new BuiltInWallpapersAdapter(this, wallpapers, mThumbnailLoader);
 		populateWallpapersFromAdapter(mWallpapersView, ia, false, true);
 
 		// Populate the saved wallpapers
-		mSavedImages = new SavedWallpaperImages(this);
+		mSavedImages = new SavedWallpaperImages(this, mThumbnailLoader);
 		mSavedImages.loadThumbnailsAndImageIdList();
 		populateWallpapersFromAdapter(mWallpapersView, mSavedImages, true, true);
 
 		// Populate the live wallpapers
 		final LinearLayout liveWallpapersView = (LinearLayout) findViewById(R.id.live_wallpaper_list);
-		final LiveWallpaperListAdapter a = new LiveWallpaperListAdapter(this);
+		final LiveWallpaperListAdapter a = new LiveWallpaperListAdapter(this, mThumbnailLoader);
 		a.registerDataSetObserver(new DataSetObserver() {
 			public void onChanged() {
 				liveWallpapersView.removeAllViews();
@@ -353,7 +368,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 
 		// Populate the third-party wallpaper pickers
 		final LinearLayout thirdPartyWallpapersView = (LinearLayout) findViewById(R.id.third_party_wallpaper_list);
-		final ThirdPartyWallpaperPickerListAdapter ta = new ThirdPartyWallpaperPickerListAdapter(this);
+		final ThirdPartyWallpaperPickerListAdapter ta = new ThirdPartyWallpaperPickerListAdapter(this,
+				mThumbnailLoader);
 		populateWallpapersFromAdapter(thirdPartyWallpapersView, ta, false, false);
 
 		// Add a tile for the Gallery
@@ -528,6 +544,14 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 		}
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		if (mThumbnailLoader != null) {
+			mThumbnailLoader.cancelAll();
+		}
+	}
+
 	protected void onSaveInstanceState(Bundle outState) {
 		outState.putParcelableArrayList(TEMP_WALLPAPER_TILES, mTempWallpaperTiles);
 	}
@@ -711,7 +735,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 		if (r != null) {
 			try {
 				Resources wallpaperRes = getPackageManager().getResourcesForApplication(r.first);
-				bundledWallpapers = addWallpapers(wallpaperRes, r.first.packageName, r.second);
+				bundledWallpapers = addWallpapers(wallpaperRes, r.first.packageName, r.second,
+						WallpaperThumbnailLoader.getPackageKey(getPackageManager(), r.first.packageName));
 			} catch (PackageManager.NameNotFoundException e) {
 			}
 		}
@@ -773,7 +798,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 		}
 	}
 
-	private ArrayList<ResourceWallpaperInfo> addWallpapers(Resources res, String packageName, int listResId) {
+	private ArrayList<ResourceWallpaperInfo> addWallpapers(Resources res, String packageName, int listResId,
+			String packageKey) {
 		ArrayList<ResourceWallpaperInfo> bundledWallpapers = new ArrayList<ResourceWallpaperInfo>(24);
 		final String[] extras = res.getStringArray(listResId);
 		for (String extra : extras) {
@@ -782,8 +808,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 				final int thumbRes = res.getIdentifier(extra + "_small", "drawable", packageName);
 
 				if (thumbRes != 0) {
-					ResourceWallpaperInfo wallpaperInfo = new ResourceWallpaperInfo(res, resId,
-							res.getDrawable(thumbRes));
+					ResourceWallpaperInfo wallpaperInfo = new ResourceWallpaperInfo(res, resId, thumbRes,
+							"res:" + packageKey + ":" + thumbRes);
 					bundledWallpapers.add(wallpaperInfo);
 					// Log.d(TAG, "add: [" + packageName + "]: " + extra + " ("
 					// + res + ")");
@@ -825,9 +851,13 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 		private LayoutInflater mLayoutInflater;
 		private ArrayList<ResourceWallpaperInfo> mWallpapers;
 
-		BuiltInWallpapersAdapter(Activity activity, ArrayList<ResourceWallpaperInfo> wallpapers) {
+		private WallpaperThumbnailLoader mThumbnailLoader;
+
+		BuiltInWallpapersAdapter(Activity activity, ArrayList<ResourceWallpaperInfo> wallpapers,
+				WallpaperThumbnailLoader thumbnailLoader) {
 			mLayoutInflater = activity.getLayoutInflater();
 			mWallpapers = wallpapers;
+			mThumbnailLoader = thumbnailLoader;
 		}
 
 		public int getCount() {
@@ -842,12 +872,32 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 			return position;
 		}
 
-		public View getView(int position, View convertView, ViewGroup parent) {
-			Drawable thumb = mWallpapers.get(position).mThumb;
-			if (thumb == null) {
-				Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
+		public View getView(final int position, View convertView, ViewGroup parent) {
+			final ResourceWallpaperInfo info = mWallpapers.get(position);
+			View view = createImageTileView(mLayoutInflater, position, convertView, parent, info.mThumb);
+			if (info.mThumb != null) {
+				return view;
 			}
-			return createImageTileView(mLayoutInflater, position, convertView, parent, thumb);
+
+			final ImageView image = (ImageView) view.findViewById(R.id.wallpaper_image);
+			image.setImageDrawable(null);
+			mThumbnailLoader.load(new WallpaperThumbnailLoader.Request(info.mThumbKey, image) {
+				@Override
+				protected Drawable load() {
+					return info.mResources.getDrawable(info.mThumbResId);
+				}
+
+				@Override
+				protected void onLoaded(Drawable thumb) {
+					if (thumb == null) {
+						Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
+						return;
+					}
+					thumb.setDither(true);
+					image.setImageDrawable(thumb);
+				}
+			});
+			return view;
 		}
 	}
 
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.n2hsu.launcher;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the thumbnails of the wallpaper picker's tiles in the background,
+ * on as many threads as there are cores to spare. Tiles on screen in the
+ * wallpaper strip are loaded first, then the ones closest to it, and the
+ * order is updated as the strip scrolls, so the strip fills in from where
+ * the user is looking.
+ *
+ * Loaded thumbnails are cached by a key that must change with what they
+ * show, like the version of the package they come from, so opening the
+ * picker again binds them at once.
+ */
+public class WallpaperThumbnailLoader {
+	private static final String TAG = "WallpaperThumbnailLoader";
+
+	private static final int THREADS = Math.max(2,
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+	// Idle threads go away, the picker isn't open most of the time
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	// Requests run smallest priority first, see Request#compareTo
+	private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+			KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				private int mCount;
+
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "wallpaper-thumbnail-" + (++mCount));
+				}
+			});
+	static {
+		sExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	// Thumbnails by key, kept across openings of the picker
+	private static final LruCache<String, Drawable> sCache = new LruCache<String, Drawable>(
+			(int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16)) {
+		@Override
+		protected int sizeOf(String key, Drawable value) {
+			if (value instanceof BitmapDrawable && ((BitmapDrawable) value).getBitmap() != null) {
+				return ((BitmapDrawable) value).getBitmap().getByteCount();
+			}
+			return Math.max(1, value.getIntrinsicWidth() * value.getIntrinsicHeight() * 4);
+		}
+	};
+
+	/**
+	 * A thumbnail to load for a view. Subclasses load it in the background
+	 * and bind it on the UI thread.
+	 */
+	public static abstract class Request implements Runnable, Comparable<Request> {
+		private final String mKey;
+		private final View mView;
+		private WallpaperThumbnailLoader mLoader;
+		// In the order requests were made, to break ties
+		private int mOrder;
+		private long mPriority;
+		private volatile boolean mCancelled;
+
+		/**
+		 * @param key identifies the thumbnail in the cache
+		 * @param view the view the thumbnail is bound to, which decides the
+		 *            priority of the request. A new request for the same view
+		 *            cancels the previous one
+		 */
+		public Request(String key, View view) {
+			mKey = key;
+			mView = view;
+		}
+
+		/** Loads the thumbnail, on a background thread. Returns null on failure. */
+		protected abstract Drawable load();
+
+		/** Binds the thumbnail, or null if it failed to load, on the UI thread. */
+		protected abstract void onLoaded(Drawable thumb);
+
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public int compareTo(Request another) {
+			if (mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			return mOrder - another.mOrder;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled) {
+				return;
+			}
+			Drawable thumb = null;
+			try {
+				thumb = load();
+			} catch (RuntimeException e) {
+				// Other packages' resources can throw about anything
+				Log.w(TAG, "failed to load thumbnail " + mKey, e);
+			}
+			if (thumb != null) {
+				sCache.put(mKey, thumb);
+			}
+			final Drawable result = thumb;
+			mLoader.mHandler.post(new Runnable() {
+				public void run() {
+					mLoader.onRequestDone(Request.this, result);
+				}
+			});
+		}
+	}
+
+	private final Handler mHandler = new Handler();
+	private final View mViewport;
+	// Requests not done yet, by view. Only touched on the UI thread
+	private final HashMap<View, Request> mPending = new HashMap<View, Request>();
+	private int mRequestCount;
+	private boolean mPrioritiesUpdatePosted;
+
+	private final int[] mTmpLocation = new int[2];
+
+	private final Runnable mUpdatePriorities = new Runnable() {
+		public void run() {
+			mPrioritiesUpdatePosted = false;
+			updatePriorities();
+		}
+	};
+
+	/**
+	 * @param viewport the view the tiles scroll in, requests for the tiles
+	 *            that are visible in it go first
+	 */
+	public WallpaperThumbnailLoader(View viewport) {
+		mViewport = viewport;
+		ViewTreeObserver observer = viewport.getViewTreeObserver();
+		observer.addOnScrollChangedListener(new ViewTreeObserver.OnScrollChangedListener() {
+			public void onScrollChanged() {
+				postUpdatePriorities();
+			}
+		});
+		observer.addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+			public void onGlobalLayout() {
+				postUpdatePriorities();
+			}
+		});
+	}
+
+	/**
+	 * Binds the thumbnail right away if it is cached, and queues the request
+	 * otherwise. Call on the UI thread.
+	 */
+	public void load(Request request) {
+		Request previous = mPending.remove(request.mView);
+		if (previous != null) {
+			previous.cancel();
+		}
+		Drawable cached = getCached(request.mKey);
+		if (cached != null) {
+			request.onLoaded(cached);
+			return;
+		}
+		request.mLoader = this;
+		request.mOrder = mRequestCount++;
+		request.mPriority = getPriority(request);
+		mPending.put(request.mView, request);
+		sExecutor.execute(request);
+	}
+
+	/** Cancels the requests that aren't done yet. */
+	public void cancelAll() {
+		for (Request request : mPending.values()) {
+			request.cancel();
+			sExecutor.remove(request);
+		}
+		mPending.clear();
+		mHandler.removeCallbacks(mUpdatePriorities);
+	}
+
+	/** Returns a copy of the cached thumbnail, or null. */
+	public static Drawable getCached(String key) {
+		Drawable cached = sCache.get(key);
+		if (cached == null) {
+			return null;
+		}
+		// Views change the bounds and state of their drawables, so each one
+		// gets its own
+		Drawable.ConstantState state = cached.getConstantState();
+		return state != null ? state.newDrawable() : cached;
+	}
+
+	/** Caches a thumbnail made elsewhere, like for a newly saved image. */
+	public static void putCached(String key, Drawable thumb) {
+		sCache.put(key, thumb);
+	}
+
+	public static void removeCached(String key) {
+		sCache.remove(key);
+	}
+
+	/**
+	 * Returns a key for the thumbnails of a package, which changes when the
+	 * package is updated.
+	 */
+	public static String getPackageKey(PackageManager pm, String packageName) {
+		try {
+			PackageInfo info = pm.getPackageInfo(packageName, 0);
+			return packageName + ":" + info.versionCode + ":" + info.lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return packageName;
+		}
+	}
+
+	private void onRequestDone(Request request, Drawable thumb) {
+		if (mPending.get(request.mView) == request) {
+			mPending.remove(request.mView);
+		}
+		if (!request.mCancelled) {
+			request.onLoaded(thumb);
+		}
+	}
+
+	private void postUpdatePriorities() {
+		if (!mPrioritiesUpdatePosted && !mPending.isEmpty()) {
+			mPrioritiesUpdatePosted = true;
+			mHandler.post(mUpdatePriorities);
+		}
+	}
+
+	/** Reorders the queued requests after the tiles moved. */
+	private void updatePriorities() {
+		for (Request request : mPending.values()) {
+			// Only the ones still queued, and out of the queue while their
+			// priority changes. They go back through execute(), which starts
+			// a thread again if the idle ones timed out meanwhile
+			if (sExecutor.remove(request)) {
+				request.mPriority = getPriority(request);
+				sExecutor.execute(request);
+			}
+		}
+	}
+
+	/**
+	 * Returns how far the request's view is from the visible part of the
+	 * viewport, 0 if it is visible. Views that aren't laid out yet go after
+	 * all the others.
+	 */
+	private long getPriority(Request request) {
+		View view = request.mView;
+		if (view.getWidth() == 0 || mViewport.getWidth() == 0) {
+			return Integer.MAX_VALUE;
+		}
+		mViewport.getLocationOnScreen(mTmpLocation);
+		final int viewportLeft = mTmpLocation[0];
+		final int viewportRight = viewportLeft + mViewport.getWidth();
+		view.getLocationOnScreen(mTmpLocation);
+		final int left = mTmpLocation[0];
+		final int right = left + view.getWidth();
+		if (right <= viewportLeft) {
+			return viewportLeft - right + 1;
+		} else if (left >= viewportRight) {
+			return left - viewportRight + 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.n2hsu.launcher;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Decides how many workspace items to bind per main thread slice. The cost of
+ * binding a single item is measured as binding goes on, and the chunk size is
+ * picked so that the time left in the current frame (tracked with
+ * {@link Choreographer} frame callbacks) is not exceeded.
+ *
+ * Only used from the main thread.
+ */
+class WorkspaceBindScheduler implements Choreographer.FrameCallback {
+	private static final String TAG = "Launcher.BindScheduler";
+
+	static final int PHASE_CURRENT_PAGE_ITEMS = 0;
+	static final int PHASE_OTHER_PAGE_ITEMS = 1;
+	static final int PHASE_FOLDERS = 2;
+	static final int PHASE_WIDGETS = 3;
+	private static final int PHASE_COUNT = 4;
+	private static final String[] PHASE_NAMES = { "current page items", "other page items", "folders",
+			"widgets" };
+
+	private static final long FRAME_INTERVAL_NANOS = 16666667L;
+	// Part of each frame that binding may use, leaving the rest for layout
+	// and drawing
+	private static final long FRAME_BUDGET_NANOS = 8000000L;
+	// Used until the first chunk has been measured
+	private static final long INITIAL_ITEM_COST_NANOS = 1000000L;
+	private static final int MIN_CHUNK = 1;
+	private static final int MAX_CHUNK = 32;
+
+	private Choreographer mChoreographer;
+	private boolean mFrameCallbackPending;
+	private long mFrameStartNanos;
+
+	// Exponential moving average of the cost of binding one item
+	private long mItemCostNanos = INITIAL_ITEM_COST_NANOS;
+
+	private final long[] mPhaseNanos = new long[PHASE_COUNT];
+	private final int[] mPhaseItems = new int[PHASE_COUNT];
+	private final int[] mPhaseSlices = new int[PHASE_COUNT];
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		mFrameCallbackPending = false;
+		mFrameStartNanos = frameTimeNanos;
+	}
+
+	/**
+	 * Returns the number of items to bind in the next slice, given the time
+	 * left in the current frame.
+	 */
+	int nextChunkSize() {
+		if (mChoreographer == null) {
+			mChoreographer = Choreographer.getInstance();
+		}
+		if (!mFrameCallbackPending) {
+			mFrameCallbackPending = true;
+			mChoreographer.postFrameCallback(this);
+		}
+
+		long remaining = FRAME_BUDGET_NANOS;
+		final long sinceFrameStart = System.nanoTime() - mFrameStartNanos;
+		if (sinceFrameStart < FRAME_INTERVAL_NANOS) {
+			remaining = Math.max(0, FRAME_BUDGET_NANOS - sinceFrameStart);
+		}
+		int chunk = (int) (remaining / Math.max(1, mItemCostNanos));
+		return Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, chunk));
+	}
+
+	/** Records how long it took to bind a slice of items in the given phase. */
+	void recordItems(int phase, int count, long nanos) {
+		if (count > 0) {
+			mItemCostNanos = (mItemCostNanos * 3 + nanos / count) / 4;
+		}
+		recordPhase(phase, count, nanos);
+	}
+
+	/** Records a slice of work in the given phase. */
+	void recordPhase(int phase, int count, long nanos) {
+		mPhaseNanos[phase] += nanos;
+		mPhaseItems[phase] += count;
+		mPhaseSlices[phase]++;
+	}
+
+	long getItemCostNanos() {
+		return mItemCostNanos;
+	}
+
+	/** Logs and clears the phase timings collected since the last call. */
+	void dumpAndResetTimings() {
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			Log.d(TAG, "bound " + mPhaseItems[i] + " " + PHASE_NAMES[i] + " in " + mPhaseSlices[i]
+					+ " slices, " + (mPhaseNanos[i] / 1000) + "us");
+		}
+		Log.d(TAG, "item bind cost " + (mItemCostNanos / 1000) + "us");
+		resetTimings();
+	}
+
+	void resetTimings() {
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			mPhaseNanos[i] = 0;
+			mPhaseItems[i] = 0;
+			mPhaseSlices[i] = 0;
+		}
+	}
+}
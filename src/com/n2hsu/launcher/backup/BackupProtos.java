@@ -72,6 +72,25 @@ public final class BackupProtos {
 		 * <code>optional int64 checksum = 4;</code>
 		 */
 		long getChecksum();
+
+		// optional int64 hash = 5;
+		/**
+		 * <code>optional int64 hash = 5;</code>
+		 * 
+		 * <pre>
+		 * content hash of the row, only kept in the journal
+		 * </pre>
+		 */
+		boolean hasHash();
+
+		/**
+		 * <code>optional int64 hash = 5;</code>
+		 * 
+		 * <pre>
+		 * content hash of the row, only kept in the journal
+		 * </pre>
+		 */
+		long getHash();
 	}
 
 	/**
@@ -153,6 +172,11 @@ public final class BackupProtos {
 						checksum_ = input.readInt64();
 						break;
 					}
+					case 40: {
+						bitField0_ |= 0x00000010;
+						hash_ = input.readInt64();
+						break;
+					}
 					}
 				}
 			} catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -398,11 +422,38 @@ public final class BackupProtos {
 			return checksum_;
 		}
 
+		// optional int64 hash = 5;
+		public static final int HASH_FIELD_NUMBER = 5;
+		private long hash_;
+
+		/**
+		 * <code>optional int64 hash = 5;</code>
+		 * 
+		 * <pre>
+		 * content hash of the row, only kept in the journal
+		 * </pre>
+		 */
+		public boolean hasHash() {
+			return ((bitField0_ & 0x00000010) == 0x00000010);
+		}
+
+		/**
+		 * <code>optional int64 hash = 5;</code>
+		 * 
+		 * <pre>
+		 * content hash of the row, only kept in the journal
+		 * </pre>
+		 */
+		public long getHash() {
+			return hash_;
+		}
+
 		private void initFields() {
 			type_ = com.n2hsu.launcher.backup.BackupProtos.Key.Type.FAVORITE;
 			name_ = "";
 			id_ = 0L;
 			checksum_ = 0L;
+			hash_ = 0L;
 		}
 
 		private byte memoizedIsInitialized = -1;
@@ -434,6 +485,9 @@ public final class BackupProtos {
 			if (((bitField0_ & 0x00000008) == 0x00000008)) {
 				output.writeInt64(4, checksum_);
 			}
+			if (((bitField0_ & 0x00000010) == 0x00000010)) {
+				output.writeInt64(5, hash_);
+			}
 			getUnknownFields().writeTo(output);
 		}
 
@@ -457,6 +511,9 @@ public final class BackupProtos {
 			if (((bitField0_ & 0x00000008) == 0x00000008)) {
 				size += com.google.protobuf.CodedOutputStream.computeInt64Size(4, checksum_);
 			}
+			if (((bitField0_ & 0x00000010) == 0x00000010)) {
+				size += com.google.protobuf.CodedOutputStream.computeInt64Size(5, hash_);
+			}
 			size += getUnknownFields().getSerializedSize();
 			memoizedSerializedSize = size;
 			return size;
@@ -591,6 +648,8 @@ public final class BackupProtos {
 				bitField0_ = (bitField0_ & ~0x00000004);
 				checksum_ = 0L;
 				bitField0_ = (bitField0_ & ~0x00000008);
+				hash_ = 0L;
+				bitField0_ = (bitField0_ & ~0x00000010);
 				return this;
 			}
 
@@ -635,6 +694,10 @@ public final class BackupProtos {
 					to_bitField0_ |= 0x00000008;
 				}
 				result.checksum_ = checksum_;
+				if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+					to_bitField0_ |= 0x00000010;
+				}
+				result.hash_ = hash_;
 				result.bitField0_ = to_bitField0_;
 				onBuilt();
 				return result;
@@ -666,6 +729,9 @@ public final class BackupProtos {
 				if (other.hasChecksum()) {
 					setChecksum(other.getChecksum());
 				}
+				if (other.hasHash()) {
+					setHash(other.getHash());
+				}
 				this.mergeUnknownFields(other.getUnknownFields());
 				return this;
 			}
@@ -909,6 +975,59 @@ public final class BackupProtos {
 				return this;
 			}
 
+			// optional int64 hash = 5;
+			private long hash_;
+
+			/**
+			 * <code>optional int64 hash = 5;</code>
+			 * 
+			 * <pre>
+			 * content hash of the row, only kept in the journal
+			 * </pre>
+			 */
+			public boolean hasHash() {
+				return ((bitField0_ & 0x00000010) == 0x00000010);
+			}
+
+			/**
+			 * <code>optional int64 hash = 5;</code>
+			 * 
+			 * <pre>
+			 * content hash of the row, only kept in the journal
+			 * </pre>
+			 */
+			public long getHash() {
+				return hash_;
+			}
+
+			/**
+			 * <code>optional int64 hash = 5;</code>
+			 * 
+			 * <pre>
+			 * content hash of the row, only kept in the journal
+			 * </pre>
+			 */
+			public Builder setHash(long value) {
+				bitField0_ |= 0x00000010;
+				hash_ = value;
+				onChanged();
+				return this;
+			}
+
+			/**
+			 * <code>optional int64 hash = 5;</code>
+			 * 
+			 * <pre>
+			 * content hash of the row, only kept in the journal
+			 * </pre>
+			 */
+			public Builder clearHash() {
+				bitField0_ = (bitField0_ & ~0x00000010);
+				hash_ = 0L;
+				onChanged();
+				return this;
+			}
+
 			// @@protoc_insertion_point(builder_scope:launcher_backup.Key)
 		}
 
@@ -6040,30 +6159,26 @@ public final class BackupProtos {
 						break;
 					}
 					case 34: {
-						com.n2hsu.launcher.backup.BackupProtos.Resource.Builder subBuilder = null;
-						if (((bitField0_ & 0x00000008) == 0x00000008)) {
-							subBuilder = icon_.toBuilder();
-						}
-						icon_ = input.readMessage(com.n2hsu.launcher.backup.BackupProtos.Resource.PARSER,
-								extensionRegistry);
-						if (subBuilder != null) {
-							subBuilder.mergeFrom(icon_);
-							icon_ = subBuilder.buildPartial();
+						// parsed on first use, see getIcon()
+						com.google.protobuf.ByteString bytes = input.readBytes();
+						if (iconLazy_ != null) {
+							// a repeated message is merged into the first
+							bytes = iconLazy_.toByteString().concat(bytes);
 						}
+						iconLazy_ = new com.google.protobuf.LazyField(
+								com.n2hsu.launcher.backup.BackupProtos.Resource.getDefaultInstance(), extensionRegistry, bytes);
 						bitField0_ |= 0x00000008;
 						break;
 					}
 					case 42: {
-						com.n2hsu.launcher.backup.BackupProtos.Resource.Builder subBuilder = null;
-						if (((bitField0_ & 0x00000010) == 0x00000010)) {
-							subBuilder = preview_.toBuilder();
-						}
-						preview_ = input.readMessage(com.n2hsu.launcher.backup.BackupProtos.Resource.PARSER,
-								extensionRegistry);
-						if (subBuilder != null) {
-							subBuilder.mergeFrom(preview_);
-							preview_ = subBuilder.buildPartial();
+						// parsed on first use, see getPreview()
+						com.google.protobuf.ByteString bytes = input.readBytes();
+						if (previewLazy_ != null) {
+							// a repeated message is merged into the first
+							bytes = previewLazy_.toByteString().concat(bytes);
 						}
+						previewLazy_ = new com.google.protobuf.LazyField(
+								com.n2hsu.launcher.backup.BackupProtos.Resource.getDefaultInstance(), extensionRegistry, bytes);
 						bitField0_ |= 0x00000010;
 						break;
 					}
@@ -6211,6 +6326,8 @@ public final class BackupProtos {
 		// optional .launcher_backup.Resource icon = 4;
 		public static final int ICON_FIELD_NUMBER = 4;
 		private com.n2hsu.launcher.backup.BackupProtos.Resource icon_;
+		// Set instead of icon_ when parsed, holds the serialized message
+		private com.google.protobuf.LazyField iconLazy_;
 
 		/**
 		 * <code>optional .launcher_backup.Resource icon = 4;</code>
@@ -6223,6 +6340,11 @@ public final class BackupProtos {
 		 * <code>optional .launcher_backup.Resource icon = 4;</code>
 		 */
 		public com.n2hsu.launcher.backup.BackupProtos.Resource getIcon() {
+			if (iconLazy_ != null) {
+				// a message that fails to parse reads as unset
+				com.n2hsu.launcher.backup.BackupProtos.Resource value = (com.n2hsu.launcher.backup.BackupProtos.Resource) iconLazy_.getValue();
+				return value != null ? value : com.n2hsu.launcher.backup.BackupProtos.Resource.getDefaultInstance();
+			}
 			return icon_;
 		}
 
@@ -6230,12 +6352,14 @@ public final class BackupProtos {
 		 * <code>optional .launcher_backup.Resource icon = 4;</code>
 		 */
 		public com.n2hsu.launcher.backup.BackupProtos.ResourceOrBuilder getIconOrBuilder() {
-			return icon_;
+			return getIcon();
 		}
 
 		// optional .launcher_backup.Resource preview = 5;
 		public static final int PREVIEW_FIELD_NUMBER = 5;
 		private com.n2hsu.launcher.backup.BackupProtos.Resource preview_;
+		// Set instead of preview_ when parsed, holds the serialized message
+		private com.google.protobuf.LazyField previewLazy_;
 
 		/**
 		 * <code>optional .launcher_backup.Resource preview = 5;</code>
@@ -6248,6 +6372,11 @@ public final class BackupProtos {
 		 * <code>optional .launcher_backup.Resource preview = 5;</code>
 		 */
 		public com.n2hsu.launcher.backup.BackupProtos.Resource getPreview() {
+			if (previewLazy_ != null) {
+				// a message that fails to parse reads as unset
+				com.n2hsu.launcher.backup.BackupProtos.Resource value = (com.n2hsu.launcher.backup.BackupProtos.Resource) previewLazy_.getValue();
+				return value != null ? value : com.n2hsu.launcher.backup.BackupProtos.Resource.getDefaultInstance();
+			}
 			return preview_;
 		}
 
@@ -6255,7 +6384,7 @@ public final class BackupProtos {
 		 * <code>optional .launcher_backup.Resource preview = 5;</code>
 		 */
 		public com.n2hsu.launcher.backup.BackupProtos.ResourceOrBuilder getPreviewOrBuilder() {
-			return preview_;
+			return getPreview();
 		}
 
 		private void initFields() {
@@ -6277,13 +6406,14 @@ public final class BackupProtos {
 				memoizedIsInitialized = 0;
 				return false;
 			}
-			if (hasIcon()) {
+			// a lazily parsed icon is checked when it is read
+			if (hasIcon() && iconLazy_ == null) {
 				if (!getIcon().isInitialized()) {
 					memoizedIsInitialized = 0;
 					return false;
 				}
 			}
-			if (hasPreview()) {
+			if (hasPreview() && previewLazy_ == null) {
 				if (!getPreview().isInitialized()) {
 					memoizedIsInitialized = 0;
 					return false;
@@ -6305,10 +6435,18 @@ public final class BackupProtos {
 				output.writeBool(3, configure_);
 			}
 			if (((bitField0_ & 0x00000008) == 0x00000008)) {
-				output.writeMessage(4, icon_);
+				if (iconLazy_ != null) {
+					output.writeBytes(4, iconLazy_.toByteString());
+				} else {
+					output.writeMessage(4, icon_);
+				}
 			}
 			if (((bitField0_ & 0x00000010) == 0x00000010)) {
-				output.writeMessage(5, preview_);
+				if (previewLazy_ != null) {
+					output.writeBytes(5, previewLazy_.toByteString());
+				} else {
+					output.writeMessage(5, preview_);
+				}
 			}
 			getUnknownFields().writeTo(output);
 		}
@@ -6331,10 +6469,14 @@ public final class BackupProtos {
 				size += com.google.protobuf.CodedOutputStream.computeBoolSize(3, configure_);
 			}
 			if (((bitField0_ & 0x00000008) == 0x00000008)) {
-				size += com.google.protobuf.CodedOutputStream.computeMessageSize(4, icon_);
+				size += iconLazy_ != null
+						? com.google.protobuf.CodedOutputStream.computeBytesSize(4, iconLazy_.toByteString())
+						: com.google.protobuf.CodedOutputStream.computeMessageSize(4, icon_);
 			}
 			if (((bitField0_ & 0x00000010) == 0x00000010)) {
-				size += com.google.protobuf.CodedOutputStream.computeMessageSize(5, preview_);
+				size += previewLazy_ != null
+						? com.google.protobuf.CodedOutputStream.computeBytesSize(5, previewLazy_.toByteString())
+						: com.google.protobuf.CodedOutputStream.computeMessageSize(5, preview_);
 			}
 			size += getUnknownFields().getSerializedSize();
 			memoizedSerializedSize = size;
@@ -7078,29 +7220,30 @@ public final class BackupProtos {
 	private static com.google.protobuf.Descriptors.FileDescriptor descriptor;
 	static {
 		java.lang.String[] descriptorData = {
-				"\n\014backup.proto\022\017launcher_backup\"\222\001\n\003Key\022"
+				"\n\014backup.proto\022\017launcher_backup\"\240\001\n\003Key\022"
 						+ "\'\n\004type\030\001 \002(\0162\031.launcher_backup.Key.Type"
 						+ "\022\014\n\004name\030\002 \001(\t\022\n\n\002id\030\003 \001(\003\022\020\n\010checksum\030\004"
-						+ " \001(\003\"6\n\004Type\022\014\n\010FAVORITE\020\001\022\n\n\006SCREEN\020\002\022\010"
-						+ "\n\004ICON\020\003\022\n\n\006WIDGET\020\004\"3\n\016CheckedMessage\022\017"
-						+ "\n\007payload\030\001 \002(\014\022\020\n\010checksum\030\002 \002(\003\"i\n\007Jou"
-						+ "rnal\022\023\n\013app_version\030\001 \002(\005\022\t\n\001t\030\002 \002(\003\022\r\n\005"
-						+ "bytes\030\003 \001(\003\022\014\n\004rows\030\004 \001(\005\022!\n\003key\030\005 \003(\0132\024"
-						+ ".launcher_backup.Key\"\303\002\n\010Favorite\022\n\n\002id\030"
-						+ "\001 \002(\003\022\020\n\010itemType\030\002 \002(\005\022\r\n\005title\030\003 \001(\t\022\021",
-				"\n\tcontainer\030\004 \001(\005\022\016\n\006screen\030\005 \001(\005\022\r\n\005cel"
-						+ "lX\030\006 \001(\005\022\r\n\005cellY\030\007 \001(\005\022\r\n\005spanX\030\010 \001(\005\022\r"
-						+ "\n\005spanY\030\t \001(\005\022\023\n\013displayMode\030\n \001(\005\022\023\n\013ap"
-						+ "pWidgetId\030\013 \001(\005\022\031\n\021appWidgetProvider\030\014 \001"
-						+ "(\t\022\016\n\006intent\030\r \001(\t\022\013\n\003uri\030\016 \001(\t\022\020\n\010iconT"
-						+ "ype\030\017 \001(\005\022\023\n\013iconPackage\030\020 \001(\t\022\024\n\014iconRe"
-						+ "source\030\021 \001(\t\022\014\n\004icon\030\022 \001(\014\"\"\n\006Screen\022\n\n\002"
-						+ "id\030\001 \002(\003\022\014\n\004rank\030\002 \001(\005\"%\n\010Resource\022\013\n\003dp"
-						+ "i\030\001 \002(\005\022\014\n\004data\030\002 \002(\014\"\221\001\n\006Widget\022\020\n\010prov"
-						+ "ider\030\001 \002(\t\022\r\n\005label\030\002 \001(\t\022\021\n\tconfigure\030\003",
-				" \001(\010\022\'\n\004icon\030\004 \001(\0132\031.launcher_backup.Res"
-						+ "ource\022*\n\007preview\030\005 \001(\0132\031.launcher_backup"
-						+ ".ResourceB)\n\031com.n2hsu.launcher.backupB\014" + "BackupProtos" };
+						+ " \001(\003\022\014\n\004hash\030\005 \001(\003\"6\n\004Type\022\014\n\010FAVORITE\020\001"
+						+ "\022\n\n\006SCREEN\020\002\022\010\n\004ICON\020\003\022\n\n\006WIDGET\020\004\"3\n\016Ch"
+						+ "eckedMessage\022\017\n\007payload\030\001 \002(\014\022\020\n\010checksu"
+						+ "m\030\002 \002(\003\"i\n\007Journal\022\023\n\013app_version\030\001 \002(\005\022"
+						+ "\t\n\001t\030\002 \002(\003\022\r\n\005bytes\030\003 \001(\003\022\014\n\004rows\030\004 \001(\005\022"
+						+ "!\n\003key\030\005 \003(\0132\024.launcher_backup.Key\"\303\002\n\010F"
+						+ "avorite\022\n\n\002id\030\001 \002(\003\022\020\n\010itemType\030\002 \002(\005\022\r\n",
+				"\005title\030\003 \001(\t\022\021\n\tcontainer\030\004 \001(\005\022\016\n\006scree"
+						+ "n\030\005 \001(\005\022\r\n\005cellX\030\006 \001(\005\022\r\n\005cellY\030\007 \001(\005\022\r\n"
+						+ "\005spanX\030\010 \001(\005\022\r\n\005spanY\030\t \001(\005\022\023\n\013displayMo"
+						+ "de\030\n \001(\005\022\023\n\013appWidgetId\030\013 \001(\005\022\031\n\021appWidg"
+						+ "etProvider\030\014 \001(\t\022\016\n\006intent\030\r \001(\t\022\013\n\003uri\030"
+						+ "\016 \001(\t\022\020\n\010iconType\030\017 \001(\005\022\023\n\013iconPackage\030\020"
+						+ " \001(\t\022\024\n\014iconResource\030\021 \001(\t\022\014\n\004icon\030\022 \001(\014"
+						+ "\"\"\n\006Screen\022\n\n\002id\030\001 \002(\003\022\014\n\004rank\030\002 \001(\005\"%\n\010"
+						+ "Resource\022\013\n\003dpi\030\001 \002(\005\022\014\n\004data\030\002 \002(\014\"\221\001\n\006"
+						+ "Widget\022\020\n\010provider\030\001 \002(\t\022\r\n\005label\030\002 \001(\t\022",
+				"\021\n\tconfigure\030\003 \001(\010\022\'\n\004icon\030\004 \001(\0132\031.launc"
+						+ "her_backup.Resource\022*\n\007preview\030\005 \001(\0132\031.l"
+						+ "auncher_backup.ResourceB)\n\031com.n2hsu.lau"
+						+ "ncher.backupB\014BackupProtos" };
 		com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner = new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
 			public com.google.protobuf.ExtensionRegistry assignDescriptors(
 					com.google.protobuf.Descriptors.FileDescriptor root) {
@@ -7108,7 +7251,7 @@ public final class BackupProtos {
 				internal_static_launcher_backup_Key_descriptor = getDescriptor().getMessageTypes().get(0);
 				internal_static_launcher_backup_Key_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(
 						internal_static_launcher_backup_Key_descriptor, new java.lang.String[] { "Type",
-								"Name", "Id", "Checksum", });
+								"Name", "Id", "Checksum", "Hash", });
 				internal_static_launcher_backup_CheckedMessage_descriptor = getDescriptor().getMessageTypes()
 						.get(1);
 				internal_static_launcher_backup_CheckedMessage_fieldAccessorTable = new com.google.protobuf.GeneratedMessage.FieldAccessorTable(
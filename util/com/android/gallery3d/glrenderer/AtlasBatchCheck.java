@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gallery3d.glrenderer;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Commandline check for the slots of TextureAtlas and the draw batching of
+ * GLES20Canvas, runs on any desktop JVM.
+ *
+ * javac -d out src/com/android/gallery3d/glrenderer/AtlasAllocator.java \
+ *   src/com/android/gallery3d/glrenderer/QuadBatch.java \
+ *   util/com/android/gallery3d/glrenderer/AtlasBatchCheck.java
+ * java -cp out com.android.gallery3d.glrenderer.AtlasBatchCheck [-n operations] [-s seed]
+ *
+ * The frame check draws a screenful of tiles the way TiledImageRenderer
+ * does, on a canvas that records binds and draws instead of calling GL. It
+ * compares a texture per tile without batching, like before the atlas, with
+ * atlas pages and a batch. The slot checks allocate and free tiles and
+ * random sizes, and check that slots don't overlap, that freed slots are
+ * reused and that a page is freed with its last slot. Exits with 1 on the
+ * first failure.
+ *
+ * The recording canvas makes the same batching decisions as GLES20Canvas,
+ * through QuadBatch, but it doesn't run its GL calls. GL state, like the
+ * buffer bindings the batched draws need, is only checked on a device.
+ */
+class AtlasBatchCheck {
+    private static final int PAGE_SIZE = 2048;
+    private static final int TILE_SIZE = 256;
+
+    public static void main(String[] args) {
+        int operations = 100000;
+        long seed = 42;
+        for (int i = 0; i < args.length; i++) {
+            if ("-n".equals(args[i]) && (i + 1) < args.length) {
+                operations = Integer.parseInt(args[++i]);
+            } else if ("-s".equals(args[i]) && (i + 1) < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("AtlasBatchCheck [-n operations] [-s seed]");
+                System.exit(1);
+            }
+        }
+        try {
+            checkFrame();
+            checkSlotReuse();
+            checkRandomized(operations, seed);
+        } catch (AssertionError e) {
+            System.err.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * A 1920x1080 view at scale 1 with the tiles of level 0 and of level 1,
+     * which TiledImageRenderer keeps for zooming out. The level 1 tiles are
+     * drawn first, under the level 0 ones, like when the view is still
+     * decoding.
+     */
+    private static void checkFrame() {
+        RecordingAllocator allocator = new RecordingAllocator(PAGE_SIZE);
+        ArrayList<Tile> tiles = new ArrayList<Tile>();
+        for (int level = 1; level >= 0; level--) {
+            int size = TILE_SIZE << level;
+            // The view doesn't start on a tile boundary
+            for (int y = -100; y < 1080; y += size) {
+                for (int x = -100; x < 1920; x += size) {
+                    tiles.add(new Tile(allocator.allocate(TILE_SIZE, TILE_SIZE), x, y, size));
+                }
+            }
+        }
+
+        RecordingCanvas canvas = new RecordingCanvas();
+        int textureId = 1;
+        for (Tile tile : tiles) {
+            canvas.drawTexture(new FakeTexture(textureId++), tile.mX, tile.mY, tile.mSize);
+        }
+        int unbatchedBinds = canvas.mBinds;
+        int unbatchedDraws = canvas.mDraws;
+        check(unbatchedDraws == tiles.size(), "unbatched draws " + unbatchedDraws);
+
+        // Like TiledImageRenderer.draw()
+        canvas = new RecordingCanvas();
+        canvas.beginBatch();
+        for (Tile tile : tiles) {
+            canvas.drawTexture(allocator.getTexture(tile.mSlot.mPage), tile.mX, tile.mY, tile.mSize);
+        }
+        canvas.endBatch();
+
+        // A draw for each run of tiles on the same page
+        int runs = 0;
+        AtlasAllocator.Page last = null;
+        for (Tile tile : tiles) {
+            if (tile.mSlot.mPage != last) {
+                runs++;
+                last = tile.mSlot.mPage;
+            }
+        }
+        check(canvas.mDraws == runs, "batched draws " + canvas.mDraws + ", expected " + runs);
+        check(canvas.mBinds == runs, "batched binds " + canvas.mBinds + ", expected " + runs);
+        check(canvas.mQuads == tiles.size(), "batched quads " + canvas.mQuads);
+        check(canvas.mDraws < unbatchedDraws && canvas.mBinds < unbatchedBinds,
+                "batching didn't save draws");
+        int batchedBinds = canvas.mBinds;
+        int batchedDraws = canvas.mDraws;
+
+        // Anything else drawn in between ends the batch
+        canvas = new RecordingCanvas();
+        canvas.beginBatch();
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            canvas.drawTexture(allocator.getTexture(tile.mSlot.mPage), tile.mX, tile.mY, tile.mSize);
+            if (i == tiles.size() / 2) {
+                canvas.fillRect();
+            }
+        }
+        canvas.endBatch();
+        check(canvas.mDraws == runs + 2, "draws around a fill " + canvas.mDraws);
+
+        System.out.println("frame: " + tiles.size() + " tiles, atlas pages: "
+                + allocator.getPageCount() + ", unbatched: " + unbatchedBinds + " binds, "
+                + unbatchedDraws + " draws, batched: " + batchedBinds + " binds, " + batchedDraws
+                + " draws");
+    }
+
+    private static void checkSlotReuse() {
+        RecordingAllocator allocator = new RecordingAllocator(PAGE_SIZE);
+        int perPage = (PAGE_SIZE / TILE_SIZE) * (PAGE_SIZE / TILE_SIZE);
+        ArrayList<AtlasAllocator.Slot> slots = new ArrayList<AtlasAllocator.Slot>();
+        for (int i = 0; i < perPage; i++) {
+            slots.add(allocator.allocate(TILE_SIZE, TILE_SIZE));
+        }
+        check(allocator.getPageCount() == 1, perPage + " tiles take "
+                + allocator.getPageCount() + " pages");
+
+        // A full page starts another, which goes with its only slot
+        AtlasAllocator.Slot extra = allocator.allocate(TILE_SIZE, TILE_SIZE);
+        check(allocator.getPageCount() == 2, "no second page");
+        check(extra.mPage != slots.get(0).mPage, "the extra tile is on the full page");
+        allocator.free(extra);
+        check(allocator.getPageCount() == 1 && allocator.mFreed.contains(extra.mPage),
+                "the second page wasn't freed with its last slot");
+
+        // A freed slot is taken again before anything else
+        AtlasAllocator.Slot freed = slots.remove(perPage / 2);
+        allocator.free(freed);
+        AtlasAllocator.Slot reused = allocator.allocate(TILE_SIZE, TILE_SIZE);
+        check(reused.mPage == freed.mPage && reused.mX == freed.mX && reused.mY == freed.mY,
+                "the freed slot wasn't reused");
+        slots.add(reused);
+
+        // A boundary tile is smaller, it takes a smaller slot
+        AtlasAllocator.Slot edge = allocator.allocate(100, TILE_SIZE);
+        check(edge.getWidth() == 128 && edge.getHeight() == TILE_SIZE, "edge slot "
+                + edge.getWidth() + "x" + edge.getHeight());
+        allocator.free(edge);
+
+        AtlasAllocator.Page page = slots.get(0).mPage;
+        for (AtlasAllocator.Slot slot : slots) {
+            allocator.free(slot);
+        }
+        check(allocator.getPageCount() == 0 && allocator.mFreed.contains(page),
+                "the page wasn't freed with its last slot");
+        check(allocator.mFreed.size() == allocator.mCreated.size(), allocator.mCreated.size()
+                + " pages created, " + allocator.mFreed.size() + " freed");
+
+        boolean threw = false;
+        try {
+            allocator.free(reused);
+        } catch (IllegalStateException e) {
+            threw = true;
+        }
+        check(threw, "a slot was freed twice");
+        System.out.println("slots: reused, and pages freed with their last slot");
+    }
+
+    /** Random sizes come and go, live slots must never overlap. */
+    private static void checkRandomized(int operations, long seed) {
+        Random random = new Random(seed);
+        RecordingAllocator allocator = new RecordingAllocator(PAGE_SIZE);
+        ArrayList<AtlasAllocator.Slot> live = new ArrayList<AtlasAllocator.Slot>();
+        int maxPages = 0;
+        for (int op = 0; op < operations; op++) {
+            if (live.isEmpty() || random.nextInt(100) < 50) {
+                int width = 1 + random.nextInt(random.nextBoolean() ? TILE_SIZE : PAGE_SIZE / 4);
+                int height = 1 + random.nextInt(random.nextBoolean() ? TILE_SIZE : PAGE_SIZE / 4);
+                AtlasAllocator.Slot slot = allocator.allocate(width, height);
+                check(slot != null, "no slot for " + width + "x" + height);
+                check(slot.getWidth() >= width && slot.getHeight() >= height, "slot "
+                        + slot.getWidth() + "x" + slot.getHeight() + " for " + width + "x" + height);
+                check(slot.mX >= 0 && slot.mY >= 0 && slot.mX + slot.getWidth() <= PAGE_SIZE
+                        && slot.mY + slot.getHeight() <= PAGE_SIZE, "slot off the page");
+                for (AtlasAllocator.Slot other : live) {
+                    check(other.mPage != slot.mPage || !overlaps(slot, other), "slots overlap");
+                }
+                live.add(slot);
+            } else {
+                allocator.free(live.remove(random.nextInt(live.size())));
+            }
+            maxPages = Math.max(maxPages, allocator.getPageCount());
+
+            int used = 0;
+            for (AtlasAllocator.Page page : allocator.mCreated) {
+                if (!allocator.mFreed.contains(page)) {
+                    used += page.getUsedCount();
+                    check(page.getUsedCount() > 0, "an empty page is kept");
+                }
+            }
+            check(used == live.size(), used + " slots used, " + live.size() + " live");
+        }
+        for (AtlasAllocator.Slot slot : live) {
+            allocator.free(slot);
+        }
+        check(allocator.getPageCount() == 0, allocator.getPageCount() + " pages left");
+        System.out.println("randomized: " + operations + " operations, at most " + maxPages
+                + " pages, " + allocator.mCreated.size() + " created and freed");
+    }
+
+    private static boolean overlaps(AtlasAllocator.Slot a, AtlasAllocator.Slot b) {
+        return a.mX < b.mX + b.getWidth() && b.mX < a.mX + a.getWidth()
+                && a.mY < b.mY + b.getHeight() && b.mY < a.mY + a.getHeight();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static class Tile {
+        final AtlasAllocator.Slot mSlot;
+        final int mX;
+        final int mY;
+        final int mSize;
+
+        Tile(AtlasAllocator.Slot slot, int x, int y, int size) {
+            mSlot = slot;
+            mX = x;
+            mY = y;
+            mSize = size;
+        }
+    }
+
+    private static class FakeTexture {
+        final int mId;
+
+        FakeTexture(int id) {
+            mId = id;
+        }
+    }
+
+    /** Records the pages it creates and frees, with a texture for each. */
+    private static class RecordingAllocator extends AtlasAllocator {
+        final ArrayList<Page> mCreated = new ArrayList<Page>();
+        final ArrayList<Page> mFreed = new ArrayList<Page>();
+        private final ArrayList<FakeTexture> mTextures = new ArrayList<FakeTexture>();
+
+        RecordingAllocator(int pageSize) {
+            super(pageSize);
+        }
+
+        @Override
+        protected Page createPage() {
+            Page page = super.createPage();
+            mCreated.add(page);
+            mTextures.add(new FakeTexture(1000 + mTextures.size()));
+            return page;
+        }
+
+        @Override
+        protected void onPageFreed(Page page) {
+            check(!mFreed.contains(page), "a page was freed twice");
+            mFreed.add(page);
+        }
+
+        FakeTexture getTexture(Page page) {
+            return mTextures.get(mCreated.indexOf(page));
+        }
+    }
+
+    /**
+     * Counts what GLES20Canvas would send to GL. Texture draws in a batch go
+     * through QuadBatch, a flush is a bind and a draw. Outside of a batch,
+     * and for anything else, every draw binds and draws on its own.
+     */
+    private static class RecordingCanvas {
+        private static final float[] IDENTITY = {
+                1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 };
+
+        final QuadBatch<FakeTexture> mBatch = new QuadBatch<FakeTexture>(256);
+        boolean mBatching;
+        int mBinds;
+        int mDraws;
+        int mQuads;
+
+        void beginBatch() {
+            mBatching = true;
+        }
+
+        void endBatch() {
+            flushBatch();
+            mBatching = false;
+        }
+
+        void drawTexture(FakeTexture texture, float x, float y, float size) {
+            if (!mBatching) {
+                mBinds++;
+                mDraws++;
+                return;
+            }
+            if (mBatch.needsFlush(texture, texture.mId, 1f)) {
+                flushBatch();
+            }
+            mBatch.add(texture, texture.mId, 1f, IDENTITY, 0, x, y, x + size, y + size, 0, 0, 1, 1);
+            mQuads++;
+        }
+
+        void fillRect() {
+            flushBatch();
+            mDraws++;
+        }
+
+        private void flushBatch() {
+            if (!mBatch.isEmpty()) {
+                mBinds++;
+                mDraws++;
+                mBatch.clear();
+            }
+        }
+    }
+}
@@ -23,8 +23,10 @@ import com.n2hsu.launcher.backup.BackupProtos.Resource;
 import com.n2hsu.launcher.backup.BackupProtos.Screen;
 import com.n2hsu.launcher.backup.BackupProtos.Widget;
 
-import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
-import com.google.protobuf.nano.MessageNano;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
@@ -33,38 +35,65 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.System;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 
 /**
  * Commandline utility for decoding protos written to the android logs during debugging.
  *
  * base64 -D icon.log > icon.bin
- * java -classpath $ANDROID_HOST_OUT/framework/protoutil.jar:$ANDROID_HOST_OUT/../common/obj/JAVA_LIBRARIES/host-libprotobuf-java-2.3.0-nano_intermediates/javalib.jar \
+ * java -classpath $ANDROID_HOST_OUT/framework/protoutil.jar:$ANDROID_HOST_OUT/../common/obj/JAVA_LIBRARIES/host-libprotobuf-java-2.5.0_intermediates/javalib.jar \
  *   com.n2hsu.launcher.DecoderRing -i icon.bin
  *
+ * A whole backup set can be checked in one go with -b, either from a
+ * directory with one file per entity, named by its backup key, or from a
+ * stream of length delimited key and entity pairs:
+ *
+ * java ... com.n2hsu.launcher.DecoderRing -b -J backup_dir > entities.json
+ *
  * TODO: write a wrapper to setup the classpath
  */
 class DecoderRing {
     public static void main(String[ ] args)
             throws Exception {
         File source = null;
-        Class type = Key.class;
+        Parser<? extends Message> parser = Key.PARSER;
         int skip = 0;
+        boolean batch = false;
+        boolean json = false;
+        int threads = Runtime.getRuntime().availableProcessors();
 
         for (int i = 0; i < args.length; i++) {
             if ("-k".equals(args[i])) {
-                type = Key.class;
+                parser = Key.PARSER;
             } else if ("-f".equals(args[i])) {
-                type = Favorite.class;
+                parser = Favorite.PARSER;
             } else if ("-j".equals(args[i])) {
-                type = Journal.class;
+                parser = Journal.PARSER;
             } else if ("-i".equals(args[i])) {
-                type = Resource.class;
+                parser = Resource.PARSER;
             } else if ("-s".equals(args[i])) {
-                type = Screen.class;
+                parser = Screen.PARSER;
             } else if ("-w".equals(args[i])) {
-                type = Widget.class;
+                parser = Widget.PARSER;
+            } else if ("-b".equals(args[i])) {
+                batch = true;
+            } else if ("-J".equals(args[i])) {
+                json = true;
+            } else if ("-t".equals(args[i])) {
+                if ((i + 1) < args.length) {
+                    threads = Math.max(1, Integer.valueOf(args[++i]));
+                } else {
+                    usage(args);
+                }
             } else if ("-S".equals(args[i])) {
                 if ((i + 1) < args.length) {
                     skip = Integer.valueOf(args[++i]);
@@ -79,20 +108,27 @@ class DecoderRing {
             }
         }
 
-
-        // read in the bytes
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        BufferedInputStream input = null;
-        if (source == null) {
-            input = new BufferedInputStream(System.in);
-        } else {
+        if (batch) {
+            BatchDecoder decoder = new BatchDecoder(threads, json);
             try {
-                input = new BufferedInputStream(new FileInputStream(source));
-            } catch (FileNotFoundException e) {
-                System.err.println("failed to open file: " + source + ", " + e);
+                if (source != null && source.isDirectory()) {
+                    decoder.decodeDirectory(source);
+                } else {
+                    decoder.decodeStream(openInput(source));
+                }
+            } catch (IOException e) {
+                System.err.println("failed to read input: " + e);
                 System.exit(1);
+            } finally {
+                decoder.shutdown();
             }
+            decoder.printSummary();
+            System.exit(decoder.hasFailures() ? 1 : 0);
         }
+
+        // read in the bytes
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        InputStream input = openInput(source);
         byte[] buffer = new byte[1024];
         try {
             while (input.available() > 0) {
@@ -113,41 +149,38 @@ class DecoderRing {
         }
         System.err.println("read this many bytes: " + byteStream.size());
 
-        MessageNano proto = null;
-        if (type == Key.class) {
-            Key key = new Key();
+        Message proto = null;
+        if (parser == Key.PARSER) {
+            Key key = null;
             try {
                 key = Key.parseFrom(byteStream.toByteArray());
-            } catch (InvalidProtocolBufferNanoException e) {
+            } catch (InvalidProtocolBufferException e) {
                 System.err.println("failed to parse proto: " + e);
                 System.exit(1);
             }
             // keys are self-checked
-            if (key.checksum != checkKey(key)) {
+            if (key.getChecksum() != checkKey(key)) {
                 System.err.println("key ckecksum failed");
                 System.exit(1);
             }
             proto = key;
         } else {
             // other types are wrapped in a checksum message
-            CheckedMessage wrapper = new CheckedMessage();
+            CheckedMessage wrapper = null;
             try {
-                MessageNano.mergeFrom(wrapper, byteStream.toByteArray());
-            } catch (InvalidProtocolBufferNanoException e) {
+                wrapper = CheckedMessage.parseFrom(byteStream.toByteArray());
+            } catch (InvalidProtocolBufferException e) {
                 System.err.println("failed to parse wrapper: " + e);
                 System.exit(1);
             }
-            CRC32 checksum = new CRC32();
-            checksum.update(wrapper.payload);
-            if (wrapper.checksum != checksum.getValue()) {
+            if (wrapper.getChecksum() != checkPayload(wrapper)) {
                 System.err.println("wrapper ckecksum failed");
                 System.exit(1);
             }
             // decode the actual message
-            proto = (MessageNano) type.newInstance();
             try {
-                MessageNano.mergeFrom(proto, wrapper.payload);
-            } catch (InvalidProtocolBufferNanoException e) {
+                proto = parser.parseFrom(wrapper.getPayload());
+            } catch (InvalidProtocolBufferException e) {
                 System.err.println("failed to parse proto: " + e);
                 System.exit(1);
             }
@@ -161,7 +194,7 @@ class DecoderRing {
             Resource icon = (Resource) proto;
             final String path = "icon.webp";
             FileOutputStream iconFile = new FileOutputStream(path);
-            iconFile.write(icon.data);
+            icon.getData().writeTo(iconFile);
             iconFile.close();
             System.err.println("wrote " + path);
         }
@@ -169,17 +202,17 @@ class DecoderRing {
         // save off the widget icon and preview bits in files for inspection
         if (proto instanceof Widget) {
             Widget widget = (Widget) proto;
-            if (widget.icon != null) {
+            if (widget.hasIcon()) {
                 final String path = "widget_icon.webp";
                 FileOutputStream iconFile = new FileOutputStream(path);
-                iconFile.write(widget.icon.data);
+                widget.getIcon().getData().writeTo(iconFile);
                 iconFile.close();
                 System.err.println("wrote " + path);
             }
-            if (widget.preview != null) {
+            if (widget.hasPreview()) {
                 final String path = "widget_preview.webp";
                 FileOutputStream iconFile = new FileOutputStream(path);
-                iconFile.write(widget.preview.data);
+                widget.getPreview().getData().writeTo(iconFile);
                 iconFile.close();
                 System.err.println("wrote " + path);
             }
@@ -189,17 +222,319 @@ class DecoderRing {
         System.exit(0);
     }
 
+    private static InputStream openInput(File source) {
+        if (source == null) {
+            return new BufferedInputStream(System.in);
+        }
+        try {
+            return new BufferedInputStream(new FileInputStream(source));
+        } catch (FileNotFoundException e) {
+            System.err.println("failed to open file: " + source + ", " + e);
+            System.exit(1);
+            return null;
+        }
+    }
+
     private static long checkKey(Key key) {
         CRC32 checksum = new CRC32();
-        checksum.update(key.type);
-        checksum.update((int) (key.id & 0xffff));
-        checksum.update((int) ((key.id >> 32) & 0xffff));
-        if (key.name != null && key.name.length() > 0) {
-            checksum.update(key.name.getBytes());
+        checksum.update(key.getType().getNumber());
+        checksum.update((int) (key.getId() & 0xffff));
+        checksum.update((int) ((key.getId() >> 32) & 0xffff));
+        if (key.getName().length() > 0) {
+            checksum.update(key.getName().getBytes());
         }
         return checksum.getValue();
     }
 
+    private static long checkPayload(CheckedMessage wrapper) {
+        CRC32 checksum = new CRC32();
+        checksum.update(wrapper.getPayload().toByteArray());
+        return checksum.getValue();
+    }
+
+    private static Parser<? extends Message> getPayloadParser(Key key) {
+        switch (key.getType()) {
+            case FAVORITE:
+                return Favorite.PARSER;
+            case SCREEN:
+                return Screen.PARSER;
+            case ICON:
+                return Resource.PARSER;
+            case WIDGET:
+                return Widget.PARSER;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes and checks every entity of a backup set. Entities are read on
+     * the calling thread and decoded on a pool, results are reported in input
+     * order.
+     */
+    private static class BatchDecoder {
+        private static final String[] TYPE_NAMES = { "favorite", "screen", "icon", "widget",
+                "unknown" };
+        private static final int UNKNOWN_TYPE = TYPE_NAMES.length - 1;
+
+        private final ExecutorService mExecutor;
+        private final int mMaxPending;
+        private final boolean mJson;
+        private final ArrayDeque<Future<Result>> mPending = new ArrayDeque<Future<Result>>();
+
+        private final int[] mCounts = new int[TYPE_NAMES.length];
+        private final long[] mBytes = new long[TYPE_NAMES.length];
+        private long mPayloadBytes;
+        private int mKeyFailures;
+        private int mChecksumFailures;
+        private int mParseFailures;
+
+        BatchDecoder(int threads, boolean json) {
+            mExecutor = Executors.newFixedThreadPool(threads);
+            mMaxPending = threads * 4;
+            mJson = json;
+        }
+
+        /** Entities are files named by their backup key, in name order. */
+        void decodeDirectory(File dir) throws IOException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                throw new IOException("unable to list " + dir);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    decodeDirectory(file);
+                    continue;
+                }
+                byte[] data = readFile(file);
+                submit(file.getPath(), decodeBase64(file.getName()), data);
+            }
+            drain(0);
+        }
+
+        /** Entities are a length delimited key, followed by the length delimited entity. */
+        void decodeStream(InputStream input) throws IOException {
+            CodedInputStream in = CodedInputStream.newInstance(input);
+            int index = 0;
+            while (!in.isAtEnd()) {
+                // each record counts against the size limit on its own
+                in.resetSizeCounter();
+                byte[] key = in.readBytes().toByteArray();
+                byte[] data = in.readBytes().toByteArray();
+                submit("#" + index++, key, data);
+            }
+            drain(0);
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+
+        boolean hasFailures() {
+            return mKeyFailures + mChecksumFailures + mParseFailures > 0;
+        }
+
+        void printSummary() {
+            int entities = 0;
+            long bytes = 0;
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                if (mCounts[i] > 0) {
+                    System.err.println(TYPE_NAMES[i] + ": " + mCounts[i] + " entities, " + mBytes[i]
+                            + " bytes");
+                }
+                entities += mCounts[i];
+                bytes += mBytes[i];
+            }
+            System.err.println("total: " + entities + " entities, " + bytes + " bytes, "
+                    + mPayloadBytes + " payload bytes");
+            System.err.println("key checksum failures: " + mKeyFailures);
+            System.err.println("payload checksum failures: " + mChecksumFailures);
+            System.err.println("parse failures: " + mParseFailures);
+        }
+
+        private void submit(final String source, final byte[] key, final byte[] data) {
+            mPending.add(mExecutor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return decode(source, key, data);
+                }
+            }));
+            drain(mMaxPending);
+        }
+
+        /** Report finished results until at most maxPending are left. */
+        private void drain(int maxPending) {
+            while (!mPending.isEmpty() && (mPending.size() > maxPending || mPending.peek().isDone())) {
+                try {
+                    report(mPending.remove().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    System.err.println("failed to decode: " + e.getCause());
+                    mParseFailures++;
+                }
+            }
+        }
+
+        private static Result decode(String source, byte[] keyBytes, byte[] data) {
+            Result result = new Result();
+            result.source = source;
+            result.size = data.length;
+            result.type = UNKNOWN_TYPE;
+
+            Parser<? extends Message> parser = null;
+            if (keyBytes != null) {
+                try {
+                    Key key = Key.parseFrom(keyBytes);
+                    result.type = key.getType().getNumber() - 1;
+                    result.name = key.hasName() ? key.getName() : null;
+                    result.id = key.getId();
+                    result.keyChecksumFailed = key.getChecksum() != checkKey(key);
+                    parser = getPayloadParser(key);
+                } catch (InvalidProtocolBufferException e) {
+                    // not keyed, only the wrapper is checked
+                }
+            }
+
+            CheckedMessage wrapper;
+            try {
+                wrapper = CheckedMessage.parseFrom(data);
+            } catch (InvalidProtocolBufferException e) {
+                result.error = "bad wrapper: " + e.getMessage();
+                return result;
+            }
+            result.payloadSize = wrapper.getPayload().size();
+            if (wrapper.getChecksum() != checkPayload(wrapper)) {
+                result.checksumFailed = true;
+                return result;
+            }
+            if (parser != null) {
+                try {
+                    parser.parseFrom(wrapper.getPayload());
+                } catch (InvalidProtocolBufferException e) {
+                    result.error = "bad payload: " + e.getMessage();
+                }
+            }
+            return result;
+        }
+
+        private void report(Result result) {
+            mCounts[result.type]++;
+            mBytes[result.type] += result.size;
+            mPayloadBytes += result.payloadSize;
+            if (result.keyChecksumFailed) {
+                mKeyFailures++;
+            }
+            if (result.checksumFailed) {
+                mChecksumFailures++;
+            }
+            if (result.error != null) {
+                mParseFailures++;
+            }
+
+            if (mJson) {
+                StringBuilder line = new StringBuilder();
+                line.append("{\"source\":").append(quote(result.source));
+                line.append(",\"type\":\"").append(TYPE_NAMES[result.type]).append('"');
+                if (result.name != null) {
+                    line.append(",\"name\":").append(quote(result.name));
+                }
+                if (result.type != UNKNOWN_TYPE) {
+                    line.append(",\"id\":").append(result.id);
+                }
+                line.append(",\"size\":").append(result.size);
+                line.append(",\"payloadSize\":").append(result.payloadSize);
+                line.append(",\"keyChecksum\":").append(!result.keyChecksumFailed);
+                line.append(",\"checksum\":").append(!result.checksumFailed);
+                if (result.error != null) {
+                    line.append(",\"error\":").append(quote(result.error));
+                }
+                line.append('}');
+                System.out.println(line);
+            } else if (result.keyChecksumFailed || result.checksumFailed || result.error != null) {
+                System.err.println(result.source + ": "
+                        + (result.error != null ? result.error : "checksum failed"));
+            }
+        }
+
+        private static byte[] readFile(File file) throws IOException {
+            byte[] data = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < data.length) {
+                    int n = in.read(data, offset, data.length - offset);
+                    if (n < 0) {
+                        throw new IOException("short read of " + file);
+                    }
+                    offset += n;
+                }
+            } finally {
+                in.close();
+            }
+            return data;
+        }
+
+        private static String quote(String s) {
+            StringBuilder out = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append('"').toString();
+        }
+
+        /** Decodes a base64 backup key, or returns null if the name is not one. */
+        private static byte[] decodeBase64(String s) {
+            final String alphabet =
+                    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            int end = s.length();
+            while (end > 0 && s.charAt(end - 1) == '=') {
+                end--;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(end * 3 / 4);
+            int bits = 0;
+            int value = 0;
+            for (int i = 0; i < end; i++) {
+                int digit = alphabet.indexOf(s.charAt(i));
+                if (digit < 0) {
+                    // file names may use the url safe alphabet
+                    digit = s.charAt(i) == '-' ? 62 : s.charAt(i) == '_' ? 63 : -1;
+                }
+                if (digit < 0) {
+                    return null;
+                }
+                value = (value << 6) | digit;
+                bits += 6;
+                if (bits >= 8) {
+                    bits -= 8;
+                    out.write((value >> bits) & 0xff);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class Result {
+        String source;
+        int type;
+        String name;
+        long id;
+        int size;
+        int payloadSize;
+        boolean keyChecksumFailed;
+        boolean checksumFailed;
+        String error;
+    }
+
     private static void usage(String[] args) {
         System.err.println("DecoderRing type [input]");
         System.err.println("\t-k\tdecode a key");
@@ -207,8 +542,12 @@ class DecoderRing {
         System.err.println("\t-i\tdecode a icon");
         System.err.println("\t-s\tdecode a screen");
         System.err.println("\t-w\tdecode a widget");
-        System.err.println("\t-s b\tskip b bytes");
+        System.err.println("\t-S b\tskip b bytes");
+        System.err.println("\t-b\tcheck a whole backup set: a directory of entities named by");
+        System.err.println("\t\tkey, or a stream of length delimited key and entity pairs");
+        System.err.println("\t-J\twith -b, print a json line per entity");
+        System.err.println("\t-t n\twith -b, decode on n threads");
         System.err.println("\tfilename\tread from filename, not stdin");
         System.exit(1);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.n2hsu.launcher;
+
+import com.android.gallery3d.exif.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Commandline benchmark for reading the EXIF orientation of wallpapers, runs
+ * on any desktop JVM with the stubs in util/stubs.
+ *
+ * javac -d out util/stubs/android/util/*.java util/stubs/android/graphics/*.java \
+ *   src/com/android/gallery3d/exif/*.java util/com/android/launcher3/ExifBenchmark.java
+ * java -cp out com.n2hsu.launcher.ExifBenchmark [-t seconds] [filter]
+ *
+ * It generates JPEGs with an EXIF block like a camera writes, with and
+ * without a thumbnail, and compares ExifInterface.readOrientation() with a
+ * full readExif() and a lookup of TAG_ORIENTATION, from files and from
+ * streams. Both have to return the same orientation for every sample before
+ * anything is timed. Cases are warmed up and run like in ProtoBenchmark.
+ */
+class ExifBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+
+    private static final int[] ORIENTATIONS = { 1, 3, 6, 8 };
+
+    private static volatile Object sSink;
+    private static Method sAllocatedBytes;
+
+    public static void main(String[] args) throws Exception {
+        long runNanos = 1000000000L;
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && (i + 1) < args.length) {
+                runNanos = (long) (Double.valueOf(args[++i]) * 1000000000L);
+            } else if (!args[i].startsWith("-")) {
+                filter = args[i];
+            } else {
+                System.err.println("ExifBenchmark [-t seconds] [filter]");
+                System.exit(1);
+            }
+        }
+
+        ArrayList<Case> cases = new ArrayList<Case>();
+        Random random = new Random(42);
+        for (int thumbnailSize : new int[] { 0, 30 * 1024 }) {
+            ArrayList<byte[]> samples = new ArrayList<byte[]>();
+            for (int orientation : ORIENTATIONS) {
+                samples.add(createJpeg(random, orientation, thumbnailSize));
+            }
+            addCases(cases, "thumb-" + (thumbnailSize / 1024) + "k", samples, ORIENTATIONS);
+        }
+        // A picture without the tag has to be parsed to the end of IFD0
+        ArrayList<byte[]> samples = new ArrayList<byte[]>();
+        samples.add(createJpeg(random, 0, 30 * 1024));
+        addCases(cases, "no-orientation", samples, new int[] { 0 });
+
+        System.out.println(String.format("%-34s %12s %10s %14s", "case", "ns/op", "MB/s",
+                "alloc B/op"));
+        for (Case c : cases) {
+            if (filter == null || c.name.contains(filter)) {
+                run(c, runNanos);
+            }
+        }
+    }
+
+    /**
+     * Full and orientation-only read cases over the samples, from files and
+     * streams. Checks first that both find the orientation each sample was
+     * written with, 0 for none.
+     */
+    private static void addCases(ArrayList<Case> cases, String name,
+            final ArrayList<byte[]> samples, int[] orientations) throws IOException {
+        final String[] files = new String[samples.size()];
+        int size = 0;
+        for (int i = 0; i < files.length; i++) {
+            byte[] jpeg = samples.get(i);
+            File file = File.createTempFile("exif", ".jpg");
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(jpeg);
+            } finally {
+                out.close();
+            }
+            files[i] = file.getPath();
+            size += jpeg.length;
+
+            Integer expected = orientations[i] != 0 ? orientations[i] : null;
+            Integer full = readFull(file.getPath());
+            Integer actual = new ExifInterface().readOrientation(file.getPath());
+            Integer fromStream = new ExifInterface().readOrientation(new ByteArrayInputStream(jpeg));
+            if (!equal(expected, full) || !equal(expected, actual) || !equal(expected, fromStream)) {
+                throw new AssertionError(name + ": expected " + expected + ", readExif found "
+                        + full + ", readOrientation found " + actual + " and " + fromStream);
+            }
+        }
+        // Each operation reads the next sample, so count their average size
+        size /= files.length;
+
+        cases.add(new Case(name + " readExif-file", size) {
+            int mNext;
+
+            @Override
+            Object runOnce() throws Exception {
+                return readFull(files[mNext++ % files.length]);
+            }
+        });
+        cases.add(new Case(name + " readOrientation-file", size) {
+            int mNext;
+
+            @Override
+            Object runOnce() throws Exception {
+                return new ExifInterface().readOrientation(files[mNext++ % files.length]);
+            }
+        });
+        cases.add(new Case(name + " readExif-stream", size) {
+            int mNext;
+
+            @Override
+            Object runOnce() throws Exception {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(new ByteArrayInputStream(samples.get(mNext++ % files.length)));
+                return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            }
+        });
+        cases.add(new Case(name + " readOrientation-stream", size) {
+            int mNext;
+
+            @Override
+            Object runOnce() throws Exception {
+                return new ExifInterface().readOrientation(new ByteArrayInputStream(samples
+                        .get(mNext++ % files.length)));
+            }
+        });
+    }
+
+    /** What WallpaperCropActivity did before readOrientation. */
+    private static Integer readFull(String path) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(path);
+        return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+    }
+
+    private static boolean equal(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void run(Case c, long runNanos) throws Exception {
+        // Warm up for a few rounds of the run time, so the JIT is done
+        long batch = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            batch = calibrate(c, runNanos / 10);
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        long ops = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sSink = c.runOnce();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < runNanos);
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        final double nsPerOp = (double) elapsed / ops;
+        final double mbPerSec = c.size * (1000000000.0 / nsPerOp) / (1024 * 1024);
+        System.out.println(String.format("%-34s %12.1f %10.1f %14s", c.name, nsPerOp, mbPerSec,
+                allocatedBefore < 0 ? "n/a" : Long.toString(allocated / ops)));
+    }
+
+    /** Returns how many operations take about the given time. */
+    private static long calibrate(Case c, long nanos) throws Exception {
+        long batch = 1;
+        while (true) {
+            final long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sSink = c.runOnce();
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (elapsed >= nanos || batch >= (1L << 30)) {
+                return Math.max(1, batch * nanos / Math.max(1, elapsed) / 10);
+            }
+            batch *= 2;
+        }
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM doesn't count
+     * them. Uses the HotSpot extension of ThreadMXBean when it is there.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            if (sAllocatedBytes == null) {
+                sAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            }
+            return (Long) sAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(),
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A JPEG with the tags of a camera picture, the given orientation (none
+     * if 0) and a thumbnail of the given size. The image data is random, the
+     * EXIF readers never look at it.
+     */
+    private static byte[] createJpeg(Random random, int orientation, int thumbnailSize)
+            throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Camera"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Camera Model " + random.nextInt(100)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_DATE_TIME, "2014:03:01 12:00:00"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 100));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_USER_COMMENT, new byte[1024]));
+        if (orientation != 0) {
+            exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION, orientation));
+        }
+        if (thumbnailSize > 0) {
+            byte[] thumbnail = randomBytes(random, thumbnailSize);
+            thumbnail[0] = (byte) 0xff;
+            thumbnail[1] = (byte) 0xd8;
+            exif.setCompressedThumbnail(thumbnail);
+        }
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        // SOI, then a SOF0 segment and the image data
+        jpeg.write(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0, 4, 0, 0 });
+        jpeg.write(randomBytes(random, 256 * 1024));
+        jpeg.write(new byte[] { (byte) 0xff, (byte) 0xd9 });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(jpeg.toByteArray(), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static abstract class Case {
+        final String name;
+        final int size;
+
+        Case(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        abstract Object runOnce() throws Exception;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.n2hsu.launcher;
+
+import com.n2hsu.launcher.backup.BackupProtos.Favorite;
+import com.n2hsu.launcher.backup.BackupProtos.Journal;
+import com.n2hsu.launcher.backup.BackupProtos.Key;
+import com.n2hsu.launcher.backup.BackupProtos.Resource;
+import com.n2hsu.launcher.backup.BackupProtos.Screen;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Commandline benchmark for the protobuf runtime and the backup protos, runs
+ * on any desktop JVM.
+ *
+ * javac -d out src/com/google/protobuf/*.java src/com/n2hsu/launcher/backup/*.java \
+ *   util/com/android/launcher3/ProtoBenchmark.java
+ * java -cp out com.n2hsu.launcher.ProtoBenchmark [-t seconds] [filter]
+ *
+ * Each case is warmed up, then run for the given time (1 second by default).
+ * It prints the time per operation, the throughput in serialized bytes, and
+ * the bytes allocated per operation when the JVM can count them.
+ */
+class ProtoBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+
+    private static volatile Object sSink;
+    private static Method sAllocatedBytes;
+
+    public static void main(String[] args) throws Exception {
+        long runNanos = 1000000000L;
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && (i + 1) < args.length) {
+                runNanos = (long) (Double.valueOf(args[++i]) * 1000000000L);
+            } else if (!args[i].startsWith("-")) {
+                filter = args[i];
+            } else {
+                System.err.println("ProtoBenchmark [-t seconds] [filter]");
+                System.exit(1);
+            }
+        }
+
+        ArrayList<Case> cases = new ArrayList<Case>();
+        Random random = new Random(42);
+        addCases(cases, "screen", Screen.newBuilder().setId(12).setRank(3).build(), Screen.PARSER);
+        addCases(cases, "favorite", createFavorite(random, 0), Favorite.PARSER);
+        addCases(cases, "favorite-icon", createFavorite(random, 4 * 1024), Favorite.PARSER);
+        for (int size : new int[] { 1024, 16 * 1024, 256 * 1024 }) {
+            addCases(cases, "resource-" + (size / 1024) + "k", createResource(random, size),
+                    Resource.PARSER);
+        }
+        for (int keys : new int[] { 10, 100, 1000 }) {
+            addCases(cases, "journal-" + keys, createJournal(random, keys), Journal.PARSER);
+        }
+
+        System.out.println(String.format("%-34s %12s %10s %14s", "case", "ns/op", "MB/s",
+                "alloc B/op"));
+        for (Case c : cases) {
+            if (filter == null || c.name.contains(filter)) {
+                run(c, runNanos);
+            }
+        }
+    }
+
+    /** Serialize and parse cases for one message. */
+    private static void addCases(ArrayList<Case> cases, String name, final Message message,
+            final Parser<? extends Message> parser) {
+        final byte[] bytes = message.toByteArray();
+        final ByteString byteString = ByteString.copyFrom(bytes);
+        final byte[] target = new byte[bytes.length];
+        final CodedInputStream input = CodedInputStream.newInstance(bytes);
+        input.enableAliasing(true);
+
+        cases.add(new Case(name + " serialize", bytes.length) {
+            @Override
+            Object runOnce() {
+                return message.toByteArray();
+            }
+        });
+        cases.add(new Case(name + " serialize-reuse", bytes.length) {
+            @Override
+            Object runOnce() throws Exception {
+                CodedOutputStream out = CodedOutputStream.newInstance(target);
+                message.writeTo(out);
+                return out;
+            }
+        });
+        cases.add(new Case(name + " parse", bytes.length) {
+            @Override
+            Object runOnce() throws Exception {
+                return parser.parseFrom(bytes);
+            }
+        });
+        cases.add(new Case(name + " parse-aliased", bytes.length) {
+            @Override
+            Object runOnce() throws Exception {
+                input.reset(bytes, 0, bytes.length);
+                return parser.parseFrom(input);
+            }
+        });
+        cases.add(new Case(name + " parse-bytestring", bytes.length) {
+            @Override
+            Object runOnce() throws Exception {
+                return parser.parseFrom(byteString);
+            }
+        });
+    }
+
+    private static void run(Case c, long runNanos) throws Exception {
+        // Warm up for a few rounds of the run time, so the JIT is done
+        long batch = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            batch = calibrate(c, runNanos / 10);
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        long ops = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sSink = c.runOnce();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < runNanos);
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        final double nsPerOp = (double) elapsed / ops;
+        final double mbPerSec = c.size * (1000000000.0 / nsPerOp) / (1024 * 1024);
+        System.out.println(String.format("%-34s %12.1f %10.1f %14s", c.name, nsPerOp, mbPerSec,
+                allocatedBefore < 0 ? "n/a" : Long.toString(allocated / ops)));
+    }
+
+    /** Returns how many operations take about the given time. */
+    private static long calibrate(Case c, long nanos) throws Exception {
+        long batch = 1;
+        while (true) {
+            final long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sSink = c.runOnce();
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (elapsed >= nanos || batch >= (1L << 30)) {
+                return Math.max(1, batch * nanos / Math.max(1, elapsed) / 10);
+            }
+            batch *= 2;
+        }
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM doesn't count
+     * them. Uses the HotSpot extension of ThreadMXBean when it is there.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            if (sAllocatedBytes == null) {
+                sAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            }
+            return (Long) sAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(),
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Favorite createFavorite(Random random, int iconSize) {
+        Favorite.Builder favorite = Favorite.newBuilder().setId(random.nextInt(1000)).setItemType(0)
+                .setTitle("Calculator").setContainer(-100).setScreen(2).setCellX(1).setCellY(3)
+                .setSpanX(1).setSpanY(1)
+                .setIntent("#Intent;action=android.intent.action.MAIN;"
+                        + "category=android.intent.category.LAUNCHER;launchFlags=0x10200000;"
+                        + "component=com.android.calculator2/.Calculator;end");
+        if (iconSize > 0) {
+            favorite.setIconType(1).setIcon(randomBytes(random, iconSize));
+        } else {
+            favorite.setIconType(0).setIconPackage("com.android.calculator2")
+                    .setIconResource("com.android.calculator2:mipmap/ic_launcher_calculator");
+        }
+        return favorite.build();
+    }
+
+    private static Resource createResource(Random random, int size) {
+        return Resource.newBuilder().setDpi(320).setData(randomBytes(random, size)).build();
+    }
+
+    private static Journal createJournal(Random random, int keys) {
+        Journal.Builder journal = Journal.newBuilder().setAppVersion(19)
+                .setT(System.currentTimeMillis()).setBytes(keys * 200L).setRows(keys);
+        for (int i = 0; i < keys; i++) {
+            Key.Builder key = Key.newBuilder().setChecksum(random.nextInt() & 0xffffffffL)
+                    .setHash(random.nextLong());
+            if (i % 3 == 0) {
+                key.setType(Key.Type.ICON).setName("com.example.app" + i + "/.MainActivity");
+            } else {
+                key.setType(Key.Type.FAVORITE).setId(i);
+            }
+            journal.addKey(key);
+        }
+        return journal.build();
+    }
+
+    /** Random bytes do not compress, like the PNG data in real backups. */
+    private static ByteString randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static abstract class Case {
+        final String name;
+        final int size;
+
+        Case(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        abstract Object runOnce() throws Exception;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.photos.views;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Commandline check for the decode queue of TiledImageRenderer, runs on any
+ * desktop JVM.
+ *
+ * javac -d out src/com/android/photos/views/TileDecodeQueue.java \
+ *   util/com/android/photos/views/TileDecodeQueueCheck.java
+ * java -cp out com.android.photos.views.TileDecodeQueueCheck [-n operations] [-s seed]
+ *
+ * The randomized check runs pushes, reprioritizing pushes, removes, pops,
+ * priority updates and cleans against a plain list, and checks after each
+ * one that the queue holds the same tiles and pops one of the lowest
+ * priority. The ordering check queues the tiles of a view the way
+ * layoutTiles() does, from a fake source that records the order it is
+ * asked to decode them, and compares when the tile in the middle of the
+ * view is decoded with the stack the renderer used before. Exits with 1 on
+ * the first failure.
+ */
+class TileDecodeQueueCheck {
+    private static final int TILE_SIZE = 256;
+
+    public static void main(String[] args) {
+        int operations = 200000;
+        long seed = 42;
+        for (int i = 0; i < args.length; i++) {
+            if ("-n".equals(args[i]) && (i + 1) < args.length) {
+                operations = Integer.parseInt(args[++i]);
+            } else if ("-s".equals(args[i]) && (i + 1) < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("TileDecodeQueueCheck [-n operations] [-s seed]");
+                System.exit(1);
+            }
+        }
+        try {
+            checkRandomized(operations, seed);
+            checkOrdering();
+        } catch (AssertionError e) {
+            System.err.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /** The queue against a list of the queued tiles. */
+    private static void checkRandomized(int operations, long seed) {
+        Random random = new Random(seed);
+        TileDecodeQueue<Tile> queue = new TileDecodeQueue<Tile>();
+        ArrayList<Tile> model = new ArrayList<Tile>();
+        Tile[] tiles = new Tile[300];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new Tile(random.nextInt(64) * TILE_SIZE, random.nextInt(64) * TILE_SIZE,
+                    random.nextInt(4));
+        }
+
+        int pops = 0;
+        for (int op = 0; op < operations; op++) {
+            Tile tile = tiles[random.nextInt(tiles.length)];
+            int action = random.nextInt(100);
+            if (action < 40) {
+                // New tiles and reprioritized ones, with few distinct
+                // priorities so there are ties
+                long priority = random.nextInt(50);
+                boolean wasEmpty = queue.push(tile, priority);
+                check(wasEmpty == model.isEmpty(), "push returned " + wasEmpty);
+                if (!model.contains(tile)) {
+                    model.add(tile);
+                }
+                tile.mExpected = priority;
+            } else if (action < 65) {
+                queue.remove(tile);
+                model.remove(tile);
+            } else if (action < 97) {
+                Tile popped = queue.pop();
+                if (model.isEmpty()) {
+                    check(popped == null, "pop of an empty queue returned a tile");
+                } else {
+                    check(popped != null, "pop returned null with " + model.size() + " queued");
+                    check(model.remove(popped), "popped a tile that isn't queued");
+                    for (Tile other : model) {
+                        check(popped.mExpected <= other.mExpected, "popped " + popped.mExpected
+                                + " before " + other.mExpected);
+                    }
+                    pops++;
+                }
+            } else if (action < 99) {
+                int centerX = random.nextInt(64 * TILE_SIZE);
+                int centerY = random.nextInt(64 * TILE_SIZE);
+                queue.updatePriorities(TILE_SIZE, centerX, centerY);
+                for (Tile other : model) {
+                    other.mExpected = TileDecodeQueue.getDecodePriority(other.mTileLevel, other.mX,
+                            other.mY, TILE_SIZE, centerX, centerY);
+                }
+            } else {
+                queue.clean();
+                model.clear();
+            }
+
+            check(queue.size() == model.size(), "size " + queue.size() + ", expected "
+                    + model.size());
+            for (Tile other : tiles) {
+                check(other.isQueued() == model.contains(other), "tile queued is "
+                        + other.isQueued() + ", expected " + model.contains(other));
+            }
+        }
+        System.out.println("randomized: " + operations + " operations, " + pops + " pops");
+    }
+
+    /**
+     * A 8192x6144 image in a 1920x1080 view at scale 0.6, so level 0 is
+     * shown and level 1 is kept, like layoutTiles() picks them.
+     */
+    private static void checkOrdering() {
+        FakeSource source = new FakeSource(8192, 6144);
+        int centerX = 4000;
+        int centerY = 3000;
+        float scale = 0.6f;
+        int viewWidth = 1920;
+        int viewHeight = 1080;
+
+        TileDecodeQueue<Tile> queue = new TileDecodeQueue<Tile>();
+        ArrayList<Tile> stack = new ArrayList<Tile>();
+        for (int level = 0; level < 2; level++) {
+            int size = TILE_SIZE << level;
+            int left = floor(centerX - viewWidth / (2 * scale), size);
+            int top = floor(centerY - viewHeight / (2 * scale), size);
+            int right = Math.min(source.mWidth, (int) Math.ceil(centerX + viewWidth / (2 * scale)));
+            int bottom = Math.min(source.mHeight, (int) Math.ceil(centerY + viewHeight / (2 * scale)));
+            for (int y = Math.max(0, top); y < bottom; y += size) {
+                for (int x = Math.max(0, left); x < right; x += size) {
+                    Tile tile = new Tile(x, y, level);
+                    queue.push(tile, TileDecodeQueue.getDecodePriority(level, x, y, TILE_SIZE,
+                            centerX, centerY));
+                    stack.add(tile);
+                }
+            }
+        }
+        int count = queue.size();
+
+        // Decode half of them, then move the view and decode the rest
+        long last = Long.MIN_VALUE;
+        int level = Integer.MAX_VALUE;
+        Tile center = null;
+        while (queue.size() > count / 2) {
+            Tile tile = queue.pop();
+            check(tile.mDecodePriority >= last, "decoded out of order");
+            check(tile.mTileLevel <= level, "decoded level " + tile.mTileLevel + " after "
+                    + level);
+            if (tile.mTileLevel != level && tile.mTileLevel == 0) {
+                center = tile;
+            }
+            last = tile.mDecodePriority;
+            level = tile.mTileLevel;
+            source.decode(tile);
+        }
+        check(center != null && center.contains(centerX, centerY), "the first tile of level 0 "
+                + center + " isn't the one in the middle");
+        int centerDecodes = source.indexOf(center) + 1;
+
+        centerX += 800;
+        queue.updatePriorities(TILE_SIZE, centerX, centerY);
+        last = Long.MIN_VALUE;
+        Tile next = queue.pop();
+        while (next != null) {
+            check(next.mDecodePriority >= last, "decoded out of order after the move");
+            last = next.mDecodePriority;
+            source.decode(next);
+            next = queue.pop();
+        }
+        check(source.mDecoded.size() == count, "decoded " + source.mDecoded.size() + " of "
+                + count);
+
+        // The stack decoded the last activated tile first
+        int stackDecodes = 0;
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            stackDecodes++;
+            if (stack.get(i).mTileLevel == 0 && stack.get(i).contains(4000, 3000)) {
+                break;
+            }
+        }
+        System.out.println("ordering: " + count + " tiles, the middle tile decoded after "
+                + centerDecodes + " decodes, " + stackDecodes + " with the stack");
+    }
+
+    private static int floor(float value, int size) {
+        return (int) Math.floor(value / size) * size;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static class Tile extends TileDecodeQueue.Entry {
+        // The priority the queue should have for the tile
+        long mExpected;
+
+        Tile(int x, int y, int level) {
+            super(x, y, level);
+        }
+
+        boolean contains(int x, int y) {
+            int size = TILE_SIZE << mTileLevel;
+            return x >= mX && x < mX + size && y >= mY && y < mY + size;
+        }
+
+        @Override
+        public String toString() {
+            return "tile(" + mX + ", " + mY + ", " + mTileLevel + ")";
+        }
+    }
+
+    /** Stands in for a TileSource, records which tiles were decoded. */
+    private static class FakeSource {
+        final int mWidth;
+        final int mHeight;
+        final ArrayList<Tile> mDecoded = new ArrayList<Tile>();
+
+        FakeSource(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        void decode(Tile tile) {
+            check(!mDecoded.contains(tile), tile + " decoded twice");
+            mDecoded.add(tile);
+        }
+
+        int indexOf(Tile tile) {
+            return mDecoded.indexOf(tile);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+import java.util.HashMap;
+
+/**
+ * Desktop stand-in for the framework class, for the tools in util/. Only the
+ * lookups the app sources use, backed by a map.
+ */
+public class SparseIntArray {
+    private final HashMap<Integer, Integer> mValues = new HashMap<Integer, Integer>();
+
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    public int get(int key, int valueIfKeyNotFound) {
+        Integer value = mValues.get(key);
+        return value == null ? valueIfKeyNotFound : value;
+    }
+
+    public void put(int key, int value) {
+        mValues.put(key, value);
+    }
+
+    public void delete(int key) {
+        mValues.remove(key);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+}